@@ -295,6 +295,20 @@ public class Db implements Cloneable, AutoCloseable {
         return statement;
     }
 
+    /**
+     * Create an SQL array to be used as a statement parameter, see {@link Connection#createArrayOf(String, Object[])}.
+     *
+     * @param typeName SQL name of the elements type
+     * @param elements array elements
+     *
+     * @return array connected to this database
+     *
+     * @throws SQLException
+     */
+    public Array createArray(String typeName, Object[] elements) throws SQLException {
+        return connection.createArrayOf(typeName, elements);
+    }
+
     public ResultSet queryRow(String sqlText, Object... args) throws SQLException {
         PreparedStatement s = statement(sqlText, args);
         s.closeOnCompletion();
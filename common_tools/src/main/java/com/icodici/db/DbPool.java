@@ -20,8 +20,10 @@ public class DbPool implements AutoCloseable {
 
     @Override
     public void close() throws Exception {
-        while( !pool.isEmpty())
-            pool.take().close();
+        // PooledDb.close() returns it to the pool, so the connection should be closed explicitly
+        PooledDb db;
+        while( (db = pool.poll()) != null )
+            db.closeConnection();
     }
 
     public interface DbConsumer<R> {
@@ -68,6 +70,15 @@ public class DbPool implements AutoCloseable {
         }
     }
 
+    /**
+     * Check that the calling thread already holds a connection from this pool, e.g. is inside a transaction.
+     *
+     * @return true if {@link #db()} will return the connection already bound to this thread
+     */
+    public boolean isBoundToThread() {
+        return threadDb.get() != null;
+    }
+
     void returnToPool(PooledDb db) {
         threadDb.set(null);
         pool.add(db);
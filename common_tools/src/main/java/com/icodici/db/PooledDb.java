@@ -41,6 +41,13 @@ public class PooledDb extends Db implements AutoCloseable {
         }
     }
 
+    /**
+     * Really close the connection, used by the {@link DbPool} when it is closed.
+     */
+    void closeConnection() {
+        super.close();
+    }
+
     @Override
     public void close() {
         // important! do NOT call super.close() - we do not close pooled connections!
@@ -36,9 +36,10 @@ public class Do {
 
     public static byte[] read(InputStream inputStream) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        int b;
-        while ((b = inputStream.read()) >= 0)
-            bos.write(b);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = inputStream.read(buffer)) >= 0)
+            bos.write(buffer, 0, n);
         return bos.toByteArray();
     }
 
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ */
+
+package net.sergeych.tools;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timer for large numbers of short timeouts that are mostly cancelled before they expire, like retransmission
+ * deadlines. Scheduling and cancellation are O(1): timeouts are put to the buckets of the wheel by their deadline, and
+ * the single thread of the timer advances over one bucket per tick and runs the timeouts expired there. The precision
+ * is one tick.
+ * <p>
+ * Tasks run in the timer thread and should be short. Exceptions thrown by the tasks are logged and do not affect the
+ * other timeouts.
+ */
+public class HashedWheelTimer {
+
+    static private LogPrinter log = new LogPrinter("HWTM");
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final long startedAt = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean active = true;
+    private long tick = 0;
+
+    /**
+     * Create and start the timer.
+     *
+     * @param name of the timer thread
+     * @param tickDuration duration of the tick, the precision of the timer
+     * @param unit of the tick duration
+     * @param wheelSize number of the buckets, rounded up to the power of 2. Timeouts longer than the wheel turn are
+     *                  kept in the buckets for several turns, so the larger wheel, the less of them are checked
+     *                  every tick.
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+        tickNanos = unit.toNanos(tickDuration);
+        if (tickNanos <= 0)
+            throw new IllegalArgumentException("tick duration should be positive");
+        if (wheelSize <= 0 || wheelSize > 1 << 30)
+            throw new IllegalArgumentException("bad wheel size: " + wheelSize);
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Run the task once after the delay.
+     *
+     * @return the timeout that could be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!active)
+            throw new IllegalStateException("timer is stopped");
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the timer thread. Timeouts that have not expired yet are never run.
+     */
+    public void stop() {
+        active = false;
+        thread.interrupt();
+    }
+
+    private void run() {
+        while (active) {
+            long deadline = startedAt + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    if (!active)
+                        break;
+                }
+            }
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(System.nanoTime());
+            tick++;
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state.get() == Timeout.CANCELLED)
+                continue;
+            // deadlines that are already passed go to the current bucket
+            long ticks = Math.max(tick, (timeout.deadline - startedAt) / tickNanos);
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+        }
+    }
+
+    /**
+     * Scheduled run of the task.
+     */
+    public class Timeout {
+        static private final int WAITING = 0;
+        static private final int CANCELLED = 1;
+        static private final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        // wheel position, owned by the timer thread
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout if it has not expired yet.
+         *
+         * @return true if the task will not run
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED))
+                return state.get() == CANCELLED;
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * @return true if the task has been run or is running
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        /**
+         * @return {@link System#nanoTime()} the task is scheduled for
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts, accessed by the timer thread only.
+     */
+    private class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null)
+                head = timeout;
+            else
+                tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null)
+                head = timeout.next;
+            else
+                timeout.prev.next = timeout.next;
+            if (timeout.next == null)
+                tail = timeout.prev;
+            else
+                timeout.next.prev = timeout.prev;
+            timeout.bucket = null;
+            timeout.prev = null;
+            timeout.next = null;
+        }
+
+        void expire(long now) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) {
+                    timeout.rounds--;
+                } else if (timeout.deadline - now <= 0) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (Throwable t) {
+                            log.wtf("timer task failed", t);
+                        }
+                    }
+                } else {
+                    // the tick is a bit early, try next turn
+                    remove(timeout);
+                    scheduled.add(timeout);
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package net.sergeych.tools;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+
+    @Test
+    public void schedule() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 16);
+        try {
+            BlockingQueue<Integer> fired = new ArrayBlockingQueue<>(10);
+            long started = System.nanoTime();
+            // 300ms is several turns of the 80ms wheel
+            timer.schedule(() -> fired.add(3), 300, TimeUnit.MILLISECONDS);
+            timer.schedule(() -> fired.add(2), 100, TimeUnit.MILLISECONDS);
+            timer.schedule(() -> fired.add(1), 10, TimeUnit.MILLISECONDS);
+
+            assertEquals(1, (int) fired.poll(1, TimeUnit.SECONDS));
+            assertEquals(2, (int) fired.poll(1, TimeUnit.SECONDS));
+            assertEquals(3, (int) fired.poll(1, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(300));
+        } finally {
+            timer.stop();
+        }
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("test-timer", 5, TimeUnit.MILLISECONDS, 16);
+        try {
+            AtomicInteger fired = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[1000];
+            for (int i = 0; i < timeouts.length; i++)
+                timeouts[i] = timer.schedule(fired::incrementAndGet, 20 + i % 100, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < timeouts.length; i += 2)
+                assertTrue(timeouts[i].cancel());
+            // failing task must not stop the timer
+            timer.schedule(() -> { throw new RuntimeException("test"); }, 50, TimeUnit.MILLISECONDS);
+            timer.schedule(done::countDown, 200, TimeUnit.MILLISECONDS);
+
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+            assertEquals(timeouts.length / 2, fired.get());
+            assertTrue(timeouts[0].isCancelled());
+            assertTrue(timeouts[1].isExpired());
+            assertFalse(timeouts[1].cancel());
+        } finally {
+            timer.stop();
+        }
+    }
+}
@@ -13,11 +13,16 @@ import org.spongycastle.crypto.CipherParameters;
 import org.spongycastle.crypto.engines.AESFastEngine;
 import org.spongycastle.crypto.params.KeyParameter;
 
+import java.util.Arrays;
+
 /**
- * AES256 block cipher implementation.
+ * AES256 block cipher implementation, software one of spongycastle. Use {@link #newInstance()} to get the faster
+ * {@link JceAES256} where available.
  */
 public class AES256 implements BlockCipher {
 
+    static private final boolean jceAvailable = checkJce();
+
     private org.spongycastle.crypto.@NonNull BlockCipher aesEngine;
 
     @Nullable
@@ -30,6 +35,54 @@ public class AES256 implements BlockCipher {
         aesEngine = new AESFastEngine();
     }
 
+    /**
+     * Create the fastest AES256 implementation available: {@link JceAES256} if the JDK provides AES256, this one
+     * otherwise or if the system property "universa.crypto.jce" is "false". The choice is made once, when the class
+     * is loaded.
+     *
+     * @return not initialized cipher
+     */
+    static public BlockCipher newInstance() {
+        if (jceAvailable) {
+            try {
+                return new JceAES256();
+            } catch (EncryptionError e) {
+                // checked at startup, should not happen
+            }
+        }
+        return new AES256();
+    }
+
+    /**
+     * @return true if {@link #newInstance()} creates {@link JceAES256}
+     */
+    static public boolean isJceUsed() {
+        return jceAvailable;
+    }
+
+    /**
+     * Check the JDK AES with the FIPS-197 AES-256 test vector: some JDKs have no AES or limit its key size.
+     */
+    static private boolean checkJce() {
+        if ("false".equals(System.getProperty("universa.crypto.jce")))
+            return false;
+        try {
+            byte[] key = new byte[32];
+            byte[] block = new byte[16];
+            for (int i = 0; i < 32; i++)
+                key[i] = (byte) i;
+            for (int i = 0; i < 16; i++)
+                block[i] = (byte) (i * 0x11);
+            JceAES256 cipher = new JceAES256();
+            cipher.initialize(Direction.ENCRYPT, new SymmetricKey(key));
+            byte[] expected = {(byte) 0x8e, (byte) 0xa2, (byte) 0xb7, (byte) 0xca, 0x51, 0x67, 0x45, (byte) 0xbf,
+                    (byte) 0xea, (byte) 0xfc, 0x49, (byte) 0x90, 0x4b, 0x49, 0x60, (byte) 0x89};
+            return Arrays.equals(expected, cipher.transformBlock(block));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
     /**
      * @return block size in bytes
      */
@@ -86,4 +139,20 @@ public class AES256 implements BlockCipher {
             return buf;
         }
     }
+
+    @Override
+    public void transformBlock(byte[] block, byte[] result) throws EncryptionError {
+        if (!initialized())
+            throw new EncryptionError("Not initialized with proper key");
+        aesEngine.processBlock(block, 0, result, 0);
+    }
+
+    @Override
+    public void transformBlocks(byte[] src, int srcOffset, byte[] dst, int dstOffset, int count)
+            throws EncryptionError {
+        if (!initialized())
+            throw new EncryptionError("Not initialized with proper key");
+        for (int i = 0; i < count; i++)
+            aesEngine.processBlock(src, srcOffset + i * 16, dst, dstOffset + i * 16);
+    }
 }
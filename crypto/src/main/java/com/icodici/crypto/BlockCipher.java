@@ -47,4 +47,49 @@ public interface BlockCipher {
      *         if key or block has wrong size
      */
     byte[] transformBlock(byte[] block) throws EncryptionError;
+
+    /**
+     * Encrypt/decrypt source block into the existing array. The default implementation copies the result of {@link
+     * #transformBlock(byte[])}, implementations should override it to avoid allocation.
+     *
+     * @param block
+     *         source block
+     * @param result
+     *         array to put the transformed block to, could be the source block itself
+     *
+     * @throws EncryptionError
+     *         if key or block has wrong size
+     */
+    default void transformBlock(byte[] block, byte[] result) throws EncryptionError {
+        System.arraycopy(transformBlock(block), 0, result, 0, getBlockSize());
+    }
+
+    /**
+     * Encrypt/decrypt several consecutive blocks independently (as ECB does), e.g. the counter blocks of the CTR
+     * mode. The default implementation transforms them one by one.
+     *
+     * @param src
+     *         source blocks
+     * @param srcOffset
+     *         where the first block starts
+     * @param dst
+     *         where to put transformed blocks, could be the source array, at the same offset
+     * @param dstOffset
+     *         where the first transformed block goes
+     * @param count
+     *         number of blocks
+     *
+     * @throws EncryptionError
+     *         if key has wrong size
+     */
+    default void transformBlocks(byte[] src, int srcOffset, byte[] dst, int dstOffset, int count)
+            throws EncryptionError {
+        int size = getBlockSize();
+        byte[] block = new byte[size];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(src, srcOffset + i * size, block, 0, size);
+            transformBlock(block, block);
+            System.arraycopy(block, 0, dst, dstOffset + i * size, size);
+        }
+    }
 }
@@ -7,23 +7,36 @@
 
 package com.icodici.crypto;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 
 /**
  * Basic counter mode (CTR) transformer to use in cryptostreams or separately.
+ * <p>
+ * The key stream is generated by batches of counter blocks, transformed with a single {@link
+ * BlockCipher#transformBlocks(byte[], int, byte[], int, int)} call. Batches start with one block and double up to
+ * {@link #MAX_BATCH_BLOCKS}, so short messages do not pay for the key stream they do not use.
  *
  * Created by sergeych on 14.12.16.
  */
 class CTRTransformer {
     static private final SecureRandom rng;
+
+    /**
+     * Max number of the key stream blocks generated at once
+     */
+    static public final int MAX_BATCH_BLOCKS = 64;
+
     private final BlockCipher cipher;
     private final byte[] nonce;
     private int counter;
     private int index = 0;
     private final int blockSize;
-    private byte[] source;
-    private final byte[] counterBytes;
+    private byte[] keyStream;
+    private int available = 0;
+    private int batchBlocks = 1;
 
     static public byte[] randomBytes(int length) {
         byte[] bytes = new byte[length];
@@ -68,40 +81,94 @@ class CTRTransformer {
         nonce = iv == null ? randomBytes(blockSize) : iv;
 
         counter = 0;
-        source = new byte[blockSize];
-        counterBytes = new byte[4];
-
-        prepareBlock();
+        keyStream = new byte[blockSize];
     }
 
-    private void prepareBlock() throws EncryptionError {
-        System.arraycopy(nonce, 0, source, 0, blockSize);
-        counterBytes[0] = (byte) (counter >> 24);
-        counterBytes[1] = (byte) (counter >> 16);
-        counterBytes[2] = (byte) (counter >> 8);
-        counterBytes[3] = (byte) counter;
-        applyXor(source, blockSize - 4, counterBytes);
-        source = cipher.transformBlock(source);
-        counter++;
+    /**
+     * Generate the next batch of the key stream: the nonce with the big-endian counter xored into its last 4 bytes,
+     * transformed with the cipher.
+     */
+    private void prepareBatch() throws EncryptionError {
+        int blocks = batchBlocks;
+        if (keyStream.length < blocks * blockSize)
+            keyStream = new byte[blocks * blockSize];
+        for (int i = 0; i < blocks; i++) {
+            int end = (i + 1) * blockSize;
+            System.arraycopy(nonce, 0, keyStream, i * blockSize, blockSize);
+            keyStream[end - 4] ^= (byte) (counter >> 24);
+            keyStream[end - 3] ^= (byte) (counter >> 16);
+            keyStream[end - 2] ^= (byte) (counter >> 8);
+            keyStream[end - 1] ^= (byte) counter;
+            counter++;
+        }
+        cipher.transformBlocks(keyStream, 0, keyStream, 0, blocks);
+        available = blocks * blockSize;
         index = 0;
+        if (batchBlocks < MAX_BATCH_BLOCKS)
+            batchBlocks <<= 1;
     }
 
     private byte nextByte() throws EncryptionError {
-        if (index >= blockSize)
-            prepareBlock();
-        return source[index++];
+        if (index >= available)
+            prepareBatch();
+        return keyStream[index++];
     }
 
 
-//    /**
-//     * Transforms in place data block
-//     * @param source
-//     * @throws EncryptionError
-//     */
-//    public void transform(byte[] source, int offset, int length) throws EncryptionError {
-//        for (int i = 0; i < source.length; i++)
-//            source[i] ^= nextByte();
-//    }
+    /**
+     * Transform the data a batch of the key stream at a time. The destination could be the same array, if the
+     * destination range does not start after the source one.
+     *
+     * @param src source data
+     * @param srcOffset where the data starts
+     * @param dst where to put the result
+     * @param dstOffset where the result starts
+     * @param length number of bytes to transform
+     * @throws EncryptionError
+     */
+    public void transform(byte[] src, int srcOffset, byte[] dst, int dstOffset, int length) throws EncryptionError {
+        int done = 0;
+        while (done < length) {
+            if (index >= available)
+                prepareBatch();
+            int n = Math.min(available - index, length - done);
+            int s = srcOffset + done;
+            int d = dstOffset + done;
+            for (int i = 0; i < n; i++)
+                dst[d + i] = (byte) (src[s + i] ^ keyStream[index + i]);
+            index += n;
+            done += n;
+        }
+    }
+
+    /**
+     * Transform the remaining bytes of the source buffer into the destination one, advancing both. The buffers could
+     * share the content, if the destination position does not come after the source one.
+     *
+     * @param src source data
+     * @param dst where to put the result
+     * @throws EncryptionError
+     * @throws BufferOverflowException if the destination has less room than the source has data
+     */
+    public void transform(ByteBuffer src, ByteBuffer dst) throws EncryptionError {
+        int length = src.remaining();
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            transform(src.array(), src.arrayOffset() + src.position(),
+                      dst.array(), dst.arrayOffset() + dst.position(), length);
+            src.position(src.position() + length);
+            dst.position(dst.position() + length);
+        } else {
+            byte[] chunk = new byte[Math.min(length, 4096)];
+            while (src.hasRemaining()) {
+                int n = Math.min(chunk.length, src.remaining());
+                src.get(chunk, 0, n);
+                transform(chunk, 0, chunk, 0, n);
+                dst.put(chunk, 0, n);
+            }
+        }
+    }
 
     /**
      * Transform next byte
@@ -10,6 +10,7 @@ package com.icodici.crypto;
 import net.sergeych.tools.Do;
 
 import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -28,7 +29,7 @@ public class DecryptingStream extends InputStream {
             inputStream) throws EncryptionError, IOException {
         this.inputStream = inputStream;
         byte[] iv = new byte[cipher.getBlockSize()];
-        inputStream.read(iv);
+        new DataInputStream(inputStream).readFully(iv);
         transformer = new CTRTransformer(cipher, iv);
     }
 
@@ -47,6 +48,18 @@ public class DecryptingStream extends InputStream {
         }
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        try {
+            int n = inputStream.read(b, off, len);
+            if (n > 0)
+                transformer.transform(b, off, b, off, n);
+            return n;
+        } catch (EncryptionError encryptionError) {
+            throw new IOException("decryption failed", encryptionError);
+        }
+    }
+
     static public byte[] decrypt(Class<? extends BlockCipher> cipherClass, byte[] key, byte[]
             encryptedData) throws EncryptionError {
         ByteArrayInputStream bis = new ByteArrayInputStream(encryptedData);
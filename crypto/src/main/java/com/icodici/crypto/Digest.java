@@ -11,6 +11,8 @@ import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 
 /**
  * Abstract base class for all MAC funtions (sha1, crc32 and so on). Provides utility interface to
@@ -61,6 +63,52 @@ public abstract class Digest {
 
     private byte[] lastDigest = null;
 
+    /**
+     * Override to copy the state of the digest, see {@link #copy()}. Not supported by default.
+     *
+     * @return new instance with the same state
+     */
+    protected Digest _copy() {
+        throw new UnsupportedOperationException("digest can't be copied: " + getClass().getName());
+    }
+
+    /**
+     * Override together with {@link #_copy()}, so the callers could check it instead of catching the exception of
+     * {@link #copy()} every time.
+     *
+     * @return true if the digest could be copied
+     */
+    public boolean canCopy() {
+        return false;
+    }
+
+    /**
+     * Create the independent copy of the digest with all the data processed so far. Keep the digest of the common
+     * prefix of many messages, e.g. the key of HMAC, and copy it for each message instead of processing the prefix
+     * again. Can not be executed after any {@link #digest()} call.
+     *
+     * @return the copy
+     *
+     * @throws UnsupportedOperationException
+     *         if the implementation can't copy its state
+     */
+    public final Digest copy() {
+        if (lastDigest != null)
+            throw new IllegalStateException("digest is already calculated");
+        return _copy();
+    }
+
+    /**
+     * Helps to implement {@link #_copy()} over the JDK digests.
+     */
+    static protected MessageDigest cloneDigest(MessageDigest md) {
+        try {
+            return (MessageDigest) md.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new UnsupportedOperationException("digest can't be copied: " + md.getAlgorithm(), e);
+        }
+    }
+
     public void update(byte[] data, int offset, int length) {
         if (lastDigest == null)
             _update(data, offset, length);
@@ -68,6 +116,26 @@ public abstract class Digest {
             throw new IllegalStateException("digest is already calculated");
     }
 
+    /**
+     * Update digest with the remaining bytes of the buffer, advancing its position to the limit. Can not be executed
+     * after any {@link #digest()} call.
+     *
+     * @param data
+     */
+    public void update(ByteBuffer data) {
+        if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        } else {
+            byte[] chunk = new byte[Math.min(data.remaining(), 4096)];
+            while (data.hasRemaining()) {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                update(chunk, 0, n);
+            }
+        }
+    }
+
     /**
      * Calculate and return message digest or return last calculated digest. It is save and
      * effective to call #digest() multiple times. It is not allowed to call any of the update()
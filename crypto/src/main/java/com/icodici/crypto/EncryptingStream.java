@@ -20,6 +20,9 @@ import java.io.OutputStream;
 public class EncryptingStream extends OutputStream {
     private final CTRTransformer transformer;
     private final OutputStream outputStream;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    static final int CHUNK_SIZE = 8192;
 
     public EncryptingStream(Class<? extends BlockCipher> cipherClass, byte[] key, OutputStream
             outputStream) throws EncryptionError, IOException {
@@ -42,6 +45,26 @@ public class EncryptingStream extends OutputStream {
         }
     }
 
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        try {
+            while (len > 0) {
+                int n = Math.min(len, chunk.length);
+                transformer.transform(b, off, chunk, 0, n);
+                outputStream.write(chunk, 0, n);
+                off += n;
+                len -= n;
+            }
+        } catch (EncryptionError encryptionError) {
+            throw new RuntimeException("can't encrypt data", encryptionError);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
     static byte[] encrypt(Class<? extends BlockCipher> cipherClass, byte[] key, byte[] source)
             throws EncryptionError {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -20,11 +20,17 @@ import static com.icodici.crypto.SymmetricKey.xor;
  * <p>
  * @see <a href='https://tools.ietf.org/html/rfc2104'>RFC2104: HMAC</a>
  * <p>
+ * The key is processed once, in the constructor. To authenticate many messages with the same key, keep the instance
+ * not updated and {@link #copy()} it for each message: if the hash supports copying, the copy starts from the digests
+ * already keyed with the inner and outer pads.
+ * <p>
  * Created by sergeych on 19.12.16.
  */
 public class HMAC extends Digest {
 
     private final Digest hash;
+    // the outer hash keyed with the outer pad, only copied, never updated
+    private final Digest outer;
     private final int blockSize;
     private final byte[] oKeyPad;
     private final Class<? extends Digest> hashClass;
@@ -62,6 +68,32 @@ public class HMAC extends Digest {
         oKeyPad = xor(keyBlock, 0x5c);
         byte[] iKeyPad = xor(keyBlock, 0x36);
         hash.update(iKeyPad);
+        outer = hashInstance();
+        outer.update(oKeyPad);
+    }
+
+    private HMAC(HMAC source) {
+        hashClass = source.hashClass;
+        hash = source.hash.copy();
+        outer = source.outer;
+        blockSize = source.blockSize;
+        oKeyPad = source.oKeyPad;
+    }
+
+    /**
+     * Copy the hash state, the key is not processed again.
+     *
+     * @throws UnsupportedOperationException
+     *         if the hash can't be copied
+     */
+    @Override
+    protected Digest _copy() {
+        return new HMAC(this);
+    }
+
+    @Override
+    public boolean canCopy() {
+        return hash.canCopy();
     }
 
     @Override
@@ -71,8 +103,13 @@ public class HMAC extends Digest {
 
     @Override
     protected byte[] _digest() {
-        Digest d = hashInstance();
-        d.update(oKeyPad);
+        Digest d;
+        if (outer.canCopy())
+            d = outer.copy();
+        else {
+            d = hashInstance();
+            d.update(oKeyPad);
+        }
         d.update(hash.digest());
         return d.digest();
     }
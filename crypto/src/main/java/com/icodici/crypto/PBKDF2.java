@@ -27,6 +27,8 @@ public class PBKDF2 {
     private final int hLen;
     private byte[] computed;
     private byte[] passwordBytes;
+    // keyed with the password once, copied for every round
+    private HMAC prf;
 
     private PBKDF2(Class<? extends Digest> hashClass,
                   String password,
@@ -82,7 +84,9 @@ public class PBKDF2 {
     }
 
     private Digest hashInstance() {
-        return new HMAC(passwordBytes, hashClass);
+        if (prf == null)
+            prf = new HMAC(passwordBytes, hashClass);
+        return prf.canCopy() ? prf.copy() : new HMAC(passwordBytes, hashClass);
     }
 
     public static byte[] derive(Class<? extends Digest> hash, String password, byte[] salt, int c, int dkLen) {
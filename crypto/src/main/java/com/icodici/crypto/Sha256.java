@@ -25,6 +25,20 @@ public class Sha256 extends Digest {
         }
     }
 
+    private Sha256(MessageDigest md) {
+        this.md = md;
+    }
+
+    @Override
+    protected Digest _copy() {
+        return new Sha256(cloneDigest(md));
+    }
+
+    @Override
+    public boolean canCopy() {
+        return true;
+    }
+
     @Override
     protected void _update(byte[] data, int offset, int size) {
         md.update(data,offset,size);
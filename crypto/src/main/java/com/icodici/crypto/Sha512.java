@@ -25,6 +25,20 @@ public class Sha512 extends Digest {
         }
     }
 
+    private Sha512(MessageDigest md) {
+        this.md = md;
+    }
+
+    @Override
+    protected Digest _copy() {
+        return new Sha512(cloneDigest(md));
+    }
+
+    @Override
+    public boolean canCopy() {
+        return true;
+    }
+
     @Override
     protected void _update(byte[] data, int offset, int size) {
         md.update(data,offset,size);
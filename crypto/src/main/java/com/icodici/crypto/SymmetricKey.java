@@ -7,11 +7,13 @@
 
 package com.icodici.crypto;
 
-import net.sergeych.tools.ByteRingBuffer;
 import net.sergeych.tools.Do;
 import net.sergeych.tools.Hashable;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Map;
 
@@ -52,50 +54,68 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
     /**
      * Read and decrypt AE (EtA) stream. When reaches the end, checks the HMAC (based on SHA256)
      * and throws {@link AuthenticationFailed} if it does not match.
+     * <p>
+     * Data are read and decrypted by chunks, always holding back the last bytes read, as they
+     * could be the HMAC record.
      */
     public class EtaDecryptingStream extends InputStream {
         private final InputStream inputStream;
         private final CTRTransformer transformer;
-        private final ByteRingBuffer ring;
         private final HMAC hmac;
+        private final int hmacLength;
+        // encrypted data read but not returned yet, the HMAC record is among them at the end
+        private final byte[] buffer;
+        private int filled = 0;
+        private boolean finished = false;
+        private final byte[] single = new byte[1];
 
         EtaDecryptingStream(InputStream inputStream) throws IOException, EncryptionError {
             this.inputStream = inputStream;
             byte[] IV = new byte[getCipher().getBlockSize()];
-            inputStream.read(IV);
+            new DataInputStream(inputStream).readFully(IV);
             transformer = new CTRTransformer(getCipher(), IV);
 
-            hmac = new HMAC(key);
-
-            // We should have always block bytes in the buffer to finish:
-            ring = new ByteRingBuffer(hmac.getLength() + 8);
-            for (int i = 0; i < hmac.getLength(); i++)
-                ring.put(inputStream.read());
+            hmac = newHmac();
+            hmacLength = hmac.getLength();
+            buffer = new byte[hmacLength + EncryptingStream.CHUNK_SIZE];
         }
 
         @Override
         public int read() throws IOException {
-            int nextByte = inputStream.read();
-            if (nextByte < 0) {
-                end();
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (finished)
                 return -1;
-            } else {
-                ring.put(nextByte);
-                try {
-                    int encrypted = ring.get();
-                    hmac.update(encrypted);
-                    return transformer.transformByte(encrypted);
-                } catch (EncryptionError encryptionError) {
-                    throw new IOException("failed to decrypt", encryptionError);
+            if (len == 0)
+                return 0;
+            while (filled <= hmacLength) {
+                int n = inputStream.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    end();
+                    return -1;
                 }
+                filled += n;
+            }
+            int n = Math.min(len, filled - hmacLength);
+            hmac.update(buffer, 0, n);
+            try {
+                transformer.transform(buffer, 0, b, off, n);
+            } catch (EncryptionError encryptionError) {
+                throw new IOException("failed to decrypt", encryptionError);
             }
+            filled -= n;
+            System.arraycopy(buffer, n, buffer, 0, filled);
+            return n;
         }
 
         private void end() throws IOException {
-            byte[] readHmac = ring.readAll();
-            if (readHmac.length != hmac.getLength())
-                throw new IOException("stream corrupted: bad hmac record size:" + readHmac.length);
-            if (!Arrays.equals(readHmac, hmac.digest())) {
+            finished = true;
+            if (filled != hmacLength)
+                throw new IOException("stream corrupted: bad hmac record size:" + filled);
+            if (!MessageDigest.isEqual(Arrays.copyOf(buffer, hmacLength), hmac.digest())) {
                 throw new AuthenticationFailed("HMAC authentication failed, data corrupted");
             }
         }
@@ -112,6 +132,7 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
         private boolean done = false;
         private OutputStream outputStream;
         private CTRTransformer transformer;
+        private byte[] chunk;
 
         EtaEncryptingStream(OutputStream outputStream) throws IOException, EncryptionError {
             this(outputStream, true);
@@ -122,7 +143,7 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
             int blockSize = 64; // for SHA256 at least
             this.outputStream = outputStream;
 
-            hmac = new HMAC(key);
+            hmac = newHmac();
 
             if (encrypt) {
                 transformer = new CTRTransformer(getCipher(), null);
@@ -168,11 +189,48 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
                 throw new IOException("failed to encrypt", encryptionError);
             }
         }
+
+        @Override
+        public void write(byte[] plain, int off, int len) throws IOException {
+            if (done)
+                throw new EOFException("can't write past the end()");
+            if (transformer == null) {
+                hmac.update(plain, off, len);
+                outputStream.write(plain, off, len);
+                return;
+            }
+            if (chunk == null)
+                chunk = new byte[EncryptingStream.CHUNK_SIZE];
+            try {
+                while (len > 0) {
+                    int n = Math.min(len, chunk.length);
+                    transformer.transform(plain, off, chunk, 0, n);
+                    hmac.update(chunk, 0, n);
+                    outputStream.write(chunk, 0, n);
+                    off += n;
+                    len -= n;
+                }
+            } catch (EncryptionError encryptionError) {
+                throw new IOException("failed to encrypt", encryptionError);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            outputStream.flush();
+        }
     }
 
+    // SHA256-based HMAC record of the EtA
+    static private final int ETA_HMAC_SIZE = 32;
+
     private byte[] key;
 
-    private BlockCipher cipher = null;
+    // initialized cipher of each thread: the cipher is not thread safe, and the key is shared, e.g. by the sessions
+    private transient ThreadLocal<BlockCipher> ciphers = null;
+
+    // keyed HMAC, never updated, copied for each message
+    private transient HMAC hmacPrototype = null;
 
     /**
      * Create random symmetric key (AES256, CTR)
@@ -192,10 +250,21 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
     }
 
     public void setKey(byte[] key) {
-        cipher = null;
+        ciphers = null;
+        hmacPrototype = null;
         this.key = key;
     }
 
+    /**
+     * @return HMAC of this key for the new message, copied from the cached keyed one
+     */
+    HMAC newHmac() {
+        HMAC prototype = hmacPrototype;
+        if (prototype == null)
+            hmacPrototype = prototype = new HMAC(key);
+        return (HMAC) prototype.copy();
+    }
+
     public byte[] getKey() {
         return key;
     }
@@ -218,12 +287,19 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
         setKey((byte[]) hash.get("key"));
     }
 
+    /**
+     * @return the cipher initialized with this key, own for the calling thread
+     */
     protected BlockCipher getCipher() {
-        if (cipher == null) {
-            cipher = new AES256();
-            cipher.initialize(BlockCipher.Direction.ENCRYPT, this);
+        ThreadLocal<BlockCipher> c = ciphers;
+        if (c == null) {
+            ciphers = c = ThreadLocal.withInitial(() -> {
+                BlockCipher cipher = AES256.newInstance();
+                cipher.initialize(BlockCipher.Direction.ENCRYPT, this);
+                return cipher;
+            });
         }
-        return cipher;
+        return c.get();
     }
 
     public byte[] encrypt(byte[] plaintext) throws EncryptionError {
@@ -299,15 +375,44 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
      * @throws EncryptionError
      */
     public byte[] etaEncrypt(byte[] data) throws EncryptionError {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        try {
-            final EtaEncryptingStream s = etaEncryptStream(bos);
-            s.write(data);
-            s.end();
-            return bos.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException("unexpected IOError", e);
-        }
+        byte[] result = new byte[data.length + getEtaOverhead()];
+        etaEncrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * @return number of bytes AE (EtA) encryption adds to the data: the IV and the HMAC record
+     */
+    public int getEtaOverhead() {
+        return getCipher().getBlockSize() + ETA_HMAC_SIZE;
+    }
+
+    /**
+     * Encrypt the remaining bytes of the source buffer using AE (EtA) into the destination buffer, in the same format
+     * as {@link #etaEncrypt(byte[])}, without intermediate copies. Both buffers are advanced by the bytes read and
+     * written. The buffers must not overlap.
+     *
+     * @param src
+     *         data to encrypt
+     * @param dst
+     *         where to put encrypted data, should have room for {@link #getEtaOverhead()} more bytes than the
+     *         source has
+     *
+     * @throws EncryptionError
+     * @throws BufferOverflowException
+     *         if the destination has not enough room
+     */
+    public void etaEncrypt(ByteBuffer src, ByteBuffer dst) throws EncryptionError {
+        if (dst.remaining() < src.remaining() + getEtaOverhead())
+            throw new BufferOverflowException();
+        CTRTransformer transformer = new CTRTransformer(getCipher(), null);
+        dst.put(transformer.getIV());
+        ByteBuffer encrypted = dst.duplicate();
+        transformer.transform(src, dst);
+        encrypted.limit(dst.position());
+        HMAC hmac = newHmac();
+        hmac.update(encrypted);
+        dst.put(hmac.digest());
     }
 
     /**
@@ -346,13 +451,49 @@ public class SymmetricKey extends AbstractKey implements Serializable, Hashable
      *         if the authentication record does not match the data.
      */
     public byte[] etaDecrypt(byte[] data) throws EncryptionError, AuthenticationFailed {
-        try {
-            return Do.read(etaDecryptStream(new ByteArrayInputStream(data)));
-        } catch (AuthenticationFailed e) {
-            throw e;
-        } catch (IOException e) {
-            throw new RuntimeException("unexpected IOError", e);
-        }
+        if (data.length < getEtaOverhead())
+            throw new AuthenticationFailed("data corrupted: too short for EtA");
+        byte[] result = new byte[data.length - getEtaOverhead()];
+        etaDecrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Decrypt the remaining bytes of the source buffer, encrypted with AE (EtA), into the destination buffer without
+     * intermediate copies. The HMAC record is checked before anything is decrypted. Both buffers are advanced by the
+     * bytes read and written. Could decrypt in place: the buffers could share the content if the destination
+     * position does not come after the source one.
+     *
+     * @param src
+     *         data to decrypt
+     * @param dst
+     *         where to put decrypted data, should have room for {@link #getEtaOverhead()} less bytes than the
+     *         source has
+     *
+     * @throws EncryptionError
+     * @throws AuthenticationFailed
+     *         if the authentication record does not match the data.
+     * @throws BufferOverflowException
+     *         if the destination has not enough room
+     */
+    public void etaDecrypt(ByteBuffer src, ByteBuffer dst) throws EncryptionError, AuthenticationFailed {
+        int length = src.remaining() - getEtaOverhead();
+        if (length < 0)
+            throw new AuthenticationFailed("data corrupted: too short for EtA");
+        if (dst.remaining() < length)
+            throw new BufferOverflowException();
+        byte[] iv = new byte[getCipher().getBlockSize()];
+        src.get(iv);
+        ByteBuffer encrypted = src.slice();
+        encrypted.limit(length);
+        HMAC hmac = newHmac();
+        hmac.update(encrypted.duplicate());
+        byte[] record = new byte[ETA_HMAC_SIZE];
+        src.position(src.position() + length);
+        src.get(record);
+        if (!MessageDigest.isEqual(record, hmac.digest()))
+            throw new AuthenticationFailed("HMAC authentication failed, data corrupted");
+        new CTRTransformer(getCipher(), iv).transform(encrypted, dst);
     }
 
     public static byte[] xor(byte[] src, int value) {
@@ -7,9 +7,13 @@
 
 package com.icodici.crypto;
 
+import net.sergeych.tools.Do;
 import org.spongycastle.util.encoders.Hex;
 
+import java.util.Arrays;
+
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test AES256 implementation.
@@ -41,4 +45,37 @@ public class AES256Test {
         byte[] result = engine.transformBlock(ciphertext1);
         assertArrayEquals(plaintext1, result);
     }
+
+    @org.junit.Test
+    public void jceSameAsSoftware() throws Exception {
+        // any JDK 8u161+ has unlimited AES
+        assertTrue(AES256.isJceUsed());
+        assertTrue(AES256.newInstance() instanceof JceAES256);
+        for (int round = 0; round < 10; round++) {
+            SymmetricKey key = new SymmetricKey();
+            byte[] blocks = Do.randomBytes(16 * 100);
+            for (BlockCipher.Direction direction : BlockCipher.Direction.values()) {
+                BlockCipher soft = new AES256();
+                BlockCipher jce = new JceAES256();
+                soft.initialize(direction, key);
+                jce.initialize(direction, key);
+                byte[] block = Arrays.copyOf(blocks, 16);
+                assertArrayEquals(soft.transformBlock(block), jce.transformBlock(block));
+                byte[] softBlocks = new byte[blocks.length];
+                byte[] jceBlocks = blocks.clone();
+                soft.transformBlocks(blocks, 0, softBlocks, 0, 100);
+                jce.transformBlocks(jceBlocks, 0, jceBlocks, 0, 100);
+                assertArrayEquals(softBlocks, jceBlocks);
+            }
+
+            // CTR key streams are the same
+            byte[] plain = Do.randomBytes(5000 + round);
+            BlockCipher jce = new JceAES256();
+            jce.initialize(BlockCipher.Direction.ENCRYPT, key);
+            byte[] encrypted = EncryptingStream.encrypt(jce, plain);
+            BlockCipher soft = new AES256();
+            soft.initialize(BlockCipher.Direction.ENCRYPT, key);
+            assertArrayEquals(plain, DecryptingStream.decrypt(soft, encrypted));
+        }
+    }
 }
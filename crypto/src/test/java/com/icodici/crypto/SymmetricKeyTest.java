@@ -10,12 +10,26 @@ package com.icodici.crypto;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import net.sergeych.tools.Do;
 import org.spongycastle.util.encoders.Hex;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by sergeych on 18.12.16.
@@ -40,6 +54,113 @@ public class SymmetricKeyTest {
         k.etaDecrypt(cipherText);
     }
 
+    @Test
+    public void etaByteBuffers() throws Exception {
+        SymmetricKey k = new SymmetricKey();
+        for (int size : new int[]{0, 1, 15, 16, 17, 1000, 70000}) {
+            byte[] plainText = Do.randomBytes(size);
+
+            // compatible with the streams both ways
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            SymmetricKey.EtaEncryptingStream out = k.etaEncryptStream(bos);
+            out.write(plainText);
+            out.end();
+            assertArrayEquals(plainText, k.etaDecrypt(bos.toByteArray()));
+            byte[] cipherText = k.etaEncrypt(plainText);
+            assertArrayEquals(plainText, Do.read(k.etaDecryptStream(new ByteArrayInputStream(cipherText))));
+
+            // direct buffers with data in the middle
+            ByteBuffer src = ByteBuffer.allocateDirect(size + 10);
+            src.position(5);
+            src.put(plainText);
+            src.flip().position(5);
+            ByteBuffer dst = ByteBuffer.allocateDirect(size + k.getEtaOverhead() + 3);
+            dst.position(3);
+            k.etaEncrypt(src, dst);
+            assertEquals(0, dst.remaining());
+            assertEquals(src.limit(), src.position());
+            dst.position(3);
+            byte[] encrypted = new byte[dst.remaining()];
+            dst.get(encrypted);
+            assertArrayEquals(plainText, k.etaDecrypt(encrypted));
+
+            // in place
+            ByteBuffer buffer = ByteBuffer.wrap(cipherText.clone());
+            k.etaDecrypt(buffer.duplicate(), buffer);
+            assertArrayEquals(plainText, Arrays.copyOf(buffer.array(), size));
+        }
+
+        byte[] cipherText = k.etaEncrypt("Hello, world!".getBytes());
+        cipherText[cipherText.length - 1] ^= 1;
+        try {
+            k.etaDecrypt(ByteBuffer.wrap(cipherText), ByteBuffer.allocate(100));
+            fail("must throw");
+        } catch (SymmetricKey.AuthenticationFailed e) {
+        }
+        exception.expect(SymmetricKey.AuthenticationFailed.class);
+        k.etaDecrypt(new byte[10]);
+    }
+
+    @Test
+    public void etaConcurrent() throws Exception {
+        // one key, e.g. the session key of the adapter, used by many threads at once
+        SymmetricKey k = new SymmetricKey();
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                results.add(pool.submit(() -> {
+                    for (int i = 0; i < 2000; i++) {
+                        byte[] plainText = Do.randomBytes(1 + i % 300);
+                        assertArrayEquals(plainText, k.etaDecrypt(k.etaEncrypt(plainText)));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results)
+                result.get();
+            // the JCE cipher mostly survives the sharing, the software one does not: each thread has its own
+            assertNotSame(k.getCipher(), pool.submit(k::getCipher).get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void etaStreamChunks() throws Exception {
+        SymmetricKey k = new SymmetricKey();
+        byte[] plainText = Do.randomBytes(50000);
+
+        // single bytes and chunks of any size produce the same stream
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        SymmetricKey.EtaEncryptingStream out = k.etaEncryptStream(bos);
+        out.write(plainText, 0, 7);
+        for (int i = 7; i < 100; i++)
+            out.write(plainText[i]);
+        out.write(plainText, 100, 20000);
+        out.write(plainText, 20100, plainText.length - 20100);
+        out.end();
+        byte[] cipherText = bos.toByteArray();
+        assertArrayEquals(plainText, k.etaDecrypt(cipherText));
+
+        InputStream in = k.etaDecryptStream(new ByteArrayInputStream(cipherText));
+        byte[] decrypted = new byte[plainText.length];
+        int pos = 0;
+        for (; pos < 33; pos++)
+            decrypted[pos] = (byte) in.read();
+        int n;
+        while ((n = in.read(decrypted, pos, Math.min(1000, decrypted.length - pos))) > 0)
+            pos += n;
+        assertEquals(plainText.length, pos);
+        assertEquals(-1, in.read());
+        assertArrayEquals(plainText, decrypted);
+
+        // the HMAC is checked at the end of the stream
+        cipherText[cipherText.length - 40] ^= 1;
+        exception.expect(SymmetricKey.AuthenticationFailed.class);
+        Do.read(k.etaDecryptStream(new ByteArrayInputStream(cipherText)));
+    }
+
     @Test
     public void testHashes() throws Exception {
         byte[] valid = Hex.decode("ba7816bf 8f01cfea 414140de 5dae2223 b00361a3 96177a9c b410ff61" +
@@ -106,6 +227,34 @@ public class SymmetricKeyTest {
         assertArrayEquals(valid, data);
     }
 
+    @Test
+    public void hmacCopy() throws Exception {
+        byte[] key = Hex.decode("4a656665");
+        byte[] valid = Hex.decode("5bdcc146bf60754e6a042426089575c75a003f089d2739839dec58b964ec3843");
+        HMAC prototype = new HMAC(key);
+        assertTrue(prototype.canCopy());
+        // the hash that can't be copied is keyed again for each message
+        HMAC crc = new HMAC(key, Crc32.class);
+        assertFalse(crc.canCopy());
+        crc.update("what do ya want for nothing?".getBytes());
+        assertEquals(4, crc.digest().length);
+        for (int i = 0; i < 3; i++) {
+            Digest hmac = prototype.copy();
+            hmac.update("what do ya want ".getBytes());
+            // the copy of the partially updated one continues from the same state
+            Digest other = hmac.copy();
+            hmac.update("for nothing?".getBytes());
+            assertArrayEquals(valid, hmac.digest());
+            other.update("for nothing?".getBytes());
+            assertArrayEquals(valid, other.digest());
+        }
+        prototype.update("what do ya want for nothing?".getBytes());
+        assertArrayEquals(valid, prototype.digest());
+
+        exception.expect(IllegalStateException.class);
+        prototype.copy();
+    }
+
     @Test
     public void xor() throws Exception {
         byte[] test = new byte[]{0, 0x55, (byte) 0xFF};
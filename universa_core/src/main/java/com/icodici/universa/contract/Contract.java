@@ -54,6 +54,8 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      */
     private boolean isSealed = false;
     private final Map<PublicKey, ExtendedSignature> sealedByKeys = new HashMap<>();
+    // signatures of the unpacked contract to be verified by the SignatureVerifier
+    private final List<SignatureVerifier.Pending> pendingSignatures = new ArrayList<>();
     private Set<PrivateKey> keysToSignWith = new HashSet<>();
     private HashId id;
 
@@ -66,6 +68,20 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
      * @throws IllegalArgumentException on the various format errors
      */
     public Contract(byte[] sealed) throws IOException {
+        this(sealed, SignatureVerifier.getDefault());
+    }
+
+    /**
+     * Extract contract from a sealed form, verifying signatures of it, its new and revoking items with the given
+     * verifier. With null verifier, signatures are not verified and {@link #getSealedByKeys()} is empty until the
+     * contract is passed to {@link SignatureVerifier#verify(Contract)}, e.g. to verify many contracts at once.
+     *
+     * @param sealed   binary sealed contract
+     * @param verifier to verify signatures with, or null to verify them later
+     *
+     * @throws IllegalArgumentException on the various format errors
+     */
+    public Contract(byte[] sealed, SignatureVerifier verifier) throws IOException {
         this.sealedBinary = sealed;
         Binder data = Boss.unpack(sealed);
         if (!data.getStringOrThrow("type").equals("unicapsule"))
@@ -82,10 +98,10 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
         deserialize(payload.getBinderOrThrow("contract"), bm);
 
         for (Object r : payload.getListOrThrow("revoking"))
-            revokingItems.add(new Contract(((Bytes) r).toArray()));
+            revokingItems.add(new Contract(((Bytes) r).toArray(), null));
 
         for (Object r : payload.getListOrThrow("new"))
-            newItems.add(new Contract(((Bytes) r).toArray()));
+            newItems.add(new Contract(((Bytes) r).toArray(), null));
 
         getContext();
         newItems.forEach(i -> i.context = context);
@@ -96,17 +112,35 @@ public class Contract implements Approvable, BiSerializable, Cloneable {
             role.getKeys().forEach(key -> keys.put(ExtendedSignature.keyId(key), key));
         });
 
+        // all the signatures are of the same data, digest it once
+        byte[] contractDigest = null;
         for (Object signature : (List) data.getOrThrow("signatures")) {
-            byte[] s = ((Bytes) signature).toArray();
-            Bytes keyId = ExtendedSignature.extractKeyId(s);
-            PublicKey key = keys.get(keyId);
+            ExtendedSignature.Parsed s = ExtendedSignature.parse(((Bytes) signature).toArray());
+            PublicKey key = keys.get(s.getKeyId());
             if (key != null) {
-                ExtendedSignature es = ExtendedSignature.verify(key, s, contractBytes);
-                if (es != null) {
-                    sealedByKeys.put(key, es);
-                }
+                if (contractDigest == null)
+                    contractDigest = ExtendedSignature.dataDigest(contractBytes);
+                pendingSignatures.add(new SignatureVerifier.Pending(this, key, s, contractDigest));
             }
         }
+        // all the signatures of the items are verified at once, with the ones of the root contract
+        if (verifier != null)
+            verifier.verify(this);
+    }
+
+    /**
+     * Move the signatures found while unpacking and not yet verified, including the ones of the new and revoking
+     * items, to the list.
+     */
+    synchronized void takePendingSignatures(List<SignatureVerifier.Pending> to) {
+        to.addAll(pendingSignatures);
+        pendingSignatures.clear();
+        revokingItems.forEach(c -> c.takePendingSignatures(to));
+        newItems.forEach(c -> c.takePendingSignatures(to));
+    }
+
+    void addSealedByKey(PublicKey key, ExtendedSignature signature) {
+        sealedByKeys.put(key, signature);
     }
 
     public Contract() {
@@ -23,10 +23,20 @@ import java.time.ZonedDateTime;
  * Use {@link #keyId} to get an id of a public or private key (for a keypair, the id is the same for both private and
  * public key).
  * <p>
- * Use {@link #extractKeyId(byte[])} to get key id from a packed signature.
+ * Use {@link #extractKeyId(byte[])} to get key id from a packed signature, or {@link #parse(byte[])} it to find the
+ * key and then verify it without decoding it again.
  */
 public class ExtendedSignature {
 
+    static private final VerificationCache verificationCache = new VerificationCache(VerificationCache.DEFAULT_MAX_SIZE);
+
+    /**
+     * @return the cache of the {@link #verify(PublicKey, byte[], byte[])} results, to get its stats, resize or disable it
+     */
+    static public VerificationCache getVerificationCache() {
+        return verificationCache;
+    }
+
     public Bytes getKeyId() {
         return keyId;
     }
@@ -95,13 +105,76 @@ public class ExtendedSignature {
      * @return the keyId instance as {@link Bytes}
      */
     public static Bytes extractKeyId(byte[] signature) {
-        Binder src = Boss.unpack(signature);
-        return Boss.unpack(src.getBinaryOrThrow("exts")).getBytesOrThrow("key");
+        return parse(signature).getKeyId();
+    }
+
+    /**
+     * Packed extended signature decoded but not verified, see {@link #parse(byte[])}.
+     */
+    static public class Parsed {
+        private final byte[] packed;
+        private final byte[] exts;
+        private final byte[] sign;
+        private final Bytes keyId;
+        private final ZonedDateTime createdAt;
+        private final Bytes dataDigest;
+
+        private Parsed(byte[] packed) {
+            this.packed = packed;
+            Binder src = Boss.unpack(packed);
+            exts = src.getBinaryOrThrow("exts");
+            sign = src.getBinaryOrThrow("sign");
+            Binder b = Boss.unpack(exts);
+            keyId = b.getBytesOrThrow("key");
+            createdAt = b.getZonedDateTimeOrThrow("created_at");
+            dataDigest = b.getBytesOrThrow("sha512");
+        }
+
+        /**
+         * @return the keyId (see {@link #keyId}) of the key the signature claims to be made with
+         */
+        public Bytes getKeyId() {
+            return keyId;
+        }
+
+        /**
+         * @return the creation time the signature claims, not verified
+         */
+        public ZonedDateTime getCreatedAt() {
+            return createdAt;
+        }
+
+        public byte[] getPacked() {
+            return packed;
+        }
+    }
+
+    /**
+     * Decode the packed binary signature once, to find the key with {@link Parsed#getKeyId()} and then {@link
+     * #verify(PublicKey, Parsed, byte[])} it without decoding it again.
+     *
+     * @param signature the binary extended signature
+     *
+     * @throws IllegalArgumentException if the signature is malformed
+     */
+    public static Parsed parse(byte[] signature) {
+        return new Parsed(signature);
+    }
+
+    /**
+     * Digest of the signed data, to {@link #verify(PublicKey, Parsed, byte[])} all the signatures of the same data
+     * with.
+     */
+    public static byte[] dataDigest(byte[] data) {
+        return new Sha512().digest(data);
     }
 
     /**
      * Unpack and the extended signature. On success, returns instance of the {@link ExtendedSignature} with a decoded
      * timestamp, {@link #getCreatedAt()}
+     * <p>
+     * The result is cached, see {@link #getVerificationCache()}, so the same signature of the same data is checked
+     * with the key only once.
      *
      * @param key       to verify signature with
      * @param signature the binary extended signature
@@ -111,23 +184,71 @@ public class ExtendedSignature {
      */
 
     public static ExtendedSignature verify(PublicKey key, byte[] signature, byte[] data) {
+        return verify(key, signature, data, verificationCache);
+    }
+
+    /**
+     * Same as {@link #verify(PublicKey, byte[], byte[])}, with the given cache instead of the shared one.
+     *
+     * @param cache to keep the results in, null to verify without caching
+     */
+    public static ExtendedSignature verify(PublicKey key, byte[] signature, byte[] data, VerificationCache cache) {
+        return verify(key, signature, null, dataDigest(data), cache);
+    }
+
+    /**
+     * Verify the parsed signature, same as {@link #verify(PublicKey, byte[], byte[])}.
+     *
+     * @param key        to verify signature with
+     * @param signature  parsed signature
+     * @param dataDigest {@link #dataDigest(byte[])} of the signed data
+     *
+     * @return null if the signature is invalid, {@link ExtendedSignature} instance on success.
+     */
+    public static ExtendedSignature verify(PublicKey key, Parsed signature, byte[] dataDigest) {
+        return verify(key, signature, dataDigest, verificationCache);
+    }
+
+    /**
+     * Same as {@link #verify(PublicKey, Parsed, byte[])}, with the given cache instead of the shared one.
+     *
+     * @param cache to keep the results in, null to verify without caching
+     */
+    public static ExtendedSignature verify(PublicKey key, Parsed signature, byte[] dataDigest,
+                                           VerificationCache cache) {
+        return verify(key, signature.packed, signature, dataDigest, cache);
+    }
+
+    private static ExtendedSignature verify(PublicKey key, byte[] signature, Parsed parsed, byte[] dataDigest,
+                                            VerificationCache cache) {
+        Bytes cacheKey = null;
+        if (cache != null) {
+            cacheKey = VerificationCache.key(key.fingerprint(), new Sha512().digest(signature), dataDigest);
+            ExtendedSignature cached = cache.get(cacheKey);
+            if (cached != null)
+                return cached == VerificationCache.INVALID ? null : cached;
+        }
         try {
-            Binder src = Boss.unpack(signature);
-            ExtendedSignature es = new ExtendedSignature();
-
-            byte[] exts = src.getBinaryOrThrow("exts");
-            if (key.verify(exts, src.getBinaryOrThrow("sign"), HashType.SHA512)) {
-                Binder b = Boss.unpack(exts);
-                es.keyId = b.getBytesOrThrow("key");
-                es.createdAt = b.getZonedDateTimeOrThrow("created_at");
-                Bytes hash = b.getBytesOrThrow("sha512");
-                Bytes dataHash = new Bytes(new Sha512().digest(data));
-                if (hash.equals(dataHash))
-                    return es;
-            }
+            ExtendedSignature es = verifyDigest(key, parsed != null ? parsed : parse(signature), dataDigest);
+            if (cache != null)
+                cache.put(cacheKey, es);
+            return es;
         } catch (EncryptionError encryptionError) {
             encryptionError.printStackTrace();
         }
         return null;
     }
+
+    private static ExtendedSignature verifyDigest(PublicKey key, Parsed signature, byte[] dataDigest)
+            throws EncryptionError {
+        // the signature of the other data is rejected without checking it with the key
+        if (!signature.dataDigest.equals(new Bytes(dataDigest)))
+            return null;
+        if (!key.verify(signature.exts, signature.sign, HashType.SHA512))
+            return null;
+        ExtendedSignature es = new ExtendedSignature();
+        es.keyId = signature.keyId;
+        es.createdAt = signature.createdAt;
+        return es;
+    }
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.contract;
+
+import com.icodici.crypto.PublicKey;
+import com.icodici.universa.contract.roles.Role;
+import net.sergeych.tools.Binder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verifies the signatures of the unpacked contracts, together with the signatures of their new and revoking items, on
+ * the dedicated {@link ForkJoinPool}, so the contract with many signers, e.g. with the quorum {@link
+ * com.icodici.universa.contract.roles.ListRole}, is checked by all the cores at once.
+ * <p>
+ * {@link Contract#Contract(byte[])} uses the {@link #getDefault()} verifier. To verify several contracts as one
+ * batch, unpack them with {@link Contract#Contract(byte[], SignatureVerifier)} passing null and then call {@link
+ * #verifyAll(Collection)}. Valid signatures are added to {@link Contract#getSealedByKeys()}, invalid are silently
+ * discarded, as {@link Contract#check()} reports missing ones.
+ */
+public class SignatureVerifier {
+
+    static private SignatureVerifier defaultVerifier = null;
+
+    /**
+     * @return the shared verifier with one thread per available processor
+     */
+    static public synchronized SignatureVerifier getDefault() {
+        if (defaultVerifier == null)
+            defaultVerifier = new SignatureVerifier(Runtime.getRuntime().availableProcessors());
+        return defaultVerifier;
+    }
+
+    /**
+     * Signature found while unpacking the contract, to be verified.
+     */
+    static class Pending {
+        final Contract contract;
+        final PublicKey key;
+        final ExtendedSignature.Parsed signature;
+        // shared by all the signatures of the contract
+        final byte[] dataDigest;
+
+        Pending(Contract contract, PublicKey key, ExtendedSignature.Parsed signature, byte[] dataDigest) {
+            this.contract = contract;
+            this.key = key;
+            this.signature = signature;
+            this.dataDigest = dataDigest;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final VerificationCache cache;
+
+    private final AtomicLong verified = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * @param parallelism number of threads to verify signatures with
+     */
+    public SignatureVerifier(int parallelism) {
+        this(parallelism, ExtendedSignature.getVerificationCache());
+    }
+
+    /**
+     * @param parallelism number of threads to verify signatures with
+     * @param cache to keep the results in instead of the shared {@link ExtendedSignature#getVerificationCache()},
+     *              null to verify without caching
+     */
+    public SignatureVerifier(int parallelism, VerificationCache cache) {
+        this.cache = cache;
+        AtomicInteger lastThread = new AtomicInteger();
+        pool = new ForkJoinPool(parallelism, p -> {
+            ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            t.setName("signature-verifier-" + lastThread.incrementAndGet());
+            return t;
+        }, null, false);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Get counters: "verified" signatures, "valid" ones and "skipped" as not needed, see {@link #verify(Contract,
+     * Role)}.
+     */
+    public Binder getStats() {
+        return Binder.fromKeysValues(
+                "verified", verified.get(),
+                "valid", valid.get(),
+                "skipped", skipped.get()
+        );
+    }
+
+    /**
+     * Verify all the not yet verified signatures of the contract, its new and revoking items.
+     *
+     * @throws IOException if interrupted, the signatures not verified yet are lost and the contract should be dropped
+     */
+    public void verify(Contract contract) throws IOException {
+        verifyAll(Collections.singletonList(contract));
+    }
+
+    /**
+     * Verify all the not yet verified signatures of the contracts, their new and revoking items.
+     *
+     * @throws IOException if interrupted, see {@link #verify(Contract)}
+     */
+    public void verifyAll(Collection<Contract> contracts) throws IOException {
+        List<Pending> pending = new ArrayList<>();
+        contracts.forEach(c -> c.takePendingSignatures(pending));
+        run(pending, null, null);
+    }
+
+    /**
+     * Verify the signatures of the new and revoking items, and the signatures of the contract itself until the role is
+     * satisfied: the rest of them are not verified and are not added to {@link Contract#getSealedByKeys()}. Use it
+     * when only the role matters, e.g. to check the contract is signed by its issuer.
+     *
+     * @return true if the role is allowed for the keys of the valid signatures
+     *
+     * @throws IOException if interrupted, see {@link #verify(Contract)}
+     */
+    public boolean verify(Contract contract, Role role) throws IOException {
+        List<Pending> pending = new ArrayList<>();
+        contract.takePendingSignatures(pending);
+        return run(pending, contract, role);
+    }
+
+    /**
+     * Verify, stopping when the role is satisfied for the contract if any.
+     */
+    private boolean run(List<Pending> pending, Contract contract, Role role) throws IOException {
+        if (role != null && isAllowed(contract, role)) {
+            finish(pending, contract);
+            return true;
+        }
+        // the pool is not worth it for one signature, and the worker should not block waiting for its own pool
+        if (pending.size() < 2 || ForkJoinTask.getPool() == pool) {
+            for (int i = 0; i < pending.size(); i++) {
+                apply(pending.get(i), check(pending.get(i)));
+                if (role != null && isAllowed(contract, role)) {
+                    finish(pending.subList(i + 1, pending.size()), contract);
+                    return true;
+                }
+            }
+            return role != null && isAllowed(contract, role);
+        }
+
+        CompletionService<ExtendedSignature> results = new ExecutorCompletionService<>(pool);
+        Map<Future<ExtendedSignature>, Pending> futures = new LinkedHashMap<>();
+        for (Pending p : pending)
+            futures.put(results.submit(() -> check(p)), p);
+        boolean satisfied = false;
+        try {
+            // cancelled futures are queued too
+            for (int remaining = futures.size(); remaining > 0; remaining--) {
+                Future<ExtendedSignature> f = results.take();
+                if (f.isCancelled())
+                    continue;
+                Pending p = futures.get(f);
+                apply(p, f.get());
+                if (role != null && !satisfied && p.contract == contract && isAllowed(contract, role)) {
+                    satisfied = true;
+                    // the items still should be verified to the end
+                    futures.forEach((other, op) -> {
+                        if (op.contract == contract && other.cancel(false))
+                            skipped.incrementAndGet();
+                    });
+                }
+            }
+        } catch (InterruptedException e) {
+            futures.keySet().forEach(f -> f.cancel(false));
+            Thread.currentThread().interrupt();
+            throw new IOException("signature verification is interrupted", e);
+        } catch (ExecutionException e) {
+            futures.keySet().forEach(f -> f.cancel(false));
+            throw new RuntimeException("signature verification failed", e.getCause());
+        }
+        return role != null && isAllowed(contract, role);
+    }
+
+    static private boolean isAllowed(Contract contract, Role role) {
+        return role.isAllowedForKeys(contract.getSealedByKeys());
+    }
+
+    private ExtendedSignature check(Pending p) {
+        verified.incrementAndGet();
+        return ExtendedSignature.verify(p.key, p.signature, p.dataDigest, cache);
+    }
+
+    private void apply(Pending p, ExtendedSignature es) {
+        if (es != null) {
+            valid.incrementAndGet();
+            p.contract.addSealedByKey(p.key, es);
+        }
+    }
+
+    /**
+     * Verify the rest of the signatures of the items in the calling thread, skip the ones of the contract.
+     */
+    private void finish(List<Pending> pending, Contract contract) {
+        for (Pending p : pending) {
+            if (p.contract == contract)
+                skipped.incrementAndGet();
+            else
+                apply(p, check(p));
+        }
+    }
+
+    /**
+     * Stop the threads, the verifier can't be used after it. Never shut down the {@link #getDefault()} one.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.contract;
+
+import net.sergeych.tools.Binder;
+import net.sergeych.utils.Bytes;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of {@link ExtendedSignature#verify(com.icodici.crypto.PublicKey, byte[], byte[])}, so the same signature of
+ * the same data is checked with RSA only once: when the contract is unpacked again, e.g. as the revoking item of
+ * another one, received from several nodes, or checked again. Both valid and invalid signatures are cached, as the
+ * result depends on nothing but the key, the signature and the data.
+ * <p>
+ * The cache is bounded, the oldest results are evicted first. It is safe to use from many threads; two threads that
+ * verify the same signature at once could both do the RSA check, which is harmless.
+ */
+public class VerificationCache {
+
+    static public final int DEFAULT_MAX_SIZE = 10_000;
+
+    /**
+     * Cached result of the invalid signature
+     */
+    static final ExtendedSignature INVALID = new ExtendedSignature();
+
+    private final Map<Bytes, ExtendedSignature> results = new ConcurrentHashMap<>();
+    // keys in the order they were added, to evict the oldest ones
+    private final ConcurrentLinkedQueue<Bytes> order = new ConcurrentLinkedQueue<>();
+    private volatile int maxSize;
+    private volatile boolean enabled = true;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public VerificationCache(int maxSize) {
+        setMaxSize(maxSize);
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        if (maxSize < 1)
+            throw new IllegalArgumentException("cache size should be positive: " + maxSize);
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the cache off, e.g. to measure the verification itself in the tests. Disabling also clears it.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled)
+            clear();
+    }
+
+    public void clear() {
+        results.clear();
+        order.clear();
+    }
+
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Get counters: "hits", "misses" (including the ones while disabled), "evictions", current "size", "max_size"
+     * and "enabled".
+     */
+    public Binder getStats() {
+        return Binder.fromKeysValues(
+                "hits", hits.get(),
+                "misses", misses.get(),
+                "evictions", evictions.get(),
+                "size", results.size(),
+                "max_size", maxSize,
+                "enabled", enabled
+        );
+    }
+
+    /**
+     * Key of the cached result
+     *
+     * @param keyFingerprint    {@link com.icodici.crypto.PublicKey#fingerprint()} of the key to verify with
+     * @param signatureDigest   digest of the packed extended signature
+     * @param dataDigest        digest of the signed data
+     */
+    static Bytes key(byte[] keyFingerprint, byte[] signatureDigest, byte[] dataDigest) {
+        return new Bytes(keyFingerprint, signatureDigest, dataDigest);
+    }
+
+    /**
+     * @return cached signature, {@link #INVALID} if it was not verified or null if it is not cached
+     */
+    ExtendedSignature get(Bytes key) {
+        ExtendedSignature result = enabled ? results.get(key) : null;
+        if (result == null)
+            misses.incrementAndGet();
+        else
+            hits.incrementAndGet();
+        return result;
+    }
+
+    void put(Bytes key, ExtendedSignature signature) {
+        if (!enabled)
+            return;
+        if (results.put(key, signature == null ? INVALID : signature) == null) {
+            order.add(key);
+            evict();
+        }
+    }
+
+    private void evict() {
+        while (results.size() > maxSize) {
+            Bytes oldest = order.poll();
+            if (oldest == null)
+                break;
+            if (results.remove(oldest) != null)
+                evictions.incrementAndGet();
+        }
+    }
+}
@@ -181,9 +181,10 @@ public class ListRole extends Role {
         this.quorumSize = data.getInt("quorumSize", 0);
 
         Object mode = data.getOrDefault("mode", null);
-        if (mode != null && mode instanceof Mode) {
+        if (mode instanceof Mode)
             this.mode = (Mode) mode;
-        }
+        else if (mode != null)
+            this.mode = Mode.valueOf(mode.toString());
 
         List<Binder> roles = data.getList("roles", null);
         if (roles != null) {
@@ -198,7 +199,7 @@ public class ListRole extends Role {
     public Binder serialize(BiSerializer s) {
         return super.serialize(s).putAll(
                 "quorumSize", s.serialize(this.quorumSize),
-                "mode", s.serialize(this.mode),
+                "mode", this.mode == null ? null : this.mode.name(),
                 "roles", s.serialize(this.roles));
     }
 
@@ -105,7 +105,7 @@ class Elections {
         if (record == null) {
             throw new RuntimeException("ledger failed to findOrCreate");
         }
-        if (record.getExpiresAt() == null)
+        if (record.getExpiresAtEpochSecond() == 0)
             record.setExpiresAt(ZonedDateTime.now().plus(network.getMaxElectionsTime()));
         if (record.getState() != ItemState.PENDING)
             throw new Error("ledger already has a record for " + itemId + " with state " + record.getState());
@@ -353,17 +353,22 @@ class Elections {
                 record.save();
                 // We use the caching capability of ledger so we do not get records from
                 // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
-                // yields. We jsu clean them up afterwards:
+                // yields. We jsu clean them up afterwards.
+                // The records may not exist due to ledger desync, so we create them if need, all at once:
+                List<HashId> ids = new ArrayList<>();
+                for (Approvable a : item.getRevokingItems())
+                    ids.add(a.getId());
+                for (Approvable a : item.getNewItems())
+                    ids.add(a.getId());
+                Map<HashId, StateRecord> records = ledger.findOrCreateAll(ids);
                 for (Approvable a : item.getRevokingItems()) {
-                    // The record may not exist due to ledger desync, so we create it if need
-                    StateRecord r = ledger.findOrCreate(a.getId());
+                    StateRecord r = records.get(a.getId());
                     r.setState(ItemState.REVOKED);
                     r.setExpiresAt(ZonedDateTime.now().plus(network.getArchiveExpiration()));
                     r.save();
                 }
                 for (Approvable item : item.getNewItems()) {
-                    // The record may not exist due to ledger desync too, so we create it if need
-                    StateRecord r = ledger.findOrCreate(item.getId());
+                    StateRecord r = records.get(item.getId());
                     r.setState(ItemState.APPROVED);
                     r.setExpiresAt(ZonedDateTime.now().plus(network.getApprovedExpiration()));
                     r.save();
@@ -439,7 +444,7 @@ class Elections {
     }
 
     private void checkElectionsFailed() {
-        if ((pollers.size() == 0 && getState().isPending()) || getMillisLeft() <= 0 || ZonedDateTime.now().isAfter(record.getExpiresAt())) {
+        if ((pollers.size() == 0 && getState().isPending()) || getMillisLeft() <= 0 || record.isExpired()) {
             stopOnFailure();
         }
     }
@@ -10,6 +10,10 @@ package com.icodici.universa.node;
 import com.icodici.db.Db;
 import com.icodici.universa.HashId;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 
 /**
@@ -50,6 +54,41 @@ public interface Ledger {
      */
     StateRecord findOrCreate(HashId itemdId);
 
+    /**
+     * Batch version of {@link #findOrCreate(HashId)}: find existing or create new {@link ItemState#PENDING} records for
+     * all the given ids. Implementations should do it at once where possible, the default implementation calls {@link
+     * #findOrCreate(HashId)} for each id.
+     *
+     * @param itemIds ids to register
+     *
+     * @return map of all the given ids to their records
+     */
+    default Map<HashId, StateRecord> findOrCreateAll(Collection<HashId> itemIds) {
+        return findOrCreateAll(itemIds, null);
+    }
+
+    /**
+     * Same as {@link #findOrCreateAll(Collection)}, also telling which records did not exist and were created by the
+     * call, e.g. to start processing only the new items. The default implementation checks each id with {@link
+     * #getRecord(HashId)} first.
+     *
+     * @param itemIds ids to register
+     * @param created to add the ids of the created records to, or null
+     *
+     * @return map of all the given ids to their records
+     */
+    default Map<HashId, StateRecord> findOrCreateAll(Collection<HashId> itemIds, Set<HashId> created) {
+        Map<HashId, StateRecord> records = new HashMap<>();
+        for (HashId id : itemIds) {
+            if (records.containsKey(id))
+                continue;
+            if (created != null && getRecord(id) == null)
+                created.add(id);
+            records.put(id, findOrCreate(id));
+        }
+        return records;
+    }
+
     /**
      * Shortcut method: check that record exists and its state returns {@link ItemState#isApproved()}}. Check it to
      * ensure its meaning.
@@ -11,25 +11,44 @@ import com.icodici.db.Db;
 import com.icodici.db.DbPool;
 import com.icodici.db.PooledDb;
 import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
 
 import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The basic SQL-based ledger.
  * <p>
  * This implementation uses SQLite, but could be easily enhanced to use any jdbc provider.
  * <p>
+ * Optionally, non-transactional reads ({@link #getRecord(HashId)}, {@link #isApproved(HashId)}) could be routed to a
+ * separate pool of read-only connections, see {@link #PostgresLedger(String, String)}. Records written by this ledger
+ * are still read from the primary for a while, see {@link #setReplicationLag(Duration)}.
+ * <p>
  * Created by sergeych on 16/07/2017.
  */
 public class PostgresLedger implements Ledger {
+    private static final int MAX_CONNECTIONS = 32;
+
     private final DbPool dbPool;
+    private final DbPool readPool;
+
+    // ids written by this ledger recently, to the time of the write, in millis
+    private final Map<HashId, Long> recentWrites = new ConcurrentHashMap<>();
+    private volatile long replicationLagMillis = 5000;
 
     private boolean sqlite = false;
 
@@ -39,8 +58,19 @@ public class PostgresLedger implements Ledger {
     private boolean useCache = true;
 
     public PostgresLedger(String connectionString) throws SQLException {
+        this(connectionString, null);
+    }
+
+    /**
+     * Create ledger that reads records outside of transactions from the separate pool of read-only connections.
+     *
+     * @param connectionString     primary database, used for writes and transactions
+     * @param readConnectionString read replica, or the primary itself to use read-only connections there. If null, all
+     *                             operations use the primary pool.
+     */
+    public PostgresLedger(String connectionString, String readConnectionString) throws SQLException {
         Properties properties = new Properties();
-        dbPool = new DbPool(connectionString, properties, 32);
+        dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
         try {
             dbPool.execute(db -> {
                 db.setupDatabase("/migrations/postgres/migrate_");
@@ -48,6 +78,12 @@ public class PostgresLedger implements Ledger {
         } catch (Exception e) {
             throw new SQLException("Failed to migrate", e);
         }
+        if (readConnectionString != null) {
+            Properties readProperties = new Properties();
+            readProperties.setProperty("readOnly", "true");
+            readPool = new DbPool(readConnectionString, readProperties, MAX_CONNECTIONS);
+        } else
+            readPool = null;
     }
 
     /**
@@ -58,6 +94,48 @@ public class PostgresLedger implements Ledger {
         return dbPool.execute(consumer);
     }
 
+    /**
+     * Execute consumer with a connection suitable to read the given record. It is the read-only pool, if any, unless
+     * the calling thread is in a transaction or the record was written by this ledger not later than the replication
+     * lag ago.
+     */
+    public final <T> T inReadPool(HashId itemId, DbPool.DbConsumer<T> consumer) throws Exception {
+        if (readPool == null || dbPool.isBoundToThread() || isRecentlyWritten(itemId))
+            return dbPool.execute(consumer);
+        return readPool.execute(consumer);
+    }
+
+    private boolean isRecentlyWritten(HashId itemId) {
+        if (itemId == null)
+            return false;
+        Long writtenAt = recentWrites.get(itemId);
+        if (writtenAt == null)
+            return false;
+        if (System.currentTimeMillis() - writtenAt < replicationLagMillis)
+            return true;
+        recentWrites.remove(itemId, writtenAt);
+        return false;
+    }
+
+    private void markWritten(HashId itemId) {
+        if (readPool != null && itemId != null) {
+            long now = System.currentTimeMillis();
+            recentWrites.put(itemId, now);
+            if (recentWrites.size() > 10000)
+                recentWrites.values().removeIf(t -> now - t >= replicationLagMillis);
+        }
+    }
+
+    /**
+     * Set the time during which records written by this ledger are read from the primary, not from the read pool. It
+     * should exceed the worst replication lag of the read replica. Default is 5 seconds.
+     *
+     * @param lag maximum expected replication lag
+     */
+    public void setReplicationLag(Duration lag) {
+        replicationLagMillis = lag.toMillis();
+    }
+
 
     @Override
     public StateRecord getRecord(HashId itemId) {
@@ -65,7 +143,7 @@ public class PostgresLedger implements Ledger {
             StateRecord cached = getFromCache(itemId);
             if (cached != null)
                 return cached;
-            try (ResultSet rs = inPool(db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()))) {
+            try (ResultSet rs = inReadPool(itemId, db -> db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1", itemId.getDigest()))) {
                 if (rs != null) {
                     StateRecord record = new StateRecord(this, rs);
                     putToCache(record);
@@ -128,6 +206,7 @@ public class PostgresLedger implements Ledger {
         return protect(() -> {
             StateRecord record = getFromCache(itemId);
             if( record == null) {
+                markWritten(itemId);
                 try (ResultSet rs = inPool(db->db.queryRow("select * from sr_find_or_create(?)", itemId.getDigest()))) {
                     record = new StateRecord(this, rs);
                     putToCache(record);
@@ -138,6 +217,46 @@ public class PostgresLedger implements Ledger {
         });
     }
 
+    @Override
+    public Map<HashId, StateRecord> findOrCreateAll(Collection<HashId> itemIds, Set<HashId> created) {
+        return protect(() -> {
+            Map<HashId, StateRecord> records = new HashMap<>();
+            List<String> missingDigests = new ArrayList<>();
+            for (HashId id : itemIds) {
+                if (records.containsKey(id))
+                    continue;
+                StateRecord record = getFromCache(id);
+                // null marks the id as already requested
+                records.put(id, record);
+                if (record == null) {
+                    markWritten(id);
+                    missingDigests.add("\\x" + Do.bytesToHex(id.getDigest()));
+                }
+            }
+            if (!missingDigests.isEmpty()) {
+                inPool(db -> {
+                    try (
+                            PreparedStatement statement = db.statement(
+                                    "select * from sr_find_or_create(?)",
+                                    db.createArray("bytea", missingDigests.toArray())
+                            );
+                            ResultSet rs = statement.executeQuery()
+                    ) {
+                        while (rs.next()) {
+                            StateRecord record = new StateRecord(this, rs);
+                            putToCache(record);
+                            records.put(record.getId(), record);
+                            if (created != null && rs.getBoolean("inserted"))
+                                created.add(record.getId());
+                        }
+                    }
+                    return null;
+                });
+            }
+            return records;
+        });
+    }
+
     private <T> T protect(Callable<T> block) {
         try {
             return block.call();
@@ -150,6 +269,8 @@ public class PostgresLedger implements Ledger {
     public void close() {
         try {
             dbPool.close();
+            if (readPool != null)
+                readPool.close();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -158,7 +279,7 @@ public class PostgresLedger implements Ledger {
     @Override
     public long countRecords() {
         try {
-            return dbPool.execute((db)->(long)db.queryOne("SELECT COUNT(*) FROM ledger"));
+            return inReadPool(null, (db)->(long)db.queryOne("SELECT COUNT(*) FROM ledger"));
         } catch (Exception e) {
             e.printStackTrace();
             return -1;
@@ -184,6 +305,7 @@ public class PostgresLedger implements Ledger {
         if (recordId == 0) {
             throw new IllegalStateException("can't destroy record without recordId");
         }
+        markWritten(record.getId());
         protect(() -> {
             inPool(d -> {
                 d.update("DELETE FROM ledger WHERE id = ?", recordId);
@@ -203,6 +325,8 @@ public class PostgresLedger implements Ledger {
         } else if (stateRecord.getLedger() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
+        markWritten(stateRecord.getId());
+
         // TODO: probably, it should take a PooledDb as an argument and reuse it
         try (PooledDb db = dbPool.db()) {
             if (stateRecord.getRecordId() == 0) {
@@ -214,8 +338,8 @@ public class PostgresLedger implements Ledger {
                 ) {
                     statement.setBytes(1, stateRecord.getId().getDigest());
                     statement.setInt(2, stateRecord.getState().ordinal());
-                    statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
-                    statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
+                    statement.setLong(3, stateRecord.getCreatedAtEpochSecond());
+                    statement.setLong(4, stateRecord.getExpiresAtEpochSecond());
                     statement.setLong(5, stateRecord.getLockedByRecordId());
                     statement.executeUpdate();
                     try (ResultSet keys = statement.getGeneratedKeys()) {
@@ -229,7 +353,7 @@ public class PostgresLedger implements Ledger {
             } else {
                 db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
                           stateRecord.getState().ordinal(),
-                          StateRecord.unixTime(stateRecord.getExpiresAt()),
+                          stateRecord.getExpiresAtEpochSecond(),
                           stateRecord.getLockedByRecordId(),
                           stateRecord.getRecordId()
                 );
@@ -191,8 +191,8 @@ public class SqliteLedger implements Ledger {
                     ) {
                         statement.setBytes(1, stateRecord.getId().getDigest());
                         statement.setInt(2, stateRecord.getState().ordinal());
-                        statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
-                        statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
+                        statement.setLong(3, stateRecord.getCreatedAtEpochSecond());
+                        statement.setLong(4, stateRecord.getExpiresAtEpochSecond());
                         statement.setLong(5, stateRecord.getLockedByRecordId());
                         statement.executeUpdate();
                         try (ResultSet keys = statement.getGeneratedKeys()) {
@@ -206,7 +206,7 @@ public class SqliteLedger implements Ledger {
                 } else {
                     db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
                               stateRecord.getState().ordinal(),
-                              StateRecord.unixTime(stateRecord.getExpiresAt()),
+                              stateRecord.getExpiresAtEpochSecond(),
                               stateRecord.getLockedByRecordId(),
                               stateRecord.getRecordId()
                     );
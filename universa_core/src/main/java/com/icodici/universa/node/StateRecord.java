@@ -3,13 +3,13 @@ package com.icodici.universa.node;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.HashIdentifiable;
-import net.sergeych.tools.Do;
 import net.sergeych.utils.LogPrinter;
 import org.checkerframework.checker.nullness.qual.NonNull;
 
 import java.io.IOException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.Clock;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.ZoneId;
@@ -30,6 +30,13 @@ public class StateRecord implements HashIdentifiable {
 
     private static LogPrinter log = new LogPrinter("StateRecord");
 
+    private static final long DEFAULT_EXPIRATION_SECONDS = 300;
+
+    /**
+     * Clock used by all records to timestamp and check expiration. Replace it only in tests.
+     */
+    private static volatile Clock clock = Clock.systemUTC();
+
     private Ledger ledger;
     private boolean dirty;
     private long recordId;
@@ -45,20 +52,36 @@ public class StateRecord implements HashIdentifiable {
         if( rs == null || rs.isClosed() )
             throw new SQLException("resultset or connection is closed");
         recordId = rs.getLong("id");
-        try {
-            id = HashId.withDigest(Do.read(rs.getBinaryStream("hash")));
-        } catch (IOException e) {
+        byte[] digest = rs.getBytes("hash");
+        if (digest == null)
             throw new SQLException("failed to read hash from the recordset");
-        }
+        id = HashId.withDigest(digest);
         state = ItemState.values()[rs.getInt("state")];
-        createdAt = getTime(rs.getLong("created_at"));
-        expiresAt = getTime(rs.getLong("expires_at"));
+        createdAt = rs.getLong("created_at");
+        expiresAt = rs.getLong("expires_at");
         lockedByRecordId = rs.getInt("locked_by_id");
     }
 
     public StateRecord(Ledger ledger) {
         this.ledger = ledger;
-        createdAt = ZonedDateTime.now();
+        initTimes();
+    }
+
+    private void initTimes() {
+        createdAt = currentEpochSecond();
+        expiresAt = createdAt + DEFAULT_EXPIRATION_SECONDS;
+    }
+
+    static void setClock(Clock newClock) {
+        clock = newClock == null ? Clock.systemUTC() : newClock;
+    }
+
+    /**
+     * Current time in seconds since the epoch, from the shared record clock. Does not allocate, so could be used in the
+     * hot path instead of {@link ZonedDateTime#now()}.
+     */
+    static public long currentEpochSecond() {
+        return clock.millis() / 1000;
     }
 
     static public ZonedDateTime getTime(long unixTime) {
@@ -77,12 +100,14 @@ public class StateRecord implements HashIdentifiable {
 
     public StateRecord(HashId id) {
         this.id = id;
+        initTimes();
     }
 
     private volatile ItemState state = ItemState.UNDEFINED;
     private HashId id;
-    private @NonNull ZonedDateTime expiresAt = ZonedDateTime.now().plusSeconds(300);
-    private @NonNull ZonedDateTime createdAt = ZonedDateTime.now();
+    // both times are unix time (seconds since the epoch), 0 means not set
+    private long expiresAt;
+    private long createdAt;
 
     public ItemState getState() {
         return state;
@@ -107,12 +132,28 @@ public class StateRecord implements HashIdentifiable {
         return id;
     }
 
+    /**
+     * @return expiration time or null if it is not set. The instance is created on each call, use {@link
+     * #getExpiresAtEpochSecond()} where possible.
+     */
     public ZonedDateTime getExpiresAt() {
-        return this.expiresAt;
+        return getTime(expiresAt);
     }
 
+    /**
+     * @return creation time or null if it is not set. The instance is created on each call, use {@link
+     * #getCreatedAtEpochSecond()} where possible.
+     */
     public ZonedDateTime getCreatedAt() {
-        return this.createdAt;
+        return getTime(createdAt);
+    }
+
+    public long getExpiresAtEpochSecond() {
+        return expiresAt;
+    }
+
+    public long getCreatedAtEpochSecond() {
+        return createdAt;
     }
 
     public void destroy() {
@@ -321,15 +362,28 @@ public class StateRecord implements HashIdentifiable {
     }
 
     public StateRecord setExpiresAt(@NonNull ZonedDateTime expiresAt) {
-        if( !this.expiresAt.equals(expiresAt) ) {
-            this.expiresAt = expiresAt;
+        return setExpiresAt(expiresAt.toEpochSecond());
+    }
+
+    /**
+     * Set the expiration time.
+     *
+     * @param epochSecond unix time (seconds since the epoch)
+     * @return self
+     */
+    public StateRecord setExpiresAt(long epochSecond) {
+        if (this.expiresAt != epochSecond) {
+            this.expiresAt = epochSecond;
             dirty = true;
         }
         return this;
     }
 
+    /**
+     * @return true if the expiration time is set and is already in the past
+     */
     public boolean isExpired() {
-        return expiresAt.isBefore(ZonedDateTime.now());
+        return expiresAt != 0 && expiresAt < currentEpochSecond();
     }
 
     static public class NotFoundException extends IOException {
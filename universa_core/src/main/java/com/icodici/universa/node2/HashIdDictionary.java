@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
+import net.sergeych.utils.Bytes;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Short aliases of the item ids sent to one node, so the notifications about the same item carry the small integer
+ * handle instead of the 64-byte digest. The sender assigns the handles with the {@link Encoder} while packing the
+ * notifications ({@link Notification#pack(Collection, Encoder)}), and sends the new definitions along with them; the
+ * receiver applies the definitions to its {@link Decoder} before unpacking.
+ * <p>
+ * Handles are never reused within the epoch of the encoder, so the late message could refer to the forgotten handle,
+ * but never to the wrong item. The receiver that has lost the definitions, e.g. restarted, asks the sender to start
+ * the new epoch.
+ */
+public class HashIdDictionary {
+
+    /**
+     * Max number of aliases the encoder keeps, the oldest ones are forgotten above it
+     */
+    static public final int MAX_ALIASES = 100_000;
+
+    /**
+     * Time the decoder still resolves the forgotten handles, for the messages sent before the encoder forgot them
+     * but delivered after
+     */
+    static public final Duration FORGOTTEN_GRACE_TIME = Duration.ofSeconds(60);
+
+    /**
+     * Thrown when the notification refers to the handle the decoder has no definition for (yet).
+     */
+    static public class UnknownAliasException extends IOException {
+        private final int handle;
+
+        public UnknownAliasException(int handle) {
+            super("unknown item id alias: " + handle);
+            this.handle = handle;
+        }
+
+        public int getHandle() {
+            return handle;
+        }
+    }
+
+    /**
+     * Sending side, used by one sending thread at a time, except {@link #forget(HashId)}.
+     */
+    static public class Encoder {
+        private final int epoch = Do.randomInt(Integer.MAX_VALUE);
+        private final LinkedHashMap<HashId, Integer> handles = new LinkedHashMap<>();
+        private final List<Object> definitions = new ArrayList<>();
+        private final List<Integer> forgotten = new ArrayList<>();
+        private int lastHandle = 0;
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Get the handle of the item id, assigning the new one if needed.
+         */
+        public synchronized int alias(HashId id) {
+            Integer handle = handles.get(id);
+            if (handle == null) {
+                handle = ++lastHandle;
+                handles.put(id, handle);
+                definitions.add(handle);
+                definitions.add(id.getDigest());
+                if (handles.size() > MAX_ALIASES) {
+                    Iterator<Integer> oldest = handles.values().iterator();
+                    forgotten.add(oldest.next());
+                    oldest.remove();
+                }
+            }
+            return handle;
+        }
+
+        /**
+         * Forget the item id, e.g. when its election is closed. The next mention of it gets the new handle.
+         */
+        public synchronized void forget(HashId id) {
+            Integer handle = handles.remove(id);
+            if (handle != null)
+                forgotten.add(handle);
+        }
+
+        /**
+         * Take the definitions assigned since the last call, to send them with the notifications.
+         *
+         * @return flat list of handles and digests
+         */
+        public synchronized List<Object> takeDefinitions() {
+            List<Object> result = new ArrayList<>(definitions);
+            definitions.clear();
+            return result;
+        }
+
+        /**
+         * Take the handles forgotten since the last call, to let the receiver forget them too.
+         */
+        public synchronized List<Integer> takeForgotten() {
+            List<Integer> result = new ArrayList<>(forgotten);
+            forgotten.clear();
+            return result;
+        }
+
+        public synchronized int size() {
+            return handles.size();
+        }
+    }
+
+    /**
+     * Receiving side, the aliases of the single epoch of the remote encoder.
+     */
+    static public class Decoder {
+        private final int epoch;
+        private final Map<Integer, HashId> ids = new HashMap<>();
+        // forgotten handles by the time they could be removed at, in the order they were forgotten
+        private final ArrayDeque<long[]> retired = new ArrayDeque<>();
+
+        public Decoder(int epoch) {
+            this.epoch = epoch;
+        }
+
+        public int getEpoch() {
+            return epoch;
+        }
+
+        /**
+         * Apply definitions and forgotten handles got from the encoder. Forgotten handles are still resolved for
+         * {@link #FORGOTTEN_GRACE_TIME}.
+         *
+         * @param definitions flat list of handles and digests, see {@link Encoder#takeDefinitions()}
+         * @param forgotten handles, see {@link Encoder#takeForgotten()}
+         */
+        public synchronized void update(List<?> definitions, List<?> forgotten) {
+            for (int i = 0; i + 1 < definitions.size(); i += 2) {
+                Object digest = definitions.get(i + 1);
+                ids.put(((Number) definitions.get(i)).intValue(),
+                        HashId.withDigest(digest instanceof Bytes ? ((Bytes) digest).toArray() : (byte[]) digest));
+            }
+            long now = System.nanoTime();
+            while (!retired.isEmpty() && now - retired.peekFirst()[1] > 0)
+                ids.remove((int) retired.pollFirst()[0]);
+            long removeAt = now + FORGOTTEN_GRACE_TIME.toNanos();
+            for (Object handle : forgotten)
+                retired.addLast(new long[]{((Number) handle).intValue(), removeAt});
+        }
+
+        public synchronized HashId resolve(int handle) throws UnknownAliasException {
+            HashId id = ids.get(handle);
+            if (id == null)
+                throw new UnknownAliasException(handle);
+            return id;
+        }
+
+        public synchronized int size() {
+            return ids.size();
+        }
+    }
+}
@@ -10,6 +10,7 @@ package com.icodici.universa.node2;
 import com.icodici.universa.HashId;
 import com.icodici.universa.node.ItemResult;
 import net.sergeych.boss.Boss;
+import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
 
@@ -51,14 +52,38 @@ public class ItemNotification extends Notification {
 
     @Override
     protected void writeTo(Boss.Writer bw) throws IOException {
-        bw.writeObject(itemId.getDigest());
+        writeTo(bw, null);
+    }
+
+    @Override
+    protected void readFrom(Boss.Reader br) throws IOException {
+        readFrom(br, null);
+    }
+
+    /**
+     * The item id is written as the digest, or as the integer alias if the encoder is set.
+     */
+    @Override
+    protected void writeTo(Boss.Writer bw, HashIdDictionary.Encoder aliases) throws IOException {
+        if (aliases != null)
+            bw.writeObject(aliases.alias(itemId));
+        else
+            bw.writeObject(itemId.getDigest());
         itemResult.writeTo(bw);
         bw.writeObject(requestResult);
     }
 
     @Override
-    protected void readFrom(Boss.Reader br) throws IOException {
-        itemId = HashId.withDigest(br.readBinary());
+    protected void readFrom(Boss.Reader br, HashIdDictionary.Decoder aliases) throws IOException {
+        Object id = br.read();
+        if (id instanceof Number) {
+            if (aliases == null)
+                throw new IOException("item id alias without the dictionary");
+            itemId = aliases.resolve(((Number) id).intValue());
+        } else if (id instanceof Bytes)
+            itemId = HashId.withDigest(((Bytes) id).toArray());
+        else
+            throw new IOException("bad item id: " + id);
         itemResult = new ItemResult(br);
         requestResult = br.read();
     }
@@ -23,8 +23,10 @@ import org.checkerframework.checker.nullness.qual.NonNull;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -70,6 +72,36 @@ public class Node {
         return (x instanceof ItemResult) ? (ItemResult) x : ((ItemProcessor) x).getResult();
     }
 
+    /**
+     * Register a batch of items, same as calling {@link #registerItem(Approvable)} for each, but ledger records for
+     * the items that are not yet known are found or created with a single {@link Ledger#findOrCreateAll(Collection,
+     * Set)} call. As with {@link #registerItem(Approvable)}, only the items that had no ledger record are processed,
+     * for the others the state of the existing record is returned, even if it is still pending.
+     *
+     * @param items to register/check state
+     *
+     * @return current (or last known) states in the same order as items
+     */
+    public @NonNull List<ItemResult> registerItems(Collection<? extends Approvable> items) {
+        List<HashId> newIds = new ArrayList<>();
+        ZonedDateTime minCreatedAt = ZonedDateTime.now().minus(config.getMaxItemCreationAge());
+        for (Approvable item : items) {
+            // too old items will be discarded anyway, and these being processed need no records
+            if (!processors.containsKey(item.getId()) && !item.getCreatedAt().isBefore(minCreatedAt))
+                newIds.add(item.getId());
+        }
+        Set<HashId> created = new HashSet<>();
+        Map<HashId, StateRecord> records = newIds.isEmpty() ? null : ledger.findOrCreateAll(newIds, created);
+        List<ItemResult> results = new ArrayList<>(items.size());
+        for (Approvable item : items) {
+            // records existed before are checked as usual
+            StateRecord record = created.contains(item.getId()) ? records.get(item.getId()) : null;
+            Object x = checkItemInternal(item.getId(), item, true, record);
+            results.add((x instanceof ItemResult) ? (ItemResult) x : ((ItemProcessor) x).getResult());
+        }
+        return results;
+    }
+
     /**
      * Check the state of the item. This method does not start elections and can be safely called from a client.
      *
@@ -158,6 +190,16 @@ public class Node {
      *         the past, in which case result state will be {@link ItemState#DISCARDED}.
      */
     protected Object checkItemInternal(@NonNull HashId itemId, Approvable item, boolean autoStart) {
+        return checkItemInternal(itemId, item, autoStart, null);
+    }
+
+    /**
+     * Same as {@link #checkItemInternal(HashId, Approvable, boolean)} with the ledger record just created by the
+     * caller, so the item is processed with it as if there were no record.
+     *
+     * @param newRecord record created by {@link Ledger#findOrCreateAll(Collection, Set)} or null to query the ledger
+     */
+    protected Object checkItemInternal(@NonNull HashId itemId, Approvable item, boolean autoStart, StateRecord newRecord) {
         try {
             // first, let's lock to the item id:
             return ItemLock.synchronize(itemId, () -> {
@@ -165,9 +207,9 @@ public class Node {
                 if (ip != null)
                     return ip;
 
-                StateRecord r = ledger.getRecord(itemId);
+                StateRecord r = newRecord != null ? newRecord : ledger.getRecord(itemId);
                 // if it is not pending, it means it is already processed:
-                if (r != null) {
+                if (r != null && (r != newRecord || !autoStart)) {
                     // it is, and we may still have it cached - we do not put it again:
                     return new ItemResult(r, cache.get(itemId) != null);
                 }
@@ -184,7 +226,7 @@ public class Node {
                 if (autoStart) {
                     if (item != null)
                         cache.put(item);
-                    ItemProcessor processor = new ItemProcessor(itemId, item);
+                    ItemProcessor processor = new ItemProcessor(itemId, item, r);
                     processors.put(itemId, processor);
                     return processor;
                 } else {
@@ -240,12 +282,12 @@ public class Node {
         private ScheduledFuture<?> poller;
         private ScheduledFuture<?> downloader;
 
-        public ItemProcessor(HashId itemId, Approvable item) {
+        public ItemProcessor(HashId itemId, Approvable item, StateRecord record) {
             this.itemId = itemId;
             if (item == null)
                 item = cache.get(itemId);
             this.item = item;
-            record = ledger.findOrCreate(itemId);
+            this.record = record != null ? record : ledger.findOrCreate(itemId);
             expiresAt = Instant.now().plus(config.getMaxCacheAge());
             consensusFound = false;
             if (this.item != null)
@@ -444,17 +486,22 @@ public class Node {
                 }
                 // We use the caching capability of ledger so we do not get records from
                 // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
-                // yields. We just clean them up afterwards:
+                // yields. We just clean them up afterwards.
+                // The records may not exist due to ledger desync, so we create them if need, all at once:
+                List<HashId> ids = new ArrayList<>();
+                for (Approvable a : item.getRevokingItems())
+                    ids.add(a.getId());
+                for (Approvable a : item.getNewItems())
+                    ids.add(a.getId());
+                Map<HashId, StateRecord> records = ledger.findOrCreateAll(ids);
                 for (Approvable a : item.getRevokingItems()) {
-                    // The record may not exist due to ledger desync, so we create it if need
-                    StateRecord r = ledger.findOrCreate(a.getId());
+                    StateRecord r = records.get(a.getId());
                     r.setState(ItemState.REVOKED);
                     r.setExpiresAt(ZonedDateTime.now().plus(config.getRevokedItemExpiration()));
                     r.save();
                 }
                 for (Approvable item : item.getNewItems()) {
-                    // The record may not exist due to ledger desync too, so we create it if need
-                    StateRecord r = ledger.findOrCreate(item.getId());
+                    StateRecord r = records.get(item.getId());
                     r.setState(ItemState.APPROVED);
                     r.setExpiresAt(item.getExpiresAt());
                     r.save();
@@ -479,6 +526,7 @@ public class Node {
             if( poller!= null )
                 poller.cancel(false);
             processors.remove(itemId);
+            network.itemClosed(itemId);
         }
 
         private final void setState(ItemState newState) {
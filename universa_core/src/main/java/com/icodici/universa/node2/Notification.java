@@ -23,7 +23,8 @@ import java.util.*;
  * implement abstract methods {@link #writeTo(Boss.Writer)}, {@link #readFrom(Boss.Reader)} and {@link #getTypeCode()}.
  * <p>
  * Notifications could be packed together in a compact form. Use {@link #pack(Collection)} and {@link #unpack(NodeInfo,
- * byte[])}.
+ * byte[])}, or {@link #pack(Collection, HashIdDictionary.Encoder)} and {@link #unpack(NodeInfo, byte[],
+ * HashIdDictionary.Decoder)} to replace the item ids with the short aliases.
  */
 abstract public class Notification {
 
@@ -58,6 +59,31 @@ abstract public class Notification {
      */
     abstract protected void readFrom(Boss.Reader reader) throws IOException;
 
+    /**
+     * Write self to boss writer, replacing item ids with the aliases of the dictionary. Notifications that carry
+     * item ids should override it, the default implementation calls {@link #writeTo(Boss.Writer)}.
+     *
+     * @param writer
+     * @param aliases item id aliases, could be null
+     *
+     * @throws IOException
+     */
+    protected void writeTo(Boss.Writer writer, HashIdDictionary.Encoder aliases) throws IOException {
+        writeTo(writer);
+    }
+
+    /**
+     * Read self written with {@link #writeTo(Boss.Writer, HashIdDictionary.Encoder)}.
+     *
+     * @param reader
+     * @param aliases item id aliases, could be null
+     *
+     * @throws IOException
+     */
+    protected void readFrom(Boss.Reader reader, HashIdDictionary.Decoder aliases) throws IOException {
+        readFrom(reader);
+    }
+
     /**
      * return the code the class had registered self with using {@link #registerClass(int, Class)} in the static
      * constructor. Note that the class that did not register self can't be used by the Universa system
@@ -88,12 +114,26 @@ abstract public class Notification {
      *
      * @return
      */
-    static byte[] pack(Collection<Notification> notifications) {
+    static public byte[] pack(Collection<Notification> notifications) {
+        return pack(notifications, null);
+    }
+
+    /**
+     * Pack collection of notifications like {@link #pack(Collection)}, replacing item ids with the aliases assigned by
+     * the encoder. The new definitions of the encoder should be delivered to the receiver along with the result, see
+     * {@link HashIdDictionary}.
+     *
+     * @param notifications notificatins to pack
+     * @param aliases encoder of the receiving node
+     *
+     * @return
+     */
+    static public byte[] pack(Collection<Notification> notifications, HashIdDictionary.Encoder aliases) {
         Boss.Writer writer = new Boss.Writer();
         try {
             for (Notification n : notifications) {
                 writer.write(n.getTypeCode());
-                n.writeTo(writer);
+                n.writeTo(writer, aliases);
             }
             return writer.toByteArray();
         } catch (IOException e) {
@@ -111,7 +151,22 @@ abstract public class Notification {
      * @return
      * @throws IOException
      */
-    static List<Notification> unpack(NodeInfo from, byte[] packed) throws IOException {
+    static public List<Notification> unpack(NodeInfo from, byte[] packed) throws IOException {
+        return unpack(from, packed, null);
+    }
+
+    /**
+     * Unpack notifications packed with {@link #pack(Collection, HashIdDictionary.Encoder)}.
+     *
+     * @param from node that has send notifications
+     * @param packed representation
+     * @param aliases decoder updated with the definitions sent along
+     * @return
+     * @throws HashIdDictionary.UnknownAliasException if the decoder has no definition for the alias used
+     * @throws IOException
+     */
+    static public List<Notification> unpack(NodeInfo from, byte[] packed, HashIdDictionary.Decoder aliases)
+            throws IOException {
         ArrayList<Notification> notifications = new ArrayList<>();
         Boss.Reader r = new Boss.Reader(packed);
         try {
@@ -121,7 +176,7 @@ abstract public class Notification {
                 Constructor c = classes.get(code).getDeclaredConstructor();
                 c.setAccessible(true);
                 Notification n = (Notification) c.newInstance();
-                n.readFrom(r);
+                n.readFrom(r, aliases);
                 n.from = from;
                 notifications.add(n);
             }
@@ -13,7 +13,9 @@ import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.node2.NodeInfo;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 /**
@@ -27,33 +29,47 @@ import java.util.function.Consumer;
 public abstract class DatagramAdapter {
 
     /**
-     * the queue where to put incoming data
+     * the queue where to put incoming data until the receiver is set
      */
-    BlockingQueue<byte[]> inputQueue = new LinkedBlockingQueue<>();
+    BlockingQueue<Received> inputQueue = new LinkedBlockingQueue<>();
 
     /**
      * Maximum packet size in bytes. Adapter should try to send several blocks together as long as the overall encoded
      * packet sie is no more than MAX_PACKET_SIZE with all extra data attached.
+     * <p>
+     * This is the size used with any node until a larger MTU is set for it with {@link #setMtu(int)} or {@link
+     * #setPeerMtu(int, int)} and the path to the node is probed to pass it.
      */
     static public final int MAX_PACKET_SIZE = 512;
 
     /**
-     * Max number of attempts to retransmit a block, defaults to 10
+     * Largest MTU that could be set, fits jumbo frames. Adapters receive datagrams up to the largest MTU set on them,
+     * see {@link #getMaxMtu()}, so the remote probing a larger one finds it does not pass.
+     */
+    static public final int MAX_MTU = 9000;
+
+    /**
+     * Max number of attempts to retransmit a packet, defaults to 10
      */
     static public final int RETRANSMIT_MAX_ATTEMPTS = 10;
 
     /**
-     * Time between attempts to retransmit a DATA block, in milliseconds
+     * Max time between attempts to retransmit a packet, in milliseconds. Actual retransmission timeout is computed
+     * from the measured round-trip time and reaches this value only with repeated losses.
      */
     static public final int RETRANSMIT_TIME = 10000;
 
     protected NodeInfo myNodeInfo;
-    protected Consumer<byte[]> receiver = null;
+    protected volatile BiConsumer<Integer, byte[]> receiver = null;
     protected final SymmetricKey sessionKey;
     protected final PrivateKey ownPrivateKey;
 
     protected int testMode = TestModes.NONE;
 
+    private volatile int defaultMtu = MAX_PACKET_SIZE;
+    private final ConcurrentHashMap<Integer, Integer> peerMtus = new ConcurrentHashMap<>();
+    private volatile int maxMtu = MAX_PACKET_SIZE;
+
     /**
      * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
      * start serving incoming datagrams immediately upon creation.
@@ -75,16 +91,102 @@ public abstract class DatagramAdapter {
     public abstract void shutdown();
 
     public void receive(Consumer<byte[]> receiver) {
-        byte[] payload;
+        receiveFrom((senderNodeId, payload) -> receiver.accept(payload));
+    }
+
+    /**
+     * Set the receiver of the payloads together with the id of the node that has sent them. The id is the one of the
+     * node the payload was authenticated with by the adapter, so unlike anything inside the payload it could be
+     * trusted.
+     */
+    public void receiveFrom(BiConsumer<Integer, byte[]> receiver) {
+        Received received;
         // first set the receiver so the queue won't be grow
         // the order does not matter anyway
         this.receiver = receiver;
         // now let's drain the buffer
-        while((payload = inputQueue.poll()) != null ) {
-            receiver.accept(payload);
+        while((received = inputQueue.poll()) != null ) {
+            receiver.accept(received.senderNodeId, received.payload);
         }
     }
 
+    /**
+     * Deliver the payload to the receiver, or keep it in the {@link #inputQueue} until the receiver is set.
+     *
+     * @param senderNodeId id of the node the payload is authenticated to come from
+     */
+    protected void deliver(int senderNodeId, byte[] payload) {
+        BiConsumer<Integer, byte[]> r = receiver;
+        if (r != null)
+            r.accept(senderNodeId, payload);
+        else
+            inputQueue.add(new Received(senderNodeId, payload));
+    }
+
+    /**
+     * Payload received before the receiver is set
+     */
+    static class Received {
+        final int senderNodeId;
+        final byte[] payload;
+
+        Received(int senderNodeId, byte[] payload) {
+            this.senderNodeId = senderNodeId;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Set the MTU to use with nodes that have no own setting, e.g. 1400 for the internet or {@link #MAX_MTU} for the
+     * LAN with jumbo frames. The adapter starts with {@link #MAX_PACKET_SIZE} and raises it up to this value as far
+     * as the path to the node allows.
+     *
+     * @param mtu max datagram size in bytes, from {@link #MAX_PACKET_SIZE} to {@link #MAX_MTU}
+     */
+    public void setMtu(int mtu) {
+        defaultMtu = checkMtu(mtu);
+        updateMaxMtu();
+    }
+
+    /**
+     * Set the MTU to use with the specific node, see {@link #setMtu(int)}.
+     *
+     * @param nodeId id of the remote node
+     * @param mtu max datagram size in bytes, from {@link #MAX_PACKET_SIZE} to {@link #MAX_MTU}
+     */
+    public void setPeerMtu(int nodeId, int mtu) {
+        peerMtus.put(nodeId, checkMtu(mtu));
+        updateMaxMtu();
+    }
+
+    /**
+     * @param nodeId id of the remote node
+     * @return MTU set for the node or the default one
+     */
+    public int getMtu(int nodeId) {
+        return peerMtus.getOrDefault(nodeId, defaultMtu);
+    }
+
+    /**
+     * @return the largest of the MTUs set, the max size of the datagrams the adapter receives
+     */
+    public int getMaxMtu() {
+        return maxMtu;
+    }
+
+    private synchronized void updateMaxMtu() {
+        int max = defaultMtu;
+        for (int mtu : peerMtus.values())
+            max = Math.max(max, mtu);
+        maxMtu = max;
+    }
+
+    private static int checkMtu(int mtu) {
+        if (mtu < MAX_PACKET_SIZE || mtu > MAX_MTU)
+            throw new IllegalArgumentException("MTU should be from " + MAX_PACKET_SIZE + " to " + MAX_MTU + ": " + mtu);
+        return mtu;
+    }
+
     public void seTestMode(int testMode) {
         this.testMode = testMode;
     }
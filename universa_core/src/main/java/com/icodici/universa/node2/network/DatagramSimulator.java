@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process network of {@link SimulatedDatagramAdapter}s with the virtual clock. Payloads sent by the adapters are
+ * scheduled for delivery by the {@link Link} model of the pair of nodes: latency, loss, duplication, reordering and
+ * bandwidth. Nothing is delivered by itself: the caller advances the clock with {@link #step()}, {@link
+ * #runFor(Duration)} or {@link #runUntilIdle()}, and the receivers are called in the calling thread.
+ * <p>
+ * The models draw from the single random generator seeded in the constructor, so the same sequence of sends gives
+ * the same deliveries at the same virtual times, run after run. The sequence is the same only if all sends come from
+ * the thread that drives the simulator: payloads sent by other threads are scheduled whenever those get to it. {@link
+ * NetworkV2} runs so with the in-place executor, see {@link NetworkV2#NetworkV2(NetConfig, NodeInfo, DatagramAdapter,
+ * java.util.concurrent.Executor)}.
+ */
+public class DatagramSimulator {
+
+    /**
+     * Distribution of the link latency.
+     */
+    public interface Latency {
+        /**
+         * @return the next latency in nanoseconds, not negative
+         */
+        long sample(Random random);
+
+        static Latency constant(Duration latency) {
+            long nanos = latency.toNanos();
+            return random -> nanos;
+        }
+
+        static Latency uniform(Duration min, Duration max) {
+            long from = min.toNanos();
+            long range = max.toNanos() - from;
+            return random -> from + (long) (random.nextDouble() * range);
+        }
+
+        /**
+         * Normal distribution cut at zero
+         */
+        static Latency normal(Duration mean, Duration deviation) {
+            long m = mean.toNanos();
+            long d = deviation.toNanos();
+            return random -> Math.max(0, m + (long) (random.nextGaussian() * d));
+        }
+
+        /**
+         * Shifted Pareto distribution: the minimal latency plus the heavy tail with the given median, for the tail
+         * latency benchmarks. The lesser shape, the heavier the tail.
+         */
+        static Latency pareto(Duration min, Duration tailMedian, double shape) {
+            long from = min.toNanos();
+            double scale = tailMedian.toNanos() / (Math.pow(2, 1 / shape) - 1);
+            return random -> from + (long) (scale * (Math.pow(1 - random.nextDouble(), -1 / shape) - 1));
+        }
+    }
+
+    /**
+     * Model of the one-way link between two nodes.
+     */
+    static public class Link {
+        private Latency latency = Latency.constant(Duration.ZERO);
+        private double loss = 0;
+        private double duplication = 0;
+        private double reordering = 0;
+        private Duration reorderDelay = Duration.ZERO;
+        private long bandwidth = 0;
+        private Duration retransmitTimeout = Duration.ZERO;
+
+        public Latency getLatency() {
+            return latency;
+        }
+
+        public void setLatency(Latency latency) {
+            this.latency = latency;
+        }
+
+        public double getLoss() {
+            return loss;
+        }
+
+        /**
+         * @param loss probability of the payload to be lost
+         */
+        public void setLoss(double loss) {
+            this.loss = checkProbability(loss);
+        }
+
+        public double getDuplication() {
+            return duplication;
+        }
+
+        /**
+         * @param duplication probability of the payload to be delivered twice
+         */
+        public void setDuplication(double duplication) {
+            this.duplication = checkProbability(duplication);
+        }
+
+        public double getReordering() {
+            return reordering;
+        }
+
+        /**
+         * Delay some payloads more than the latency, so the ones sent later overtake them.
+         *
+         * @param reordering probability of the payload to be delayed
+         * @param maxDelay extra delay, uniform up to this
+         */
+        public void setReordering(double reordering, Duration maxDelay) {
+            this.reordering = checkProbability(reordering);
+            reorderDelay = maxDelay;
+        }
+
+        public long getBandwidth() {
+            return bandwidth;
+        }
+
+        /**
+         * @param bytesPerSecond capacity of the link, payloads queue behind each other; 0 for unlimited
+         */
+        public void setBandwidth(long bytesPerSecond) {
+            if (bytesPerSecond < 0)
+                throw new IllegalArgumentException("bandwidth should not be negative: " + bytesPerSecond);
+            bandwidth = bytesPerSecond;
+        }
+
+        public Duration getRetransmitTimeout() {
+            return retransmitTimeout;
+        }
+
+        /**
+         * Emulate the reliable transport like {@link UDPAdapter}: the lost payload is sent again after the timeout,
+         * so the loss turns into latency. Zero, the default, drops lost payloads for good.
+         */
+        public void setRetransmitTimeout(Duration retransmitTimeout) {
+            this.retransmitTimeout = retransmitTimeout;
+        }
+
+        static private double checkProbability(double p) {
+            if (p < 0 || p > 1)
+                throw new IllegalArgumentException("probability should be from 0 to 1: " + p);
+            return p;
+        }
+    }
+
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private final Map<Integer, SimulatedDatagramAdapter> adapters = new ConcurrentHashMap<>();
+    private final Map<Long, Link> links = new HashMap<>();
+    // time the link finishes sending what is queued, by the link key
+    private final Map<Long, Long> busyUntil = new HashMap<>();
+    private Link defaultLink = new Link();
+    private long now = 0;
+    private long lastEventSeq = 0;
+
+    private long sent = 0;
+    private long sentBytes = 0;
+    private long delivered = 0;
+    private long lost = 0;
+    private long duplicated = 0;
+    private long reordered = 0;
+    private long retransmitted = 0;
+    private long undeliverable = 0;
+
+    /**
+     * @param seed of the random generator of the link models
+     */
+    public DatagramSimulator(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Create the adapter of the node attached to this network.
+     */
+    public SimulatedDatagramAdapter createAdapter(NodeInfo nodeInfo) {
+        SimulatedDatagramAdapter adapter = new SimulatedDatagramAdapter(this, nodeInfo);
+        adapters.put(nodeInfo.getId(), adapter);
+        return adapter;
+    }
+
+    /**
+     * Set the model of the links that have no own one. The model is used as is, not copied.
+     */
+    public synchronized void setDefaultLink(Link link) {
+        defaultLink = link;
+    }
+
+    /**
+     * Set the model of the link from one node to another, the opposite direction is not affected.
+     */
+    public synchronized void setLink(int fromNodeId, int toNodeId, Link link) {
+        links.put(linkKey(fromNodeId, toNodeId), link);
+    }
+
+    /**
+     * @return virtual time in nanoseconds since the simulator was created
+     */
+    public synchronized long now() {
+        return now;
+    }
+
+    /**
+     * Deliver the next payload, advancing the clock to its time.
+     *
+     * @return false if there is nothing to deliver
+     */
+    public boolean step() {
+        Event event;
+        synchronized (this) {
+            event = events.poll();
+            if (event == null)
+                return false;
+            now = Math.max(now, event.at);
+        }
+        deliver(event);
+        return true;
+    }
+
+    /**
+     * Deliver everything due during the time, and advance the clock by it.
+     *
+     * @return number of delivered payloads
+     */
+    public int runFor(Duration duration) {
+        long until;
+        synchronized (this) {
+            until = now + duration.toNanos();
+        }
+        int count = 0;
+        while (true) {
+            Event event;
+            synchronized (this) {
+                event = events.peek();
+                if (event == null || event.at > until) {
+                    now = until;
+                    return count;
+                }
+                events.poll();
+                now = Math.max(now, event.at);
+            }
+            deliver(event);
+            count++;
+        }
+    }
+
+    /**
+     * Deliver payloads until there is nothing more to deliver, including the ones sent by the receivers meanwhile.
+     * Never returns if the nodes keep talking.
+     *
+     * @return number of delivered payloads
+     */
+    public int runUntilIdle() {
+        int count = 0;
+        while (step())
+            count++;
+        return count;
+    }
+
+    /**
+     * @return number of payloads waiting for delivery
+     */
+    public synchronized int getPending() {
+        return events.size();
+    }
+
+    /**
+     * Get counters: "sent" payloads and "sent_bytes", "delivered", "lost", "duplicated", "reordered",
+     * "retransmitted" (lost and sent again, see {@link Link#setRetransmitTimeout(Duration)}), "undeliverable" (to
+     * unknown or shut down adapters), "pending" and the virtual time "now_ms".
+     */
+    public synchronized Binder getStats() {
+        return Binder.fromKeysValues(
+                "sent", sent,
+                "sent_bytes", sentBytes,
+                "delivered", delivered,
+                "lost", lost,
+                "duplicated", duplicated,
+                "reordered", reordered,
+                "retransmitted", retransmitted,
+                "undeliverable", undeliverable,
+                "pending", events.size(),
+                "now_ms", now / 1e6
+        );
+    }
+
+    synchronized void send(int fromNodeId, int toNodeId, byte[] payload) {
+        sent++;
+        sentBytes += payload.length;
+        long key = linkKey(fromNodeId, toNodeId);
+        Link link = links.getOrDefault(key, defaultLink);
+
+        // the payload leaves the node when the link has sent everything queued before it
+        long departure = now;
+        if (link.bandwidth > 0) {
+            departure = Math.max(now, busyUntil.getOrDefault(key, 0L)) + payload.length * 1_000_000_000L / link.bandwidth;
+            busyUntil.put(key, departure);
+        }
+        long retransmitNanos = link.retransmitTimeout.toNanos();
+        while (random.nextDouble() < link.loss) {
+            if (retransmitNanos <= 0) {
+                lost++;
+                return;
+            }
+            retransmitted++;
+            departure += retransmitNanos;
+        }
+        schedule(link, departure, fromNodeId, toNodeId, payload);
+        if (random.nextDouble() < link.duplication) {
+            duplicated++;
+            schedule(link, departure, fromNodeId, toNodeId, payload);
+        }
+    }
+
+    void detach(SimulatedDatagramAdapter adapter) {
+        adapters.remove(adapter.getNodeId(), adapter);
+    }
+
+    private void schedule(Link link, long departure, int fromNodeId, int toNodeId, byte[] payload) {
+        long at = departure + link.latency.sample(random);
+        if (random.nextDouble() < link.reordering) {
+            reordered++;
+            at += (long) (random.nextDouble() * link.reorderDelay.toNanos());
+        }
+        events.add(new Event(at, ++lastEventSeq, fromNodeId, toNodeId, payload));
+    }
+
+    private void deliver(Event event) {
+        SimulatedDatagramAdapter adapter = adapters.get(event.toNodeId);
+        synchronized (this) {
+            if (adapter == null) {
+                undeliverable++;
+                return;
+            }
+            delivered++;
+        }
+        adapter.deliver(event.fromNodeId, event.payload);
+    }
+
+    static private long linkKey(int fromNodeId, int toNodeId) {
+        return ((long) fromNodeId << 32) | (toNodeId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Payload to deliver. Events of the same time are delivered in the order they were scheduled.
+     */
+    static private class Event implements Comparable<Event> {
+        final long at;
+        final long seq;
+        final int fromNodeId;
+        final int toNodeId;
+        final byte[] payload;
+
+        Event(long at, long seq, int fromNodeId, int toNodeId, byte[] payload) {
+            this.at = at;
+            this.seq = seq;
+            this.fromNodeId = fromNodeId;
+            this.toNodeId = toNodeId;
+            this.payload = payload;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            int result = Long.compare(at, other.at);
+            return result != 0 ? result : Long.compare(seq, other.seq);
+        }
+    }
+}
@@ -59,6 +59,15 @@ public abstract class Network {
     public abstract Approvable getItem(HashId itemId, NodeInfo node, Duration maxTimeout)
             throws InterruptedException;
 
+    /**
+     * Called by the node when the election of the item is closed, so the network could drop what it keeps for the
+     * item. Does nothing by default.
+     *
+     * @param itemId closed item
+     */
+    public void itemClosed(HashId itemId) {
+    }
+
     /**
      * Deliver notification to all nodes except one
      *
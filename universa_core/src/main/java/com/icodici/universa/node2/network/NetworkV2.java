@@ -0,0 +1,836 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.crypto.EncryptionError;
+import com.icodici.crypto.PrivateKey;
+import com.icodici.crypto.SymmetricKey;
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.HashIdDictionary;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
+import net.sergeych.utils.Bytes;
+import net.sergeych.utils.LogPrinter;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import static java.util.Arrays.asList;
+
+/**
+ * {@link Network} of the nodes talking over {@link DatagramAdapter}, {@link UDPAdapter} by default.
+ * <p>
+ * Notifications to each node are queued and sent by the sender threads, so {@link #deliver(NodeInfo, Notification)}
+ * never blocks: notifications queued for the node meanwhile are packed together with {@link
+ * Notification#pack(java.util.Collection)} into one message. If the queue of the node is full, new notifications to
+ * it are dropped, the consensus asks for the missing votes again anyway.
+ * <p>
+ * Received notifications and item requests are processed by the delivery threads, never by the threads of the
+ * adapter, so a slow subscriber does not stall the transport. Notifications from one node are passed to the subscriber
+ * one message at a time, in the order the adapter has delivered them. Items are served from the source set with {@link
+ * #setItemSource(Function)} and transferred Boss-packed, so their classes should have serialization adapters
+ * registered.
+ * <p>
+ * Every message is a Boss-packed list of the message type and the type-specific data. The sender is the node the
+ * adapter has authenticated the message with, see {@link DatagramAdapter#receiveFrom}, so the message can't pose
+ * as coming from another node.
+ * <p>
+ * Item ids in the notifications are replaced with the short aliases of the {@link HashIdDictionary} of the receiving
+ * node, and the new definitions are sent in the same message. The node forgets the aliases of the item once its
+ * election is closed, see {@link #itemClosed(HashId)}. The message that refers to the alias defined in the message
+ * not delivered yet waits for it; if the definition does not come in {@link #ALIAS_WAIT_TIMEOUT}, e.g. the node has
+ * restarted, or there are {@link #MAX_PENDING_MESSAGES} waiting already, the message is dropped and the sender is
+ * asked to start the new dictionary.
+ * <p>
+ * Items packed larger than {@link #setBulkThreshold(int)} are not sent over the adapter, where they would take
+ * thousands of datagrams and delay the votes. The node answers with the one-time token and the fresh key instead,
+ * protected by the adapter session, and the requester downloads the item encrypted with that key over TCP from the
+ * same port number as the datagram port of the node. The bulk transfers run in their own threads, and their rate
+ * could be limited with {@link #setBulkBandwidth(long)} to leave the bandwidth to the datagram traffic.
+ */
+public class NetworkV2 extends Network {
+
+    static private LogPrinter log = new LogPrinter("NET2");
+
+    /**
+     * Max number of notifications waiting to be sent to one node
+     */
+    static public final int MAX_QUEUED_NOTIFICATIONS = 10000;
+
+    /**
+     * Max number of notifications packed into one message
+     */
+    static public final int MAX_NOTIFICATIONS_PER_MESSAGE = 64;
+
+    /**
+     * Number of threads sending queued notifications
+     */
+    static public final int SENDER_THREADS = 2;
+
+    /**
+     * Number of threads passing received notifications to the subscriber and serving item requests
+     */
+    static public final int DELIVERY_THREADS = 4;
+
+    /**
+     * Number of threads serving bulk transfers, and as many downloading them. The pools are separate, so two nodes
+     * downloading from each other do not wait for each other's threads.
+     */
+    static public final int BULK_THREADS = 2;
+
+    /**
+     * Default size of the packed item, in bytes, from which it is transferred over the bulk channel
+     */
+    static public final int BULK_THRESHOLD = 32 * 1024;
+
+    /**
+     * Max size of the item transferred over the bulk channel
+     */
+    static public final int MAX_BULK_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Time the requester has to start downloading the bulk transfer, and the max silence during the transfer
+     */
+    static public final Duration BULK_TRANSFER_TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Time the connected requester has to send the token of the bulk transfer, so idle connections do not hold the
+     * serving threads
+     */
+    static public final Duration BULK_TOKEN_TIMEOUT = Duration.ofSeconds(2);
+
+    /**
+     * Time the message with the unknown item id alias waits for the definition
+     */
+    static public final Duration ALIAS_WAIT_TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * Max number of messages from one node waiting for the alias definitions
+     */
+    static public final int MAX_PENDING_MESSAGES = 1000;
+
+    private static final int MESSAGE_NOTIFICATIONS = 1;
+    private static final int MESSAGE_GET_ITEM = 2;
+    private static final int MESSAGE_ITEM = 3;
+    private static final int MESSAGE_ITEM_BULK = 4;
+    private static final int MESSAGE_RESET_ALIASES = 5;
+
+    private static final int BULK_TOKEN_SIZE = 16;
+    private static final int BULK_CHUNK_SIZE = 64 * 1024;
+    // IPTOS_THROUGHPUT, so the routers that care could prefer the datagrams
+    private static final int BULK_TRAFFIC_CLASS = 0x08;
+
+    private final NetConfig netConfig;
+    private final NodeInfo myInfo;
+    private final DatagramAdapter adapter;
+
+    private final Executor senders;
+    private final Executor delivery;
+    private final Executor bulkServers;
+    private final Executor bulkDownloads;
+    // pools of the own threads, to stop with shutdown()
+    private final List<ExecutorService> pools = new ArrayList<>();
+    private final ServerSocket bulkSocket;
+
+    private final ConcurrentHashMap<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Inbound> inbounds = new ConcurrentHashMap<>();
+
+    private volatile Consumer<Notification> consumer;
+    private volatile Function<HashId, Approvable> itemSource;
+
+    private final AtomicInteger lastRequestId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, CompletableFuture<Approvable>> itemRequests = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Bytes, BulkTransfer> bulkTransfers = new ConcurrentHashMap<>();
+    private volatile int bulkThreshold = BULK_THRESHOLD;
+    private volatile Duration aliasWaitTimeout = ALIAS_WAIT_TIMEOUT;
+    private volatile long bulkBandwidth = 0;
+    // time the bulk channel may send the next chunk at, for the bandwidth limit
+    private long bulkFreeAt = 0;
+
+    private final AtomicLong droppedNotifications = new AtomicLong();
+    private final AtomicLong sentMessages = new AtomicLong();
+    private final AtomicLong receivedMessages = new AtomicLong();
+    private final AtomicLong bulkSent = new AtomicLong();
+    private final AtomicLong bulkSentBytes = new AtomicLong();
+    private final AtomicLong bulkReceived = new AtomicLong();
+    private final AtomicLong bulkFailures = new AtomicLong();
+    private final AtomicLong droppedMessages = new AtomicLong();
+    private final AtomicLong aliasResets = new AtomicLong();
+
+    /**
+     * Create the network listening with {@link UDPAdapter} at the address of the node.
+     *
+     * @param netConfig all nodes of the network
+     * @param myInfo this node
+     * @param myKey private key of this node
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey) throws IOException {
+        this(netConfig, myInfo, new UDPAdapter(myKey, new SymmetricKey(), myInfo));
+    }
+
+    /**
+     * Create the network over the given adapter. The network owns the adapter from now on and shuts it down with
+     * {@link #shutdown()}. If the bulk channel could not listen at the port of the node, items of any size are sent
+     * over the adapter.
+     *
+     * @param netConfig all nodes of the network
+     * @param myInfo this node
+     * @param adapter the adapter of this node
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, DatagramAdapter adapter) {
+        this(netConfig, myInfo, adapter, null);
+    }
+
+    /**
+     * Create the network over the given adapter that runs all its work with the executor instead of its own threads,
+     * and has no bulk channel. With the executor that runs the tasks in place, {@code Runnable::run}, the network works
+     * in the threads that call it and the adapter delivers in: over {@link DatagramSimulator} all nodes run in the
+     * thread that drives the simulator, and the same seed gives the same run. {@link #getItem(HashId, NodeInfo,
+     * Duration)} waits for the answer, so it can't be called from that thread, and the alias wait timeout goes by the
+     * wall clock, not by the virtual one.
+     *
+     * @param netConfig all nodes of the network
+     * @param myInfo this node
+     * @param adapter the adapter of this node
+     * @param executor to run the work with, null for the own threads and the bulk channel
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, DatagramAdapter adapter, Executor executor) {
+        super(netConfig);
+        this.netConfig = netConfig;
+        this.myInfo = myInfo;
+        this.adapter = adapter;
+        if (executor == null) {
+            senders = newPool(SENDER_THREADS, "NET2-sender-" + myInfo.getId());
+            delivery = newPool(DELIVERY_THREADS, "NET2-delivery-" + myInfo.getId());
+            bulkServers = newPool(BULK_THREADS, "NET2-bulk-server-" + myInfo.getId());
+            bulkDownloads = newPool(BULK_THREADS, "NET2-bulk-download-" + myInfo.getId());
+            bulkSocket = listenBulk();
+        } else {
+            senders = delivery = bulkServers = bulkDownloads = executor;
+            bulkSocket = null;
+        }
+        adapter.receiveFrom(this::onReceived);
+    }
+
+    @Override
+    public void deliver(NodeInfo toNode, Notification notification) {
+        Peer peer = peers.computeIfAbsent(toNode.getId(), id -> new Peer(toNode));
+        peer.add(notification);
+    }
+
+    @Override
+    public void subscribe(NodeInfo forNode, Consumer<Notification> notificationConsumer) {
+        consumer = notificationConsumer;
+    }
+
+    /**
+     * Forget the aliases of the item id for all nodes.
+     */
+    @Override
+    public void itemClosed(HashId itemId) {
+        for (Peer peer : peers.values())
+            peer.aliases.forget(itemId);
+    }
+
+    /**
+     * Set the source of the items this node serves to the others, usually {@code node::getItem}. Without it, all item
+     * requests are answered with nothing.
+     */
+    public void setItemSource(Function<HashId, Approvable> itemSource) {
+        this.itemSource = itemSource;
+    }
+
+    /**
+     * Set the size of the packed item, in bytes, from which it is sent over the bulk channel, {@link
+     * Integer#MAX_VALUE} to send everything over the adapter. Defaults to {@link #BULK_THRESHOLD}.
+     */
+    public void setBulkThreshold(int bulkThreshold) {
+        if (bulkThreshold < 0)
+            throw new IllegalArgumentException("bulk threshold should not be negative: " + bulkThreshold);
+        this.bulkThreshold = bulkThreshold;
+    }
+
+    /**
+     * Limit the rate all bulk transfers from this node are sent with, so they do not saturate the link and delay the
+     * notifications.
+     *
+     * @param bytesPerSecond the limit, 0 (the default) for none
+     */
+    public void setBulkBandwidth(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("bulk bandwidth should not be negative: " + bytesPerSecond);
+        bulkBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * Set the time the message with the unknown item id alias waits for the definition, {@link #ALIAS_WAIT_TIMEOUT}
+     * by default.
+     */
+    public void setAliasWaitTimeout(Duration aliasWaitTimeout) {
+        if (aliasWaitTimeout.isNegative() || aliasWaitTimeout.isZero())
+            throw new IllegalArgumentException("alias wait timeout should be positive: " + aliasWaitTimeout);
+        this.aliasWaitTimeout = aliasWaitTimeout;
+    }
+
+    @Override
+    public Approvable getItem(HashId itemId, NodeInfo node, Duration maxTimeout) throws InterruptedException {
+        int requestId = lastRequestId.incrementAndGet();
+        CompletableFuture<Approvable> result = new CompletableFuture<>();
+        itemRequests.put(requestId, result);
+        try {
+            send(node, MESSAGE_GET_ITEM, requestId, itemId.getDigest());
+            return result.get(maxTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.d("%d: getItem %s from %d timed out", myInfo.getId(), itemId, node.getId());
+            return null;
+        } catch (ExecutionException | EncryptionError e) {
+            log.e("%d: getItem %s from %d failed: %s", myInfo.getId(), itemId, node.getId(), e.getMessage());
+            return null;
+        } finally {
+            itemRequests.remove(requestId);
+        }
+    }
+
+    /**
+     * Get counters: "dropped_notifications" (the queue of the node was full), "sent_messages", "received_messages",
+     * "queued", notifications waiting to be sent by the node id, "dropped_messages" (the item id alias definitions
+     * have not come), "alias_resets" (the nodes asked to start the new dictionary), "aliases", the item id aliases
+     * used with the node by its id, and the bulk channel ones: "bulk_sent" and "bulk_sent_bytes" served,
+     * "bulk_received" downloaded, "bulk_failures" of both.
+     */
+    public Binder getStats() {
+        Binder queued = new Binder();
+        Binder aliases = new Binder();
+        for (Peer peer : peers.values()) {
+            queued.put(String.valueOf(peer.node.getId()), peer.size.get());
+            aliases.put(String.valueOf(peer.node.getId()), peer.aliases.size());
+        }
+        return Binder.fromKeysValues(
+                "dropped_notifications", droppedNotifications.get(),
+                "sent_messages", sentMessages.get(),
+                "received_messages", receivedMessages.get(),
+                "queued", queued,
+                "dropped_messages", droppedMessages.get(),
+                "alias_resets", aliasResets.get(),
+                "aliases", aliases,
+                "bulk_sent", bulkSent.get(),
+                "bulk_sent_bytes", bulkSentBytes.get(),
+                "bulk_received", bulkReceived.get(),
+                "bulk_failures", bulkFailures.get()
+        );
+    }
+
+    /**
+     * Stop the threads, the bulk channel and the adapter. Queued notifications are not sent.
+     */
+    public void shutdown() {
+        for (ExecutorService pool : pools)
+            pool.shutdownNow();
+        if (bulkSocket != null) {
+            try {
+                bulkSocket.close();
+            } catch (IOException e) {
+                log.e("%d: failed to close bulk socket: %s", myInfo.getId(), e.getMessage());
+            }
+        }
+        adapter.shutdown();
+        for (CompletableFuture<Approvable> request : itemRequests.values())
+            request.complete(null);
+    }
+
+    /**
+     * @return the adapter the network works over
+     */
+    public DatagramAdapter getAdapter() {
+        return adapter;
+    }
+
+    private void send(NodeInfo node, Object... data) throws EncryptionError, InterruptedException {
+        adapter.send(node, Boss.pack(asList(data)));
+        sentMessages.incrementAndGet();
+    }
+
+    /**
+     * Called by the adapter threads, so only decodes the header and passes the message on.
+     *
+     * @param senderId id of the node the adapter has received the message from
+     */
+    private void onReceived(int senderId, byte[] payload) {
+        try {
+            NodeInfo from = netConfig.getInfo(senderId);
+            if (from == null) {
+                log.e("%d: message from unknown node %d", myInfo.getId(), senderId);
+                return;
+            }
+            List<Object> message = Boss.load(payload);
+            int type = ((Number) message.get(0)).intValue();
+            receivedMessages.incrementAndGet();
+            switch (type) {
+                case MESSAGE_NOTIFICATIONS:
+                    Inbound inbound = inbounds.computeIfAbsent(from.getId(), id -> new Inbound(from));
+                    inbound.execute(() -> deliverNotifications(inbound, message));
+                    break;
+                case MESSAGE_RESET_ALIASES:
+                    Peer peer = peers.get(from.getId());
+                    if (peer != null)
+                        peer.resetAliases(((Number) message.get(1)).intValue());
+                    break;
+                case MESSAGE_GET_ITEM:
+                    delivery.execute(() -> serveItem(from, ((Number) message.get(1)).intValue(),
+                            HashId.withDigest(((Bytes) message.get(2)).toArray())));
+                    break;
+                case MESSAGE_ITEM_BULK:
+                    CompletableFuture<Approvable> bulkRequest = itemRequests.get(((Number) message.get(1)).intValue());
+                    if (bulkRequest != null) {
+                        Bytes token = (Bytes) message.get(2);
+                        SymmetricKey key = new SymmetricKey(((Bytes) message.get(3)).toArray());
+                        int size = ((Number) message.get(4)).intValue();
+                        bulkDownloads.execute(() -> downloadBulk(from, token, key, size, bulkRequest));
+                    }
+                    break;
+                case MESSAGE_ITEM:
+                    CompletableFuture<Approvable> request = itemRequests.get(((Number) message.get(1)).intValue());
+                    if (request != null) {
+                        Object packedItem = message.get(2);
+                        delivery.execute(() -> {
+                            try {
+                                Approvable item = packedItem == null ? null : Boss.load(((Bytes) packedItem).toArray());
+                                request.complete(item);
+                            } catch (Exception e) {
+                                request.completeExceptionally(e);
+                            }
+                        });
+                    }
+                    break;
+                default:
+                    log.e("%d: unknown message type %d from %d", myInfo.getId(), type, from.getId());
+            }
+        } catch (RejectedExecutionException e) {
+            // shut down
+        } catch (Exception e) {
+            log.e("%d: bad message: %s", myInfo.getId(), e.getMessage());
+        }
+    }
+
+    private void deliverNotifications(Inbound inbound, List<Object> message) {
+        NodeInfo from = inbound.node;
+        List<Notification> notifications;
+        try {
+            byte[] packed = ((Bytes) message.get(1)).toArray();
+            if (message.size() > 2) {
+                notifications = inbound.receive(packed, ((Number) message.get(2)).intValue(),
+                        (List<?>) message.get(3), (List<?>) message.get(4));
+            } else
+                notifications = Notification.unpack(from, packed);
+        } catch (IOException | ClassCastException e) {
+            log.e("%d: bad notifications from %d: %s", myInfo.getId(), from.getId(), e.getMessage());
+            return;
+        }
+        Consumer<Notification> c = consumer;
+        if (c == null)
+            return;
+        try {
+            for (Notification notification : notifications)
+                c.accept(notification);
+        } catch (Exception e) {
+            log.wtf(myInfo.getId() + ": subscriber failed", e);
+        }
+    }
+
+    private void serveItem(NodeInfo to, int requestId, HashId itemId) {
+        try {
+            Function<HashId, Approvable> source = itemSource;
+            Approvable item = source == null ? null : source.apply(itemId);
+            byte[] packed = item == null ? null : Boss.pack(item);
+            if (packed != null && packed.length > bulkThreshold && bulkSocket != null && packed.length <= MAX_BULK_SIZE) {
+                SymmetricKey key = new SymmetricKey();
+                Bytes token = new Bytes(Do.randomBytes(BULK_TOKEN_SIZE));
+                byte[] encrypted = key.etaEncrypt(packed);
+                addBulkTransfer(token, new BulkTransfer(encrypted));
+                send(to, MESSAGE_ITEM_BULK, requestId, token.toArray(), key.getKey(), encrypted.length);
+            } else
+                send(to, MESSAGE_ITEM, requestId, packed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.e("%d: failed to serve %s to %d: %s", myInfo.getId(), itemId, to.getId(), e.getMessage());
+        }
+    }
+
+    private ServerSocket listenBulk() {
+        try {
+            ServerSocket socket = new ServerSocket(myInfo.getNodeAddress().getPort());
+            Thread thread = new Thread(() -> acceptBulk(socket), "NET2-bulk-accept-" + myInfo.getId());
+            thread.setDaemon(true);
+            thread.start();
+            return socket;
+        } catch (IOException e) {
+            log.e("%d: bulk channel is off, failed to listen: %s", myInfo.getId(), e.getMessage());
+            return null;
+        }
+    }
+
+    private void acceptBulk(ServerSocket socket) {
+        while (!socket.isClosed()) {
+            try {
+                Socket connection = socket.accept();
+                bulkServers.execute(() -> serveBulk(connection));
+            } catch (SocketException | RejectedExecutionException e) {
+                // shut down
+                return;
+            } catch (IOException e) {
+                log.e("%d: bulk accept failed: %s", myInfo.getId(), e.getMessage());
+            }
+        }
+    }
+
+    private void addBulkTransfer(Bytes token, BulkTransfer transfer) {
+        // abandoned transfers are dropped when the next one comes
+        bulkTransfers.values().removeIf(BulkTransfer::isExpired);
+        bulkTransfers.put(token, transfer);
+    }
+
+    private void serveBulk(Socket connection) {
+        try (Socket s = connection) {
+            s.setSoTimeout((int) BULK_TOKEN_TIMEOUT.toMillis());
+            s.setTrafficClass(BULK_TRAFFIC_CLASS);
+            byte[] token = new byte[BULK_TOKEN_SIZE];
+            new DataInputStream(s.getInputStream()).readFully(token);
+            s.setSoTimeout((int) BULK_TRANSFER_TIMEOUT.toMillis());
+            BulkTransfer transfer = bulkTransfers.remove(new Bytes(token));
+            if (transfer == null || transfer.isExpired()) {
+                log.d("%d: unknown bulk token from %s", myInfo.getId(), s.getRemoteSocketAddress());
+                bulkFailures.incrementAndGet();
+                return;
+            }
+            OutputStream out = s.getOutputStream();
+            byte[] data = transfer.data;
+            for (int offset = 0; offset < data.length; offset += BULK_CHUNK_SIZE) {
+                int length = Math.min(BULK_CHUNK_SIZE, data.length - offset);
+                pace(length);
+                out.write(data, offset, length);
+            }
+            out.flush();
+            s.shutdownOutput();
+            bulkSent.incrementAndGet();
+            bulkSentBytes.addAndGet(data.length);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.e("%d: bulk transfer failed: %s", myInfo.getId(), e.getMessage());
+            bulkFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wait until the chunk fits the bulk bandwidth limit.
+     */
+    private void pace(int length) throws InterruptedException {
+        long bandwidth = bulkBandwidth;
+        if (bandwidth <= 0)
+            return;
+        long wait;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, bulkFreeAt);
+            bulkFreeAt = start + length * 1_000_000_000L / bandwidth;
+            wait = start - now;
+        }
+        if (wait > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private void downloadBulk(NodeInfo from, Bytes token, SymmetricKey key, int size,
+                              CompletableFuture<Approvable> request) {
+        if (size < 0 || size > MAX_BULK_SIZE) {
+            request.completeExceptionally(new IOException("bad bulk transfer size: " + size));
+            return;
+        }
+        InetSocketAddress address = from.getNodeAddress();
+        try (Socket s = new Socket()) {
+            s.setTrafficClass(BULK_TRAFFIC_CLASS);
+            s.setSoTimeout((int) BULK_TRANSFER_TIMEOUT.toMillis());
+            s.connect(address, (int) BULK_TRANSFER_TIMEOUT.toMillis());
+            s.getOutputStream().write(token.toArray());
+            byte[] encrypted = new byte[size];
+            new DataInputStream(s.getInputStream()).readFully(encrypted);
+            Approvable item = Boss.load(key.etaDecrypt(encrypted));
+            bulkReceived.incrementAndGet();
+            request.complete(item);
+        } catch (Exception e) {
+            bulkFailures.incrementAndGet();
+            request.completeExceptionally(e);
+        }
+    }
+
+    private ExecutorService newPool(int threads, String name) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads, daemonThreads(name));
+        pools.add(pool);
+        return pool;
+    }
+
+    static private ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Encrypted item waiting for the requester to download it.
+     */
+    static private class BulkTransfer {
+        private final byte[] data;
+        private final long expiresAt = System.nanoTime() + BULK_TRANSFER_TIMEOUT.toNanos();
+
+        BulkTransfer(byte[] data) {
+            this.data = data;
+        }
+
+        boolean isExpired() {
+            return System.nanoTime() - expiresAt > 0;
+        }
+    }
+
+    /**
+     * Item id aliases of the node and its messages waiting for the definitions. Keeps the decoder of the previous
+     * epoch too, for the messages sent before the reset but delivered after. At most one delivery thread processes
+     * the messages of the node at a time, so they reach the subscriber in order.
+     */
+    private class Inbound {
+        private final NodeInfo node;
+        private final LinkedHashMap<Integer, HashIdDictionary.Decoder> decoders = new LinkedHashMap<>();
+        private final List<PendingMessage> pending = new ArrayList<>();
+        private int resetEpoch = 0;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Inbound(NodeInfo node) {
+            this.node = node;
+        }
+
+        /**
+         * Run the task with the delivery threads after the ones of this node passed before.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    delivery.execute(this::runTasks);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+        }
+
+        private void runTasks() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+            } finally {
+                scheduled.set(false);
+            }
+            // the task added after the queue was found empty, but before the flag is cleared
+            if (!tasks.isEmpty())
+                schedule();
+        }
+
+        synchronized List<Notification> receive(byte[] packed, int epoch, List<?> definitions, List<?> forgotten)
+                throws IOException {
+            HashIdDictionary.Decoder decoder = decoders.get(epoch);
+            if (decoder == null) {
+                decoder = new HashIdDictionary.Decoder(epoch);
+                decoders.put(epoch, decoder);
+                if (decoders.size() > 2) {
+                    Iterator<Integer> oldest = decoders.keySet().iterator();
+                    int dropped = oldest.next();
+                    oldest.remove();
+                    pending.removeIf(m -> m.epoch == dropped);
+                }
+            }
+            decoder.update(definitions, forgotten);
+
+            List<Notification> result = new ArrayList<>();
+            PendingMessage message = new PendingMessage(epoch, packed);
+            boolean unpacked = message.tryUnpack(result);
+            // the message could have defined the aliases the waiting ones refer to. The expired ones are dropped even
+            // if the message waits too, e.g. after this node has restarted and knows no aliases at all
+            Iterator<PendingMessage> it = pending.iterator();
+            while (it.hasNext()) {
+                PendingMessage m = it.next();
+                if (m.tryUnpack(result))
+                    it.remove();
+                else if (m.isExpired()) {
+                    it.remove();
+                    droppedMessages.incrementAndGet();
+                    requestReset(m.epoch);
+                }
+            }
+            if (!unpacked) {
+                if (pending.size() < MAX_PENDING_MESSAGES)
+                    pending.add(message);
+                else {
+                    droppedMessages.incrementAndGet();
+                    requestReset(epoch);
+                }
+            }
+            return result;
+        }
+
+        private void requestReset(int epoch) {
+            if (resetEpoch == epoch)
+                return;
+            resetEpoch = epoch;
+            log.d("%d: item id aliases from %d are lost, asking to reset", myInfo.getId(), node.getId());
+            try {
+                send(node, MESSAGE_RESET_ALIASES, epoch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (EncryptionError e) {
+                log.e("%d: failed to reset aliases of %d: %s", myInfo.getId(), node.getId(), e.getMessage());
+            }
+        }
+
+        private class PendingMessage {
+            private final int epoch;
+            private final byte[] packed;
+            private final long expiresAt = System.nanoTime() + aliasWaitTimeout.toNanos();
+
+            PendingMessage(int epoch, byte[] packed) {
+                this.epoch = epoch;
+                this.packed = packed;
+            }
+
+            boolean tryUnpack(List<Notification> result) throws IOException {
+                try {
+                    result.addAll(Notification.unpack(node, packed, decoders.get(epoch)));
+                    return true;
+                } catch (HashIdDictionary.UnknownAliasException e) {
+                    return false;
+                }
+            }
+
+            boolean isExpired() {
+                return System.nanoTime() - expiresAt > 0;
+            }
+        }
+    }
+
+    /**
+     * Outbound queue of the node. At most one sender thread drains it at a time, so the notifications to the node are
+     * sent in order.
+     */
+    private class Peer {
+        private final NodeInfo node;
+        private final ConcurrentLinkedQueue<Notification> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile HashIdDictionary.Encoder aliases = new HashIdDictionary.Encoder();
+
+        Peer(NodeInfo node) {
+            this.node = node;
+        }
+
+        /**
+         * The node has lost the aliases of the epoch, start the new one.
+         */
+        void resetAliases(int epoch) {
+            if (aliases.getEpoch() == epoch) {
+                aliases = new HashIdDictionary.Encoder();
+                aliasResets.incrementAndGet();
+                log.d("%d: item id aliases to %d are reset", myInfo.getId(), node.getId());
+            }
+        }
+
+        void add(Notification notification) {
+            if (size.incrementAndGet() > MAX_QUEUED_NOTIFICATIONS) {
+                size.decrementAndGet();
+                droppedNotifications.incrementAndGet();
+                return;
+            }
+            queue.add(notification);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    senders.execute(this::drain);
+                } catch (RejectedExecutionException e) {
+                    // shut down
+                }
+            }
+        }
+
+        private void drain() {
+            try {
+                List<Notification> batch = new ArrayList<>();
+                Notification notification;
+                while (true) {
+                    while (batch.size() < MAX_NOTIFICATIONS_PER_MESSAGE && (notification = queue.poll()) != null)
+                        batch.add(notification);
+                    if (batch.isEmpty())
+                        break;
+                    size.addAndGet(-batch.size());
+                    HashIdDictionary.Encoder encoder = aliases;
+                    byte[] packed = Notification.pack(batch, encoder);
+                    List<Object> definitions = encoder.takeDefinitions();
+                    List<Integer> forgotten = encoder.takeForgotten();
+                    try {
+                        send(node, MESSAGE_NOTIFICATIONS, packed, encoder.getEpoch(), definitions, forgotten);
+                    } catch (Exception e) {
+                        // the definitions are taken and the node will never get them, so start the new dictionary
+                        if (aliases == encoder)
+                            aliases = new HashIdDictionary.Encoder();
+                        throw e;
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.wtf(myInfo.getId() + ": failed to send notifications to " + node.getId(), e);
+            } finally {
+                scheduled.set(false);
+            }
+            // the notification added after the queue was found empty, but before the flag is cleared
+            if (!queue.isEmpty())
+                schedule();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017, All Rights Reserved
+ *
+ * Written by Stepan Mamontov <micromillioner@yahoo.com>
+ */
+
+package com.icodici.universa.node2.network;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of the datagram payloads, negotiated per session. Nodes advertise the names of the codecs they support
+ * and the responder picks the first one of the initiator's list it knows too.
+ * <p>
+ * The only codec for now is deflate with the preset dictionary of the tokens frequent in Boss-packed contracts and
+ * notifications, so even small payloads compress well. The dictionary is part of the codec: any change to it needs
+ * the new codec name.
+ */
+public class PayloadCodec {
+
+    /**
+     * Deflate with {@link #DICTIONARY}
+     */
+    static public final String DEFLATE = "deflate/1";
+
+    /**
+     * Codecs this node supports, in the order of preference
+     */
+    static public final List<String> SUPPORTED = Arrays.asList(DEFLATE);
+
+    /**
+     * Payloads shorter than this are sent as is: they fit the single packet anyway
+     */
+    static public final int COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * Max size of the decompressed payload, larger ones are rejected
+     */
+    static public final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    // the most frequent tokens should go last, deflate finds the closer matches cheaper
+    static private final byte[] DICTIONARY = (
+            "ChangeNumberPermissionSplitJoinPermissionModifyDataPermissionRevokePermissionChangeOwnerPermission" +
+            "UniversaContractKeyRecordRoleLinkListRoleSimpleRoletransactionalreferencesunicapsulebinders" +
+            "target_namecreated_byapi_levelbranch_idrevokingpermissionsdefinitionsignaturescontractparent" +
+            "originrevisionexpires_atcreated_atcreatorissuerownerrolesstatedatakeysmodeany_ofname__t"
+    ).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * @return the first codec of the remote's list this node supports, or null
+     */
+    static public String choose(List<?> remoteCodecs) {
+        if (remoteCodecs != null) {
+            for (Object codec : remoteCodecs) {
+                if (SUPPORTED.contains(codec.toString()))
+                    return codec.toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return compressed payload, or null if it is too short or does not get smaller
+     */
+    static public byte[] compress(byte[] payload) {
+        if (payload.length < COMPRESSION_THRESHOLD)
+            return null;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(payload);
+            deflater.finish();
+            // no use of the output as large as the input
+            byte[] buffer = new byte[payload.length];
+            int size = 0;
+            while (!deflater.finished() && size < buffer.length)
+                size += deflater.deflate(buffer, size, buffer.length - size);
+            if (!deflater.finished())
+                return null;
+            return Arrays.copyOf(buffer, size);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static public byte[] decompress(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int size = inflater.inflate(buffer);
+                if (size == 0) {
+                    if (inflater.needsDictionary())
+                        inflater.setDictionary(DICTIONARY);
+                    else if (inflater.needsInput())
+                        throw new IOException("compressed payload is truncated");
+                }
+                out.write(buffer, 0, size);
+                if (out.size() > MAX_PAYLOAD_SIZE)
+                    throw new IOException("decompressed payload is too large");
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IOException("bad compressed payload: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+}
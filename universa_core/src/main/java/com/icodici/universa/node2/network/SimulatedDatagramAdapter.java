@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.utils.LogPrinter;
+
+/**
+ * {@link DatagramAdapter} of the in-process {@link DatagramSimulator} network, created with {@link
+ * DatagramSimulator#createAdapter(NodeInfo)}. Payloads are passed as is, there are no packets, encryption and
+ * handshakes: the link models of the simulator stand for the whole transport, and payloads are delivered in the
+ * thread that runs the simulator.
+ */
+public class SimulatedDatagramAdapter extends DatagramAdapter {
+
+    static private LogPrinter log = new LogPrinter("SDGA");
+
+    private final DatagramSimulator simulator;
+    private volatile boolean closed = false;
+
+    SimulatedDatagramAdapter(DatagramSimulator simulator, NodeInfo myNodeInfo) {
+        super(null, null, myNodeInfo);
+        this.simulator = simulator;
+    }
+
+    @Override
+    public void send(NodeInfo destination, byte[] payload) {
+        if (closed) {
+            log.d("%d: send after shutdown ignored", myNodeInfo.getId());
+            return;
+        }
+        simulator.send(myNodeInfo.getId(), destination.getId(), payload.clone());
+    }
+
+    /**
+     * Detach from the simulator, payloads to this node are not delivered from now on.
+     */
+    @Override
+    public void shutdown() {
+        closed = true;
+        simulator.detach(this);
+    }
+
+    int getNodeId() {
+        return myNodeInfo.getId();
+    }
+}
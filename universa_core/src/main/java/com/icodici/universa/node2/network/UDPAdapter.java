@@ -7,39 +7,259 @@
 package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.*;
-import com.icodici.universa.Errors;
 import com.icodici.universa.node2.NodeInfo;
 import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.Do;
+import net.sergeych.tools.HashedWheelTimer;
 import net.sergeych.utils.Bytes;
 import net.sergeych.utils.LogPrinter;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.util.*;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Arrays.asList;
 
+/**
+ * UDP implementation of the {@link DatagramAdapter}.
+ * <p>
+ * Blocks are split to packets, and every packet sent within a session gets a sequence number. The receiver
+ * acknowledges packets with the cumulative sequence number (all packets below it are received) and a bitmap of the
+ * packets received beyond it (selective acknowledgement). Acknowledgements are piggybacked on every outgoing packet;
+ * if there is nothing to send, a header-only datagram is sent once the received batch is processed. The sender keeps
+ * up to {@link #SEND_WINDOW} packets in flight and retransmits single packets, either when their retransmission timeout
+ * computed from the measured round-trip time expires, or when {@link #FAST_RETRANSMIT_THRESHOLD} later packets are
+ * already acknowledged.
+ * <p>
+ * Packets to the same node are coalesced: everything the session has to send at the moment (small blocks,
+ * retransmissions, acknowledgements) is packed into as few datagrams as the MTU of the node allows. While a worker
+ * processes a batch of incoming datagrams, the sessions it touches are corked, so the replies and acknowledgements
+ * of the whole batch go out together. The MTU starts at {@link #MAX_PACKET_SIZE} and, if a larger one is set for the
+ * node, is raised by probing the path with padded datagrams the remote confirms.
+ * <p>
+ * Each session limits its packets in flight with the AIMD congestion window: it grows by a packet per acknowledged
+ * packet in slow start and by a packet per window after {@code ssthresh}, and is halved once per window of data on
+ * the fast retransmit, or dropped to {@link #MIN_CWND} on the timeout. Datagrams are paced with a token bucket at
+ * the rate of the window per smoothed round-trip time, and all sessions share the optional egress limit, see {@link
+ * #setEgressLimit(long)}. Counters are available with {@link #getStats()}, and the last packets sent and received
+ * could be kept for the diagnostics, see {@link #setPacketTrace(int)}. Protocol events are logged at the debug level
+ * only.
+ * <p>
+ * Once the session is established, each node issues the other a session ticket: the resumption secret derived from
+ * the session key, encrypted with the key only the issuer can derive from its private key. The next session with the
+ * issuer, including after its restart, starts with RESUME carrying the ticket and the proof of the secret, and is
+ * established in one round trip with no RSA operations. If the ticket is not accepted, the issuer answers with NACK
+ * and the full handshake follows.
+ * <p>
+ * The initiator advertises the {@link PayloadCodec codecs} it supports in KEY_REQ or RESUME, and the responder
+ * answers with the one it has chosen. Data payloads of the session are then compressed before the encryption when it
+ * makes them smaller.
+ */
 public class UDPAdapter extends DatagramAdapter {
 
     static private LogPrinter log = new LogPrinter("UDPA");
 
-    private DatagramSocket socket;
-    private DatagramPacket receivedDatagram;
+    /**
+     * Max number of datagrams read from the channel in one pass before they are handed to workers.
+     */
+    static public final int RECEIVE_BATCH_SIZE = 64;
+
+    /**
+     * Requested size of the OS receive buffer, large enough to absorb broadcast bursts while workers are busy.
+     */
+    static public final int SOCKET_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Max size of the buffers of the received datagrams waiting for one worker, in bytes. When the worker falls
+     * behind, datagrams beyond it are dropped like the ones the socket buffer has no room for.
+     */
+    static public final long WORKER_BACKLOG = 4 * 1024 * 1024;
+
+    /**
+     * Max number of unacknowledged packets of the session, packets beyond it wait for acknowledgements.
+     */
+    static public final int SEND_WINDOW = 256;
+
+    /**
+     * Number of sequence numbers past the first missing one the receiver accepts. Should not be less than
+     * {@link #SEND_WINDOW}, packets beyond it are dropped.
+     */
+    static public final int RECEIVE_WINDOW = 1024;
+
+    /**
+     * Retransmission timeout before the round-trip time is measured, in milliseconds
+     */
+    static public final long INITIAL_RTO = 250;
+
+    /**
+     * Lower bound of the retransmission timeout, in milliseconds. The upper bound is {@link #RETRANSMIT_TIME}.
+     */
+    static public final long MIN_RTO = 20;
+
+    /**
+     * Resolution of the session timers: retransmission, MTU probing, pacing and the session timeouts, in milliseconds
+     */
+    static public final long RETRANSMIT_TICK = 10;
+
+    /**
+     * Number of packets acknowledged after the unacknowledged one to consider it lost without waiting for the timeout
+     */
+    static public final int FAST_RETRANSMIT_THRESHOLD = 3;
+
+    /**
+     * While the remote keeps sending something, a packet is retransmitted beyond {@link #RETRANSMIT_MAX_ATTEMPTS}, up
+     * to this number of times.
+     */
+    static public final int RETRANSMIT_MAX_ATTEMPTS_ALIVE = RETRANSMIT_MAX_ATTEMPTS * 4;
+
+    /**
+     * Number of MTU probes of the same size sent before the size is considered not passing the path
+     */
+    static public final int MTU_PROBE_ATTEMPTS = 3;
+
+    /**
+     * MTU probing stops when the passing and failing sizes differ by less than this number of bytes
+     */
+    static public final int MTU_PROBE_PRECISION = 32;
 
-    private SocketListenThread socketListenThread;
+    /**
+     * Congestion window of the new session, in packets
+     */
+    static public final int INITIAL_CWND = 16;
+
+    /**
+     * Congestion window never goes below this number of packets
+     */
+    static public final int MIN_CWND = 2;
+
+    /**
+     * Pacing rate is the congestion window per round-trip time multiplied by this gain, so pacing itself does not
+     * limit the window
+     */
+    static public final double PACING_GAIN = 1.25;
+
+    /**
+     * Number of full-sized datagrams the session could send back to back
+     */
+    static public final int PACING_BURST = 4;
+
+    /**
+     * Incomplete block is dropped if no packet of it is received for this time, in milliseconds. Missing packets are
+     * retransmitted at least once per {@link #RETRANSMIT_TIME} while the sender is alive, and the received ones are
+     * never sent again, so the timeout should outlast a long series of losses.
+     */
+    static public final long REASSEMBLY_TIMEOUT = RETRANSMIT_TIME * RETRANSMIT_MAX_ATTEMPTS;
+
+    /**
+     * Max size of the payload of incomplete blocks kept by the adapter, in bytes. Least recently updated blocks are
+     * dropped beyond it.
+     */
+    static public final long REASSEMBLY_BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * Time the session ticket could be used to resume the session, in milliseconds
+     */
+    static public final long SESSION_TICKET_LIFETIME = TimeUnit.HOURS.toMillis(12);
+
+    /**
+     * Handshake nothing was sent or received by for this time is started over, in milliseconds. Lost handshake
+     * packets are retransmitted meanwhile, this is for the remote that has acknowledged them and does not answer.
+     */
+    static public final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * Number of handshakes timed out in a row before the blocks waiting for the session are dropped
+     */
+    static public final int HANDSHAKE_ATTEMPTS = 3;
+
+    /**
+     * Session nothing was sent or received by for this time is forgotten, in milliseconds. Next block to the remote
+     * starts the new one, resuming it with the ticket if possible.
+     */
+    static public final long SESSION_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Timer of all the sessions of all the adapters. Each session keeps at most one timeout scheduled, for the nearest
+     * of its deadlines, so the idle sessions cost nothing.
+     */
+    static private final HashedWheelTimer wheel = new HashedWheelTimer("UDPA-timer", RETRANSMIT_TICK, TimeUnit.MILLISECONDS, 512);
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey selectionKey;
+    private final BufferPool bufferPool = new BufferPool(MAX_MTU, 256);
+    // buffers of the received datagrams, sized to the largest MTU set
+    private final BufferPool receivePool = new BufferPool(MAX_PACKET_SIZE, 256);
+
+    /**
+     * Datagrams that could not be sent immediately because the socket buffer was full, flushed by the selector
+     * thread when the channel becomes writable again.
+     */
+    private final ConcurrentLinkedQueue<OutgoingDatagram> outgoingDatagrams = new ConcurrentLinkedQueue<>();
+
+    private final SelectorThread selectorThread;
+
+    /**
+     * Single-threaded decoders; all datagrams from the same remote node go to the same worker, so the blocks of the
+     * session are reassembled and processed in order without locking.
+     */
+    private final Worker[] workers;
 
 //    private ConcurrentHashMap<PublicKey, Session> sessionsByKey = new ConcurrentHashMap<>();
     private ConcurrentHashMap<Integer, Session> sessionsById = new ConcurrentHashMap<>();
 
-    private Timer timer = new Timer();
+    private volatile boolean closed = false;
+
+    /**
+     * Egress limit shared by all sessions, unlimited by default
+     */
+    private final TokenBucket egress = new TokenBucket();
+
+    private final AtomicLong sentDatagrams = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong droppedDatagrams = new AtomicLong();
+    private final AtomicLong pacingDelays = new AtomicLong();
+    private final AtomicLong receivedDatagrams = new AtomicLong();
+    private final AtomicLong receivedBytes = new AtomicLong();
+    private final AtomicLong malformedDatagrams = new AtomicLong();
+    private final AtomicLong overflowDatagrams = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumedSessions = new AtomicLong();
+    private final AtomicLong handshakeNanos = new AtomicLong();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+    private final AtomicLong nacksSent = new AtomicLong();
+    private final AtomicLong nacksReceived = new AtomicLong();
+    private final AtomicLong decryptFailures = new AtomicLong();
+    private final AtomicLong rejectedBlocks = new AtomicLong();
+
+    /**
+     * Last packets sent and received, null if tracing is off
+     */
+    private volatile PacketTrace packetTrace;
+
+    // session housekeeping, see setHandshakeTimeout and setSessionIdleTimeout
+    private volatile long handshakeTimeout = HANDSHAKE_TIMEOUT;
+    private volatile int maxHandshakeAttempts = HANDSHAKE_ATTEMPTS;
+    private volatile long sessionIdleTimeout = SESSION_IDLE_TIMEOUT;
+
+    /**
+     * Tickets issued by the remote nodes, by node id
+     */
+    private final ConcurrentHashMap<Integer, SessionTicket> sessionTickets = new ConcurrentHashMap<>();
+    /**
+     * Key of the tickets this node issues, stays the same across restarts. The key caches its cipher, which is not
+     * thread safe, so it is used only while locked; tickets are issued and checked once per handshake only.
+     */
+    private final SymmetricKey ticketKey;
 
     /**
      * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
@@ -51,59 +271,91 @@ public class UDPAdapter extends DatagramAdapter {
     public UDPAdapter(PrivateKey ownPrivateKey, SymmetricKey sessionKey, NodeInfo myNodeInfo) throws IOException {
         super(ownPrivateKey, sessionKey, myNodeInfo);
 
-        socket = new DatagramSocket(myNodeInfo.getNodeAddress().getPort());
+        ticketKey = new SymmetricKey(new HMAC(ownPrivateKey.pack()).digest("UDPAdapter session ticket key"));
 
-        byte[] buf = new byte[DatagramAdapter.MAX_PACKET_SIZE];
-        receivedDatagram = new DatagramPacket(buf, buf.length);
+        channel = DatagramChannel.open();
+        channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER_SIZE);
+        channel.bind(new InetSocketAddress(myNodeInfo.getNodeAddress().getPort()));
+        channel.configureBlocking(false);
 
-        socketListenThread = new SocketListenThread();
-        socketListenThread.start();
+        selector = Selector.open();
+        selectionKey = channel.register(selector, SelectionKey.OP_READ);
 
-        timer.scheduleAtFixedRate(new TimerTask() {
-            @Override
-            public void run() {
-                checkUnsent();
-            }
-        }, RETRANSMIT_TIME, RETRANSMIT_TIME);
+        int workersCount = Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors()));
+        workers = new Worker[workersCount];
+        for (int i = 0; i < workersCount; i++)
+            workers[i] = new Worker(i, REASSEMBLY_BUDGET / workersCount);
+
+        selectorThread = new SelectorThread();
+        selectorThread.start();
     }
 
 
     @Override
     public void send(NodeInfo destination, byte[] payload) throws EncryptionError, InterruptedException {
-        System.out.println(getLabel() + "send to " + destination.getId());
-
-        Session session = sessionsById.get(destination.getId());
+        log.d("%ssend to %d", getLabel(), destination.getId());
 
         Block rawBlock = new Block(myNodeInfo.getId(), destination.getId(), new Random().nextInt(), PacketTypes.RAW_DATA, payload);
 
-        if (session != null) {
-            if(session.isValid()) {
-                System.out.println(getLabel() + "session is ok");
+        Session session = sessionsById.get(destination.getId());
+        if (session == null) {
+            boolean created = false;
+            synchronized (sessionsById) {
+                session = sessionsById.get(destination.getId());
+                if (session == null) {
+                    log.d("%ssession not exist", getLabel());
+                    session = createSession(destination.getId(),
+                            destination.getPublicKey(),
+                            destination.getNodeAddress().getAddress(),
+                            destination.getNodeAddress().getPort());
+                    session.initiator = true;
+                    created = true;
+                }
+            }
+            if (created) {
+                synchronized (session) {
+                    session.addBlockToWaitingQueue(rawBlock);
+                    startHandshake(session);
+                }
+                return;
+            }
+        }
 
-                session.addBlockToWaitingQueue(rawBlock);
-                sendAsDataBlock(rawBlock, session);
-            } else {
-                System.out.println(getLabel() + "session not valid yet");
-                session.addBlockToWaitingQueue(rawBlock);
-            }
-        } else {
-            System.out.println(getLabel() + "session not exist");
-            session = createSession(destination.getId(),
-                    destination.getPublicKey(),
-                    destination.getNodeAddress().getAddress(),
-                    destination.getNodeAddress().getPort());
-            session.remoteNodeId = destination.getId();
-            session.addBlockToWaitingQueue(rawBlock);
-            sendHello(session);
+        synchronized (session) {
+            if (!session.forgotten) {
+                if (session.isValid()) {
+                    sendAsDataBlock(rawBlock, session);
+                } else {
+                    log.d("%ssession not valid yet", getLabel());
+                    session.addBlockToWaitingQueue(rawBlock);
+                }
+                return;
+            }
         }
+        // the session has just expired, start the new one
+        send(destination, payload);
     }
 
 
     @Override
     public void shutdown() {
-        socketListenThread.shutdownThread();
-        socket.close();
-        socket.disconnect();
+        closed = true;
+        for (Session session : sessionsById.values())
+            session.cancelTimeout();
+        selectorThread.shutdownThread();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Worker worker : workers)
+            worker.shutdown();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            log.e("failed to close channel: %s", e.getMessage());
+        }
         sessionsById.clear();
     }
 
@@ -114,56 +366,305 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Limit the rate of all outgoing datagrams. Datagrams over the limit wait in the sessions and are sent on the
+     * next ticks of the retransmission timer.
+     *
+     * @param bytesPerSecond max egress rate, 0 for unlimited
+     */
+    public void setEgressLimit(long bytesPerSecond) {
+        if (bytesPerSecond < 0)
+            throw new IllegalArgumentException("egress limit should not be negative: " + bytesPerSecond);
+        // allow the traffic of two timer ticks at once, otherwise the limit can't be reached
+        egress.setRate(bytesPerSecond, Math.max(MAX_MTU, bytesPerSecond * RETRANSMIT_TICK * 2 / 1000));
+    }
+
+    /**
+     * Override {@link #HANDSHAKE_TIMEOUT} and {@link #HANDSHAKE_ATTEMPTS}, e.g. to shorten them in the tests.
+     *
+     * @param millis   handshake timeout, in milliseconds
+     * @param attempts number of handshakes timed out in a row before giving up
+     */
+    public void setHandshakeTimeout(long millis, int attempts) {
+        if (millis <= 0 || attempts < 1)
+            throw new IllegalArgumentException("bad handshake timeout: " + millis + " ms, " + attempts + " attempts");
+        handshakeTimeout = millis;
+        maxHandshakeAttempts = attempts;
+    }
+
+    /**
+     * Override {@link #SESSION_IDLE_TIMEOUT}, in milliseconds.
+     */
+    public void setSessionIdleTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("session idle timeout should be positive: " + millis);
+        sessionIdleTimeout = millis;
+    }
+
+    /**
+     * Override {@link #REASSEMBLY_TIMEOUT}, in milliseconds.
+     */
+    public void setReassemblyTimeout(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("reassembly timeout should be positive: " + millis);
+        for (Worker worker : workers)
+            worker.reassembler.setTimeout(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Get transport counters: "sent_datagrams", "sent_bytes", "dropped_datagrams" (failed to send, or lost in the test
+     * mode), "received_datagrams", "received_bytes", "malformed_datagrams", "overflow_datagrams" (dropped as the worker
+     * fell behind, see {@link #WORKER_BACKLOG}), "pacing_delays" (times sending was postponed by the pacing or the
+     * egress limit), sessions established with the full "handshakes" and "resumed_sessions", "handshake_avg_ms" and
+     * "handshake_max_ms" of both, "nacks_sent", "nacks_received", "decrypt_failures" of the data and the tickets,
+     * "rejected_blocks" (handshake blocks with bad signatures, nonces or proofs), and "peers", the state of the session
+     * with each node by its id: "sent_datagrams", "sent_bytes", "received_datagrams", "received_bytes", "handshake_ms",
+     * "cwnd", "ssthresh", "in_flight", "pending", "srtt_ms", "rto_ms", "pacing_rate" (bytes per second, 0 while not
+     * measured), "mtu", "retransmits", "fast_retransmits", "congestion_events", the payload "codec" ("" if none),
+     * "compressed_payloads" and "compression_ratio", the size of the compressed payloads to their original size.
+     * Incomplete incoming blocks are reported in "reassembly", see {@link Reassembler#getStats()}, blocks dropped there
+     * by timeout are "expired".
+     */
+    public Binder getStats() {
+        Binder peers = new Binder();
+        for (Session session : sessionsById.values())
+            peers.put(String.valueOf(session.remoteNodeId), session.getStats());
+        Binder reassembly = new Binder();
+        for (Worker worker : workers) {
+            for (Map.Entry<String, Object> entry : worker.reassembler.getStats().entrySet())
+                reassembly.put(entry.getKey(), reassembly.getLong(entry.getKey(), 0) + ((Number) entry.getValue()).longValue());
+        }
+        long established = handshakes.get() + resumedSessions.get();
+        return Binder.fromKeysValues(
+                "sent_datagrams", sentDatagrams.get(),
+                "sent_bytes", sentBytes.get(),
+                "dropped_datagrams", droppedDatagrams.get(),
+                "received_datagrams", receivedDatagrams.get(),
+                "received_bytes", receivedBytes.get(),
+                "malformed_datagrams", malformedDatagrams.get(),
+                "overflow_datagrams", overflowDatagrams.get(),
+                "pacing_delays", pacingDelays.get(),
+                "handshakes", handshakes.get(),
+                "resumed_sessions", resumedSessions.get(),
+                "handshake_avg_ms", established == 0 ? 0.0 : handshakeNanos.get() / 1e6 / established,
+                "handshake_max_ms", maxHandshakeNanos.get() / 1e6,
+                "nacks_sent", nacksSent.get(),
+                "nacks_received", nacksReceived.get(),
+                "decrypt_failures", decryptFailures.get(),
+                "rejected_blocks", rejectedBlocks.get(),
+                "peers", peers,
+                "reassembly", reassembly
+        );
+    }
+
+
+    /**
+     * Keep the last packets sent and received in memory, see {@link #getPacketTrace()}. Tracing costs an allocation
+     * per packet, so it is off by default.
+     *
+     * @param capacity number of packets to keep, 0 to stop tracing
+     */
+    public void setPacketTrace(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("trace capacity should not be negative: " + capacity);
+        packetTrace = capacity == 0 ? null : new PacketTrace(capacity);
+    }
+
+    /**
+     * Get the traced packets, oldest first: "at" (milliseconds since the epoch), "direction" ("out" or "in"), "peer"
+     * node id, packet "type", "block_id", "packet_id", "packets" in the block, "seq" and "size" of the frame in the
+     * datagram.
+     *
+     * @return traced packets, empty list if tracing is off
+     */
+    public List<Binder> getPacketTrace() {
+        PacketTrace trace = packetTrace;
+        return trace == null ? new ArrayList<>() : trace.getRecords();
+    }
+
+
+    boolean hasSessionTicket(int nodeId) {
+        return sessionTickets.containsKey(nodeId);
+    }
+
+
+    SessionTicket getSessionTicket(int nodeId) {
+        return sessionTickets.get(nodeId);
+    }
+
+
+    void putSessionTicket(int nodeId, SessionTicket ticket) {
+        sessionTickets.put(nodeId, ticket);
+    }
+
+
+    /**
+     * @return MTU confirmed by probing for the node, or 0 if there is no session with it
+     */
+    int getEffectiveMtu(int nodeId) {
+        Session session = sessionsById.get(nodeId);
+        return session == null ? 0 : session.mtu;
+    }
+
+
+    /**
+     * Split the block to packets and pass them to the session for the reliable delivery.
+     */
     protected void sendBlock(Block block, Session session) throws InterruptedException {
-        List<DatagramPacket> outs = makeDatagramPacketsFromBlock(block, session.address, session.port);
+        List<Packet> packets = new ArrayList<>(block.splitByPackets(session.mtu).values());
+        session.enqueue(block, packets);
+    }
 
-        session.addBlocksToSendingQueue(block);
-        block.sendAttempts++;
-        try {
-            if(testMode == TestModes.SHUFFLE_PACKETS) {
-                Collections.shuffle(outs);
+
+    /**
+     * Send the datagram prepared in the pooled buffer and release the buffer. If the socket buffer is full, the
+     * datagram is queued and sent by the selector thread as soon as the channel is writable, keeping the order of the
+     * queued datagrams.
+     */
+    protected void sendDatagram(ByteBuffer buffer, InetSocketAddress destination) {
+        if(testMode == TestModes.LOST_PACKETS) {
+            if (new Random().nextBoolean()) {
+                log.d("%s lost datagram of %d bytes", getLabel(), buffer.remaining());
+                droppedDatagrams.incrementAndGet();
+                bufferPool.release(buffer);
+                return;
             }
+        }
 
-            for (DatagramPacket d : outs) {
-                if(testMode == TestModes.LOST_PACKETS) {
-                    if (new Random().nextBoolean()) {
-                        String lst = getLabel() + " Lost packet in block: " + block.blockId;
-                        System.out.println(lst);
-                        continue;
-                    }
-                }
-                socket.send(d);
+        sentDatagrams.incrementAndGet();
+        sentBytes.addAndGet(buffer.remaining());
+        try {
+            if (outgoingDatagrams.isEmpty() && channel.send(buffer, destination) > 0) {
+                bufferPool.release(buffer);
+                return;
             }
+            outgoingDatagrams.add(new OutgoingDatagram(buffer, destination));
+            selectorThread.requestWrite();
         } catch (IOException e) {
-            System.out.println(getLabel() + "send block error, socket already closed");
-//            e.printStackTrace();
+            droppedDatagrams.incrementAndGet();
+            bufferPool.release(buffer);
+            log.d("%ssend error: %s", getLabel(), e.getMessage());
         }
     }
 
 
     protected void sendAsDataBlock(Block rawDataBlock, Session session) throws EncryptionError, InterruptedException {
-        System.out.println(getLabel() + "send data to " + session.remoteNodeId);
-        byte[] encrypted = session.sessionKey.etaEncrypt(rawDataBlock.payload);
+        log.d("%ssend data to %d", getLabel(), session.remoteNodeId);
+        byte[] payload = rawDataBlock.payload;
+        byte[] compressed = session.codec != null ? PayloadCodec.compress(payload) : null;
+        if (compressed != null) {
+            session.compressedPayloads++;
+            session.uncompressedBytes += payload.length;
+            session.compressedBytes += compressed.length;
+            payload = compressed;
+        }
+        byte[] encrypted = session.sessionKey.etaEncrypt(payload);
 
         Binder binder = Binder.fromKeysValues(
                 "data", encrypted
         );
+        if (compressed != null)
+            binder.put("codec", session.codec);
 
         Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, rawDataBlock.blockId, PacketTypes.DATA, Boss.pack(binder));
+        block.source = rawDataBlock;
         sendBlock(block, session);
     }
 
 
     protected void sendHello(Session session) throws EncryptionError, InterruptedException {
-        System.out.println(getLabel() + "send hello to " + session.remoteNodeId);
+        log.d("%ssend hello to %d", getLabel(), session.remoteNodeId);
 
         Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.HELLO, myNodeInfo.getPublicKey().pack());
         sendBlock(block, session);
     }
 
 
+    /**
+     * Start the session as the initiator: resume it if there is the ticket from the remote, or start the full
+     * handshake otherwise.
+     */
+    protected void startHandshake(Session session) throws EncryptionError, InterruptedException {
+        SessionTicket ticket = sessionTickets.get(session.remoteNodeId);
+        if (ticket != null && ticket.expiresAt < System.currentTimeMillis()) {
+            sessionTickets.remove(session.remoteNodeId, ticket);
+            ticket = null;
+        }
+        if (ticket != null)
+            sendResume(session, ticket);
+        else
+            sendHello(session);
+    }
+
+
+    protected void sendResume(Session session, SessionTicket ticket) throws InterruptedException {
+        log.d("%ssend resume to %d", getLabel(), session.remoteNodeId);
+
+        Binder binder = Binder.fromKeysValues(
+                "ticket", ticket.ticket,
+                "nonce", session.localNonce,
+                "proof", hmac(ticket.secret, "resume", session.localNonce),
+                "codecs", PayloadCodec.SUPPORTED
+        );
+        Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.RESUME, Boss.pack(binder));
+        session.resumeBlockId = block.blockId;
+        sendBlock(block, session);
+    }
+
+
+    protected void sendResumed(Session session, byte[] secret) throws InterruptedException {
+        log.d("%ssend resumed to %d", getLabel(), session.remoteNodeId);
+
+        Binder binder = Binder.fromKeysValues(
+                "nonce", session.localNonce,
+                "proof", hmac(secret, "resumed", session.remoteNonce, session.localNonce)
+        );
+        if (session.codec != null)
+            binder.put("codec", session.codec);
+        Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.RESUMED, Boss.pack(binder));
+        sendBlock(block, session);
+    }
+
+
+    /**
+     * Issue the remote the ticket to resume sessions with this node. The secret of the ticket is made of the nonces
+     * of the session and fresh random bytes, never of the session key: after the full handshake the session key is
+     * the adapter-wide one, known to every peer. The secret travels encrypted with the session key.
+     */
+    protected void sendTicket(Session session) throws EncryptionError, InterruptedException {
+        byte[] secret = hmac(Do.randomBytes(32), "resumption", session.localNonce, session.remoteNonce);
+        List data = asList(session.remoteNodeId, secret,
+                System.currentTimeMillis() + SESSION_TICKET_LIFETIME, session.publicKey.pack());
+        byte[] ticket;
+        synchronized (ticketKey) {
+            ticket = ticketKey.etaEncrypt(Boss.pack(data));
+        }
+        Binder binder = Binder.fromKeysValues(
+                "ticket", ticket,
+                "secret", secret,
+                "lifetime", SESSION_TICKET_LIFETIME
+        );
+        Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.TICKET,
+                session.sessionKey.etaEncrypt(Boss.pack(binder)));
+        sendBlock(block, session);
+    }
+
+
+    /**
+     * HMAC-SHA256 of the label followed by the parts, with the label separating keys and proofs made of the same
+     * secret.
+     */
+    static byte[] hmac(byte[] key, String label, byte[]... parts) {
+        HMAC hmac = new HMAC(key);
+        hmac.update(label);
+        for (byte[] part : parts)
+            hmac.update(part);
+        return hmac.digest();
+    }
+
+
     protected void sendWelcome(Session session) throws InterruptedException {
-        System.out.println(getLabel() + "send welcome to " + session.remoteNodeId);
+        log.d("%ssend welcome to %d", getLabel(), session.remoteNodeId);
 
         Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.WELCOME, session.localNonce);
         sendBlock(block, session);
@@ -171,7 +672,7 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     protected void sendKeyRequest(Session session) throws InterruptedException {
-        System.out.println(getLabel() + "send key request to " + session.remoteNodeId);
+        log.d("%ssend key request to %d", getLabel(), session.remoteNodeId);
 
         List data = asList(session.localNonce, session.remoteNonce);
         try {
@@ -180,7 +681,8 @@ public class UDPAdapter extends DatagramAdapter {
 
             Binder binder = Binder.fromKeysValues(
                     "data", packed,
-                    "signature", signed
+                    "signature", signed,
+                    "codecs", PayloadCodec.SUPPORTED
             );
 
             Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.KEY_REQ, Boss.pack(binder));
@@ -192,7 +694,7 @@ public class UDPAdapter extends DatagramAdapter {
 
 
     protected void sendSessionKey(Session session) throws InterruptedException {
-        System.out.println(getLabel() + "send session key to " + session.remoteNodeId);
+        log.d("%ssend session key to %d", getLabel(), session.remoteNodeId);
 
         List data = asList(session.sessionKey.getKey(), session.remoteNonce);
         try {
@@ -204,6 +706,8 @@ public class UDPAdapter extends DatagramAdapter {
                     "data", encrypted,
                     "signature", signed
             );
+            if (session.codec != null)
+                binder.put("codec", session.codec);
 
             Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.SESSION, Boss.pack(binder));
             sendBlock(block, session);
@@ -213,40 +717,61 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
-    protected void sendAck(Session session, int blockId) throws InterruptedException {
-        System.out.println(getLabel() + "send ack to " + session.remoteNodeId);
-
-        Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.ACK, Boss.pack(blockId));
-        sendBlock(block, session);
+    /**
+     * Tell the node that sent the block that there is no valid session with it. NACK is neither sequenced nor
+     * retransmitted: if it is lost, the next retransmission of the block is answered again.
+     */
+    protected void sendNack(int remoteNodeId, int blockId, InetSocketAddress destination) {
+        log.d("%ssend nack to %d", getLabel(), remoteNodeId);
+        nacksSent.incrementAndGet();
+
+        byte[] payload = Boss.pack(blockId);
+        Packet packet = new Packet(1, 0, myNodeInfo.getId(), remoteNodeId, new Random().nextInt(), PacketTypes.NACK, payload);
+        ByteBuffer buffer = bufferPool.take();
+        Envelope.writeHeader(buffer, myNodeInfo.getId(), remoteNodeId, 0, 0);
+        packet.writeTo(buffer);
+        trace(true, remoteNodeId, packet);
+        buffer.flip();
+        sendDatagram(buffer, destination);
     }
 
 
-    protected void sendNack(Session session, int blockId) throws InterruptedException {
-        System.out.println(getLabel() + "send nack to " + session.remoteNodeId);
-
-        Block block = new Block(myNodeInfo.getId(), session.remoteNodeId, new Random().nextInt(), PacketTypes.NACK, Boss.pack(blockId));
-        sendBlock(block, session);
+    /**
+     * Count the handshake block that failed the checks and drop it.
+     */
+    protected void reject(Block block, String reason) {
+        rejectedBlocks.incrementAndGet();
+        log.d("%s rejected block %d type %d from %d: %s", getLabel(), block.blockId, block.type, block.senderNodeId, reason);
     }
 
 
-    protected List<DatagramPacket> makeDatagramPacketsFromBlock(Block block, InetAddress address, int port) {
-
-        block.splitByPackets(MAX_PACKET_SIZE);
-
-        List<DatagramPacket> datagramPackets = new ArrayList<>();
-
-        byte[] blockByteArray;
-        DatagramPacket datagramPacket;
+    private void trace(boolean outgoing, int peer, Packet packet) {
+        PacketTrace trace = packetTrace;
+        if (trace != null)
+            trace.add(outgoing, peer, packet);
+    }
 
-        for (Packet packet : block.packets.values()) {
-            blockByteArray = packet.makeByteArray();
 
-            datagramPacket = new DatagramPacket(blockByteArray, blockByteArray.length, address, port);
-            datagramPackets.add(datagramPacket);
+    /**
+     * Send all blocks collected while the session was not established.
+     */
+    protected void flushWaitingBlocks(Session session) throws EncryptionError, InterruptedException {
+        synchronized (session) {
+            log.d("%s waiting blocks num %d", getLabel(), session.waitingBlocks.size());
+            session.cork();
+            try {
+                Block waitingBlock;
+                while ((waitingBlock = session.pollWaitingBlock()) != null) {
+                    if (waitingBlock.type == PacketTypes.RAW_DATA) {
+                        sendAsDataBlock(waitingBlock, session);
+                    } else {
+                        sendBlock(waitingBlock, session);
+                    }
+                }
+            } finally {
+                session.uncork();
+            }
         }
-
-        return datagramPackets;
-
     }
 
 
@@ -255,7 +780,7 @@ public class UDPAdapter extends DatagramAdapter {
         Session session;
 
         session = new Session(remoteKey, address, port);
-        System.out.println(getLabel() + "session created for nodeId " + remoteId);
+        log.d("%ssession created for nodeId %d", getLabel(), remoteId);
         session.remoteNodeId = remoteId;
         session.sessionKey = sessionKey;
         sessionsById.put(remoteId, session);
@@ -265,161 +790,336 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
-    protected void checkUnsent() {
-        List<Block> blocksToRemove;
-        for(Session session : sessionsById.values()) {
-            blocksToRemove = new ArrayList();
-            for (Block block : session.sendingBlocksQueue) {
-                if(!block.isDelivered()) {
-                    System.out.println(getLabel() + "block: " + block.blockId + " type: " + block.type + " sendAttempts: " + block.sendAttempts + " not delivered");
-                    try {
-                        if(block.sendAttempts >= RETRANSMIT_MAX_ATTEMPTS) {
-                            System.out.println(getLabel() + "block " + block.blockId + " type " + block.type + " will be removed");
-                            blocksToRemove.add(block);
-                        } else {
-                            sendBlock(block, session);
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-
-            for(Block rb : blocksToRemove) {
-                try {
-                    session.removeBlockFromSendingQueue(rb);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+    /**
+     * Sequence numbers are compared in serial number arithmetic, skipping 0 that means "not sequenced".
+     *
+     * @return number of sequence numbers from {@code from} to {@code to}, negative if {@code to} is before {@code from}
+     */
+    static int seqDistance(int from, int to) {
+        int distance = to - from;
+        if (from < 0 && to > 0 && distance > 0)
+            distance--;
+        else if (from > 0 && to < 0 && distance < 0)
+            distance++;
+        return distance;
     }
 
 
-//    public byte[] serialize(Object obj) throws IOException {
-//        try(ByteArrayOutputStream b = new ByteArrayOutputStream()){
-//            try(ObjectOutputStream o = new ObjectOutputStream(b)){
-//                o.writeObject(obj);
-//            }
-//            return b.toByteArray();
-//        }
-//    }
-//
-//    public Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
-//        try(ByteArrayInputStream b = new ByteArrayInputStream(bytes)){
-//            try(ObjectInputStream o = new ObjectInputStream(b)){
-//                return o.readObject();
-//            }
-//        }
-//    }
+    static int seqAdvance(int seq, int count) {
+        int next = seq + count;
+        if (seq < 0 && next >= 0)
+            next++;
+        return next;
+    }
 
 
-    class SocketListenThread extends Thread
+    /**
+     * Owns the selector: drains incoming datagrams in batches into pooled buffers, dispatches them to the workers
+     * by sender node id and flushes datagrams postponed by {@link #sendDatagram(ByteBuffer, InetSocketAddress)}.
+     */
+    class SelectorThread extends Thread
     {
-        private Boolean active = false;
+        private volatile boolean active = true;
+        private volatile boolean writeRequested = false;
 
-        private HashMap<Integer, Block> waitingBlocks = new HashMap<>();
+        SelectorThread() {
+            setName("UDPA-selector-" + myNodeInfo.getId());
+            setDaemon(true);
+        }
 
         @Override
         public void run()
         {
-            setName(Integer.toString(new Random().nextInt(100)));
-            System.out.println(getLabel() + " UDPAdapter listen socket at " + myNodeInfo.getNodeAddress().getAddress() + ":" + myNodeInfo.getNodeAddress().getPort());
-            active = true;
+            log.i("%s UDPAdapter listen socket at %s", getLabel(), myNodeInfo.getNodeAddress());
+            List<ReceivedDatagram>[] batches = new List[workers.length];
+            for (int i = 0; i < batches.length; i++)
+                batches[i] = new ArrayList<>();
+
             while(active) {
                 try {
-                    if(!socket.isClosed()) {
-                        socket.receive(receivedDatagram);
+                    if (writeRequested) {
+                        writeRequested = false;
+                        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
                     }
-                } catch (SocketException e) {
-//                    e.printStackTrace();
+                    selector.select();
+                    if (!active)
+                        break;
+                    selector.selectedKeys().clear();
+                    if (selectionKey.isWritable())
+                        flushOutgoing();
+                    if (selectionKey.isReadable())
+                        drain(batches);
+                } catch (ClosedSelectorException | ClosedChannelException | CancelledKeyException e) {
+                    break;
                 } catch (IOException e) {
-//                    e.printStackTrace();
+                    log.e("%s receive error: %s", getLabel(), e.getMessage());
                 }
+            }
+        }
 
-                String rcvd = getLabel() + " Got data from address: " + receivedDatagram.getAddress() + ", port: " + receivedDatagram.getPort();
-//                System.out.println(rcvd);
+        private void drain(List<ReceivedDatagram>[] batches) throws IOException {
+            int size = getMaxMtu();
+            for (int i = 0; i < RECEIVE_BATCH_SIZE; i++) {
+                ByteBuffer buffer = receivePool.take(size);
+                SocketAddress from = channel.receive(buffer);
+                if (from == null) {
+                    receivePool.release(buffer);
+                    break;
+                }
+                buffer.flip();
+                if (buffer.remaining() < Envelope.HEADER_SIZE) {
+                    receivePool.release(buffer);
+                    continue;
+                }
+                // sender node id is at the fixed position of the header
+                int shard = Math.floorMod(buffer.getInt(2), workers.length);
+                if (!workers[shard].reserve(buffer.capacity())) {
+                    overflowDatagrams.incrementAndGet();
+                    receivePool.release(buffer);
+                    continue;
+                }
+                batches[shard].add(new ReceivedDatagram(buffer, (InetSocketAddress) from));
+            }
+            for (int i = 0; i < batches.length; i++) {
+                if (!batches[i].isEmpty()) {
+                    workers[i].process(batches[i]);
+                    batches[i] = new ArrayList<>();
+                }
+            }
+        }
 
+        private void flushOutgoing() throws IOException {
+            OutgoingDatagram datagram;
+            while ((datagram = outgoingDatagrams.peek()) != null) {
+                if (channel.send(datagram.buffer, datagram.destination) == 0)
+                    return;
+                outgoingDatagrams.poll();
+                bufferPool.release(datagram.buffer);
+            }
+            selectionKey.interestOps(SelectionKey.OP_READ);
+            // a datagram could be queued between the check and the interest change
+            if (!outgoingDatagrams.isEmpty())
+                requestWrite();
+        }
 
-                byte[] data = Arrays.copyOfRange(receivedDatagram.getData(), 0, receivedDatagram.getLength());
+        void requestWrite() {
+            writeRequested = true;
+            selector.wakeup();
+        }
 
-                Packet packet = new Packet();
-                Block waitingBlock;
-                try {
-                    packet.parseFromByteArray(data);
+        public void shutdownThread()
+        {
+            active = false;
+            selector.wakeup();
+        }
 
-                    if (waitingBlocks.containsKey(packet.blockId))
-                    {
-                        waitingBlock = waitingBlocks.get(packet.blockId);
-                    } else {
-                        waitingBlock = new Block(packet.senderNodeId, packet.receiverNodeId, packet.blockId, packet.type);
-                        waitingBlocks.put(waitingBlock.blockId, waitingBlock);
-                    }
-                    waitingBlock.addToPackets(packet);
+        public String getLabel()
+        {
+            return myNodeInfo.getId() + "-" + getName() + ": ";
+        }
+    }
+
+
+    /**
+     * Decodes datagrams of the nodes assigned to it, reassembles blocks and processes them.
+     */
+    class Worker
+    {
+        private final ExecutorService executor;
+        private final String name;
+
+        private final Reassembler reassembler;
 
-                    if(waitingBlock.isSolid()) {
-                        waitingBlocks.remove(waitingBlock.blockId);
-                        waitingBlock.reconstruct();
-                        obtainSolidBlock(waitingBlock);
+        // buffer bytes of the datagrams handed to the worker and not processed yet
+        private final AtomicLong backlog = new AtomicLong();
+
+        /**
+         * Sessions corked while the current batch is processed, see {@link Session#cork()}.
+         */
+        private final Set<Session> corkedSessions = new HashSet<>();
+
+        Worker(int index, long reassemblyBudget) {
+            reassembler = new Reassembler(reassemblyBudget, TimeUnit.MILLISECONDS.toNanos(REASSEMBLY_TIMEOUT));
+            name = "UDPA-worker-" + myNodeInfo.getId() + "-" + index;
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Account the buffer of the datagram to hand to the worker.
+         *
+         * @return false if the backlog of the worker is full and the datagram should be dropped
+         */
+        boolean reserve(int bytes) {
+            if (backlog.addAndGet(bytes) <= WORKER_BACKLOG)
+                return true;
+            backlog.addAndGet(-bytes);
+            return false;
+        }
+
+        void process(List<ReceivedDatagram> batch) {
+            try {
+                executor.execute(() -> {
+                    try {
+                        for (ReceivedDatagram datagram : batch) {
+                            backlog.addAndGet(-datagram.buffer.capacity());
+                            processDatagram(datagram);
+                        }
+                    } finally {
+                        // replies and acknowledgements of the batch are sent together
+                        for (Session session : corkedSessions)
+                            session.uncork();
+                        corkedSessions.clear();
                     }
+                });
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                for (ReceivedDatagram datagram : batch)
+                    receivePool.release(datagram.buffer);
+            }
+        }
 
-                } catch (IllegalArgumentException e) {
-//                    e.printStackTrace();
-                } catch (InterruptedException e) {
-//                    e.printStackTrace();
-                } catch (IOException e) {
-//                    e.printStackTrace();
+        private void cork(Session session) {
+            if (corkedSessions.add(session))
+                session.cork();
+        }
+
+        private void processDatagram(ReceivedDatagram datagram) {
+            int size = datagram.buffer.remaining();
+            receivedDatagrams.incrementAndGet();
+            receivedBytes.addAndGet(size);
+            Envelope envelope;
+            try {
+                envelope = Envelope.readFrom(datagram.buffer);
+            } catch (IOException e) {
+                malformedDatagrams.incrementAndGet();
+                return;
+            } finally {
+                receivePool.release(datagram.buffer);
+            }
+
+            try {
+                Session session = sessionsById.get(envelope.senderNodeId);
+                if (session != null) {
+                    cork(session);
+                    session.received(size);
+                    session.acknowledge(envelope.ack, envelope.sackBits);
                 }
+
+                for (Packet packet : envelope.packets)
+                    processPacket(packet, datagram.sender);
+            } catch (IllegalArgumentException | IOException e) {
+                log.e("%s bad block from %s: %s", getLabel(), datagram.sender, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.wtf(getLabel() + " failed to process block", e);
             }
         }
 
+        private void processPacket(Packet packet, InetSocketAddress sender) throws Exception {
+            trace(false, packet.senderNodeId, packet);
+            // the session could be created by the hello coalesced before
+            Session session = sessionsById.get(packet.senderNodeId);
+            // hello and resume start a new sequence, they are checked when the block is complete
+            if (session != null && packet.seq != 0 && packet.type != PacketTypes.HELLO && packet.type != PacketTypes.RESUME) {
+                cork(session);
+                if (!session.markReceived(packet.seq))
+                    return;
+            }
 
-        public void shutdownThread()
-        {
-            active = false;
+            switch (packet.type) {
+                case PacketTypes.PROBE:
+                    if (session != null)
+                        session.answerMtuProbe(packet);
+                    return;
+                case PacketTypes.PROBE_ACK:
+                    if (session != null)
+                        session.mtuProbeAnswered(packet);
+                    return;
+            }
+
+            Block block = reassembler.add(packet, System.nanoTime());
+            if (block != null) {
+                block.reconstruct();
+                obtainSolidBlock(block, sender);
+            }
         }
 
+        void shutdown() {
+            executor.shutdownNow();
+        }
 
         public String getLabel()
         {
-            return myNodeInfo.getId() + "-" + getName() + ": ";
+            return name + ": ";
         }
 
-
-        protected void obtainSolidBlock(Block block) throws EncryptionError, SymmetricKey.AuthenticationFailed, InterruptedException {
+        protected void obtainSolidBlock(Block block, InetSocketAddress sender) throws EncryptionError, SymmetricKey.AuthenticationFailed, InterruptedException, IOException {
             Session session = null;
             Binder unbossedPayload;
             byte[] signedUnbossed;
-            int ackBlockId;
+            int nackBlockId;
 
             switch (block.type) {
 
                 case PacketTypes.HELLO:
-                    System.out.println(getLabel() + " got hello from " + block.senderNodeId);
+                case PacketTypes.RESUME:
+                    log.d("%s got %s from %d", getLabel(), block.type == PacketTypes.HELLO ? "hello" : "resume", block.senderNodeId);
+                    session = sessionsById.get(block.senderNodeId);
+                    if (session != null && !session.initiator && session.helloBlockId == block.blockId) {
+                        // retransmitted hello of the handshake in progress, acknowledge it once more
+                        session.markReceived(block);
+                        cork(session);
+                        break;
+                    }
+                    if (session != null && session.initiator && session.state == Session.HANDSHAKE
+                            && myNodeInfo.getId() < block.senderNodeId) {
+                        // both nodes started the handshake at once: the node with the lesser id stays the initiator
+                        break;
+                    }
+                    if (block.type == PacketTypes.RESUME) {
+                        acceptResume(block, session, sender);
+                        break;
+                    }
                     PublicKey key = new PublicKey(block.payload);
-                    session = createSession(block.senderNodeId, key, receivedDatagram.getAddress(), receivedDatagram.getPort());
-                    sendWelcome(session);
+                    if (session == null) {
+                        session = createSession(block.senderNodeId, key, sender.getAddress(), sender.getPort());
+                    }
+                    synchronized (session) {
+                        session.reset();
+                        session.publicKey = key;
+                        session.remoteAddress = sender;
+                        session.initiator = false;
+                        session.helloBlockId = block.blockId;
+                        session.markReceived(block);
+                        sendWelcome(session);
+                    }
                     break;
 
                 case PacketTypes.WELCOME:
-                    System.out.println(getLabel() + " got welcome from " + block.senderNodeId);
+                    log.d("%s got welcome from %d", getLabel(), block.senderNodeId);
                     session = sessionsById.get(block.senderNodeId);
+                    if (session == null || !session.initiator || session.state != Session.HANDSHAKE || session.remoteNonce != null)
+                        break;
                     session.remoteNonce = block.payload;
-                    session.makeBlockDeliveredByType(PacketTypes.HELLO);
                     sendKeyRequest(session);
                     break;
 
                 case PacketTypes.KEY_REQ:
-                    System.out.println(getLabel() + " got key request from " + block.senderNodeId);
+                    log.d("%s got key request from %d", getLabel(), block.senderNodeId);
                     session = sessionsById.get(block.senderNodeId);
-                    session.makeBlockDeliveredByType(PacketTypes.WELCOME);
+                    if (session == null || session.initiator)
+                        break;
                     unbossedPayload = Boss.load(block.payload);
                     signedUnbossed = unbossedPayload.getBinaryOrThrow("data");
                     try {
                         if (session.publicKey != null) {
                             if (session.publicKey.verify(signedUnbossed, unbossedPayload.getBinaryOrThrow("signature"), HashType.SHA512)) {
 
-                                System.out.println(getLabel() + " successfully verified ");
 
                                 List receivedData = Boss.load(signedUnbossed);
                                 byte[] senderNonce = ((Bytes) receivedData.get(0)).toArray();
@@ -429,33 +1129,32 @@ public class UDPAdapter extends DatagramAdapter {
                                 // (means request sent after welcome from known and expected node)
                                 if (Arrays.equals(receiverNonce, session.localNonce)) {
                                     session.remoteNonce = senderNonce;
+                                    session.codec = PayloadCodec.choose(unbossedPayload.getList("codecs", null));
                                     session.createSessionKey();
-                                    System.out.println(getLabel() + " check session " + session.isValid());
+                                    // session becomes valid when the key is acknowledged, see Session#blockDelivered
                                     sendSessionKey(session);
-                                    session.makeBlockDeliveredByType(PacketTypes.SESSION);
                                 } else {
-                                    System.out.println(Errors.BAD_VALUE + " got nonce is not valid");
+                                    reject(block, "nonce is not valid");
                                 }
                             } else {
-                                System.out.println(Errors.BAD_VALUE + " no public key");
+                                reject(block, "signature is not valid");
                             }
                         }
                     } catch (EncryptionError e) {
-                        System.out.println(Errors.BAD_VALUE + " sign has not verified, " + e.getMessage());
+                        reject(block, "signature is not valid, " + e.getMessage());
                     }
                     break;
 
                 case PacketTypes.SESSION:
-                    System.out.println(getLabel() + " got session from " + block.senderNodeId);
+                    log.d("%s got session from %d", getLabel(), block.senderNodeId);
                     session = sessionsById.get(block.senderNodeId);
-                    session.makeBlockDeliveredByType(PacketTypes.KEY_REQ);
+                    if (session == null || !session.initiator || session.state != Session.HANDSHAKE)
+                        break;
                     unbossedPayload = Boss.load(block.payload);
                     signedUnbossed = unbossedPayload.getBinaryOrThrow("data");
                     try {
                         if (session.publicKey.verify(signedUnbossed, unbossedPayload.getBinaryOrThrow("signature"), HashType.SHA512)) {
 
-                            System.out.println(getLabel() + " successfully verified ");
-
                             byte[] decryptedData = ownPrivateKey.decrypt(signedUnbossed);
                             List receivedData = Boss.load(decryptedData);
                             byte[] sessionKey = ((Bytes) receivedData.get(0)).toArray();
@@ -464,70 +1163,451 @@ public class UDPAdapter extends DatagramAdapter {
                             // if remote nonce from received data equals with own nonce
                             // (means session sent as answer to key requst from known and expected node)
                             if(Arrays.equals(receiverNonce, session.localNonce)) {
-                                session.reconstructSessionKey(sessionKey);
-                                System.out.println(getLabel() + " check session " + session.isValid());
-                                System.out.println(getLabel() + " waiting blocks num " + session.waitingBlocksQueue.size());
-                                try {
-                                    for (Block waitingBlock : session.waitingBlocksQueue) {
-                                        System.out.println(getLabel() + " waitingBlock " + waitingBlock.blockId + " type " + waitingBlock.type);
-                                        if(waitingBlock.type == PacketTypes.RAW_DATA) {
-                                            sendAsDataBlock(waitingBlock, session);
-                                        } else {
-                                            sendBlock(waitingBlock, session);
-                                        }
-                                        session.removeBlockFromWaitingQueue(waitingBlock);
-                                    }
-                                } catch (InterruptedException e) {
-                                    System.out.println(Errors.BAD_VALUE + " send encryption error, " + e.getMessage());
+                                synchronized (session) {
+                                    session.reconstructSessionKey(sessionKey);
+                                    session.codec = PayloadCodec.choose(asList(unbossedPayload.getString("codec", "")));
+                                    log.d("%s check session %s", getLabel(), session.isValid());
+                                    session.established();
                                 }
                             } else {
-                                System.out.println(Errors.BAD_VALUE + " got nonce is not valid");
+                                reject(block, "nonce is not valid");
                             }
+                        } else {
+                            reject(block, "signature is not valid");
                         }
                     } catch (EncryptionError e) {
-                        System.out.println(Errors.BAD_VALUE + " sign has not verified, " + e.getMessage());
+                        reject(block, "signature is not valid, " + e.getMessage());
                     }
                     break;
 
                 case PacketTypes.DATA:
-                    System.out.println(getLabel() + " got data from " + block.senderNodeId);
+                    log.d("%s got data from %d", getLabel(), block.senderNodeId);
                     session = sessionsById.get(block.senderNodeId);
                     if(session != null && session.isValid()) {
                         unbossedPayload = Boss.load(block.payload);
-                        byte[] decrypted = session.sessionKey.etaDecrypt(unbossedPayload.getBinaryOrThrow("data"));
+                        byte[] decrypted;
+                        try {
+                            decrypted = session.sessionKey.etaDecrypt(unbossedPayload.getBinaryOrThrow("data"));
+                        } catch (SymmetricKey.AuthenticationFailed | EncryptionError e) {
+                            decryptFailures.incrementAndGet();
+                            log.d("%s can't decrypt data from %d: %s", getLabel(), block.senderNodeId, e.getMessage());
+                            break;
+                        }
+                        String codec = unbossedPayload.getString("codec", null);
+                        if (codec != null) {
+                            if (!PayloadCodec.SUPPORTED.contains(codec))
+                                throw new IOException("unsupported codec: " + codec);
+                            decrypted = PayloadCodec.decompress(decrypted);
+                        }
+
+                        // decrypted with the key of the session, so it is from the node of the session
+                        deliver(session.remoteNodeId, decrypted);
+                    } else {
+                        sendNack(block.senderNodeId, block.blockId, sender);
+                    }
+                    break;
+
+                case PacketTypes.NACK:
+                    nackBlockId = Boss.load(block.payload);
+                    log.d("%s got nack from %d for block %d", getLabel(), block.senderNodeId, nackBlockId);
+                    nacksReceived.incrementAndGet();
+
+                    session = sessionsById.get(block.senderNodeId);
+                    if (session != null) {
+                        synchronized (session) {
+                            // ignore nacks to the blocks of the previous sessions
+                            if (session.isSending(nackBlockId)) {
+                                if (session.isValid()) {
+                                    session.reset();
+                                    session.initiator = true;
+                                    startHandshake(session);
+                                } else if (session.initiator && session.resumeBlockId == nackBlockId) {
+                                    // the ticket is not accepted, fall back to the full handshake
+                                    sessionTickets.remove(session.remoteNodeId);
+                                    session.reset();
+                                    session.initiator = true;
+                                    sendHello(session);
+                                }
+                            }
+                        }
+                    }
+                    break;
+
+                case PacketTypes.RESUMED:
+                    log.d("%s got resumed from %d", getLabel(), block.senderNodeId);
+                    session = sessionsById.get(block.senderNodeId);
+                    SessionTicket ticket = sessionTickets.get(block.senderNodeId);
+                    if (session == null || ticket == null || !session.initiator || session.state != Session.HANDSHAKE || session.resumeBlockId == 0)
+                        break;
+                    unbossedPayload = Boss.load(block.payload);
+                    byte[] remoteNonce = unbossedPayload.getBinaryOrThrow("nonce");
+                    if (!Arrays.equals(hmac(ticket.secret, "resumed", session.localNonce, remoteNonce), unbossedPayload.getBinaryOrThrow("proof"))) {
+                        reject(block, "resumption proof is not valid");
+                        break;
+                    }
+                    synchronized (session) {
+                        session.remoteNonce = remoteNonce;
+                        session.sessionKey = new SymmetricKey(hmac(ticket.secret, "session key", session.localNonce, remoteNonce));
+                        session.codec = PayloadCodec.choose(asList(unbossedPayload.getString("codec", "")));
+                        session.resumed = true;
+                        session.established();
+                    }
+                    break;
+
+                case PacketTypes.TICKET:
+                    session = sessionsById.get(block.senderNodeId);
+                    if (session == null || !session.isValid())
+                        break;
+                    try {
+                        unbossedPayload = Boss.load(session.sessionKey.etaDecrypt(block.payload));
+                    } catch (SymmetricKey.AuthenticationFailed | EncryptionError e) {
+                        decryptFailures.incrementAndGet();
+                        log.d("%s can't decrypt ticket from %d: %s", getLabel(), block.senderNodeId, e.getMessage());
+                        break;
+                    }
+                    sessionTickets.put(block.senderNodeId, new SessionTicket(
+                            unbossedPayload.getBinaryOrThrow("ticket"),
+                            unbossedPayload.getBinaryOrThrow("secret"),
+                            System.currentTimeMillis() + Math.min(SESSION_TICKET_LIFETIME, unbossedPayload.getLongOrThrow("lifetime"))));
+                    break;
+            }
+        }
+
+        /**
+         * Resume the session with the ticket this node has issued. Costs no RSA operations: the ticket is decrypted
+         * with the symmetric key, and the remote proves it knows the secret of the ticket.
+         */
+        private void acceptResume(Block block, Session session, InetSocketAddress sender) throws EncryptionError, InterruptedException {
+            Binder unbossedPayload = Boss.load(block.payload);
+            byte[] remoteNonce = unbossedPayload.getBinaryOrThrow("nonce");
+            List ticketData;
+            try {
+                byte[] packed;
+                synchronized (ticketKey) {
+                    packed = ticketKey.etaDecrypt(unbossedPayload.getBinaryOrThrow("ticket"));
+                }
+                ticketData = Boss.load(packed);
+            } catch (SymmetricKey.AuthenticationFailed | EncryptionError e) {
+                decryptFailures.incrementAndGet();
+                reject(block, "unknown session ticket");
+                sendNack(block.senderNodeId, block.blockId, sender);
+                return;
+            }
+            int holderId = ((Number) ticketData.get(0)).intValue();
+            byte[] secret = ((Bytes) ticketData.get(1)).toArray();
+            long expiresAt = ((Number) ticketData.get(2)).longValue();
+            if (holderId != block.senderNodeId || expiresAt < System.currentTimeMillis() ||
+                    !Arrays.equals(hmac(secret, "resume", remoteNonce), unbossedPayload.getBinaryOrThrow("proof"))) {
+                reject(block, "session ticket is not valid");
+                sendNack(block.senderNodeId, block.blockId, sender);
+                return;
+            }
+
+            PublicKey key = new PublicKey(((Bytes) ticketData.get(3)).toArray());
+            if (session == null) {
+                session = createSession(block.senderNodeId, key, sender.getAddress(), sender.getPort());
+            }
+            synchronized (session) {
+                session.reset();
+                session.publicKey = key;
+                session.remoteAddress = sender;
+                session.initiator = false;
+                session.helloBlockId = block.blockId;
+                session.markReceived(block);
+                session.remoteNonce = remoteNonce;
+                session.sessionKey = new SymmetricKey(hmac(secret, "session key", remoteNonce, session.localNonce));
+                session.codec = PayloadCodec.choose(unbossedPayload.getList("codecs", null));
+                session.resumed = true;
+                // session becomes valid when the answer is acknowledged, see Session#blockDelivered
+                sendResumed(session, secret);
+            }
+        }
+    }
+
+
+    /**
+     * Received datagram with the address it came from, so the address can't be overwritten by the next receive.
+     */
+    static private class ReceivedDatagram {
+        final ByteBuffer buffer;
+        final InetSocketAddress sender;
+
+        ReceivedDatagram(ByteBuffer buffer, InetSocketAddress sender) {
+            this.buffer = buffer;
+            this.sender = sender;
+        }
+    }
+
+
+    static private class OutgoingDatagram {
+        final ByteBuffer buffer;
+        final InetSocketAddress destination;
+
+        OutgoingDatagram(ByteBuffer buffer, InetSocketAddress destination) {
+            this.buffer = buffer;
+            this.destination = destination;
+        }
+    }
+
+
+    /**
+     * Collects packets of incoming blocks until the blocks are complete. Blocks are keyed by the sender node id and the
+     * block id. A block no packet came for during the timeout is dropped, and when the payload of the incomplete
+     * blocks exceeds the budget, the least recently updated ones are dropped. Owned by a single worker thread, only
+     * the counters could be read from other threads.
+     */
+    static class Reassembler {
+        private final long budget;
+        private volatile long timeout;
+        // the least recently updated block comes first: blocks are moved to the end only when updated, so the order
+        // follows updatedAt, rejected packets don't change it
+        private final LinkedHashMap<Long, Block> blocks = new LinkedHashMap<>();
+
+        private final AtomicLong bufferedBytes = new AtomicLong();
+        private final AtomicLong completed = new AtomicLong();
+        private final AtomicLong expired = new AtomicLong();
+        private final AtomicLong evicted = new AtomicLong();
+        private final AtomicLong duplicates = new AtomicLong();
+        private final AtomicLong malformed = new AtomicLong();
+
+        /**
+         * @param budget max size of the payload of incomplete blocks, in bytes
+         * @param timeout time to keep the block after its last packet, in nanoseconds
+         */
+        Reassembler(long budget, long timeout) {
+            this.budget = budget;
+            this.timeout = timeout;
+        }
+
+        /**
+         * @param timeout time to keep the block after its last packet, in nanoseconds
+         */
+        void setTimeout(long timeout) {
+            this.timeout = timeout;
+        }
+
+        /**
+         * Add the received packet to its block.
+         *
+         * @param now current {@link System#nanoTime()}
+         * @return the block if the packet completes it, null otherwise
+         */
+        Block add(Packet packet, long now) {
+            expire(now);
+            long key = ((long) packet.senderNodeId << 32) | (packet.blockId & 0xFFFFFFFFL);
+            Block block = blocks.get(key);
+            if (block == null) {
+                block = new Block(packet.senderNodeId, packet.receiverNodeId, packet.blockId, packet.type);
+            } else {
+                Packet first = block.packets.values().iterator().next();
+                if (first.brotherPacketsNum != packet.brotherPacketsNum || first.type != packet.type) {
+                    malformed.incrementAndGet();
+                    return null;
+                }
+            }
+            if (!block.addToPackets(packet)) {
+                duplicates.incrementAndGet();
+                return null;
+            }
+            block.updatedAt = now;
+            block.bufferedBytes += packet.payload.length;
+            bufferedBytes.addAndGet(packet.payload.length);
+
+            blocks.remove(key);
+            if (block.isSolid()) {
+                bufferedBytes.addAndGet(-block.bufferedBytes);
+                completed.incrementAndGet();
+                return block;
+            }
+            blocks.put(key, block);
+            // the block being received is kept even if it alone exceeds the budget
+            Iterator<Map.Entry<Long, Block>> it = blocks.entrySet().iterator();
+            while (bufferedBytes.get() > budget && blocks.size() > 1) {
+                Map.Entry<Long, Block> eldest = it.next();
+                bufferedBytes.addAndGet(-eldest.getValue().bufferedBytes);
+                it.remove();
+                evicted.incrementAndGet();
+            }
+            return null;
+        }
+
+        /**
+         * Drop blocks with no packets received during the timeout.
+         */
+        void expire(long now) {
+            Iterator<Block> it = blocks.values().iterator();
+            while (it.hasNext()) {
+                Block block = it.next();
+                if (now - block.updatedAt < timeout)
+                    break;
+                bufferedBytes.addAndGet(-block.bufferedBytes);
+                it.remove();
+                expired.incrementAndGet();
+            }
+        }
+
+        /**
+         * @return "bytes" of incomplete blocks, and the number of blocks "completed", "expired", "evicted" over the
+         * budget, and the number of "duplicates" and "malformed" packets dropped
+         */
+        Binder getStats() {
+            return Binder.fromKeysValues(
+                    "bytes", bufferedBytes.get(),
+                    "completed", completed.get(),
+                    "expired", expired.get(),
+                    "evicted", evicted.get(),
+                    "duplicates", duplicates.get(),
+                    "malformed", malformed.get()
+            );
+        }
+    }
+
+
+    /**
+     * Ring of the last packets sent and received. Records are small and immutable, they are converted to binders only
+     * when the trace is read.
+     */
+    static class PacketTrace {
+        private final Record[] records;
+        private int next = 0;
+        private boolean full = false;
+
+        PacketTrace(int capacity) {
+            records = new Record[capacity];
+        }
+
+        void add(boolean outgoing, int peer, Packet packet) {
+            Record record = new Record(outgoing, peer, packet);
+            synchronized (this) {
+                records[next] = record;
+                if (++next == records.length) {
+                    next = 0;
+                    full = true;
+                }
+            }
+        }
+
+        synchronized List<Binder> getRecords() {
+            List<Binder> result = new ArrayList<>();
+            for (int i = full ? next : 0, n = full ? records.length : next; n > 0; n--, i = (i + 1) % records.length)
+                result.add(records[i].toBinder());
+            return result;
+        }
+
+        static private class Record {
+            final long at = System.currentTimeMillis();
+            final boolean outgoing;
+            final int peer;
+            final int type;
+            final int blockId;
+            final int packetId;
+            final int packets;
+            final int seq;
+            final int size;
+
+            Record(boolean outgoing, int peer, Packet packet) {
+                this.outgoing = outgoing;
+                this.peer = peer;
+                type = packet.type;
+                blockId = packet.blockId;
+                packetId = packet.packetId;
+                packets = packet.brotherPacketsNum;
+                seq = packet.seq;
+                size = packet.getFrameSize();
+            }
+
+            Binder toBinder() {
+                return Binder.fromKeysValues(
+                        "at", at,
+                        "direction", outgoing ? "out" : "in",
+                        "peer", peer,
+                        "type", type,
+                        "block_id", blockId,
+                        "packet_id", packetId,
+                        "packets", packets,
+                        "seq", seq,
+                        "size", size
+                );
+            }
+        }
+    }
+
+
+    /**
+     * Token bucket limiting the rate of sent bytes. Tokens could go below zero: the datagram is sent if there is
+     * anything in the bucket, and its excess delays the next ones, so datagrams larger than the bucket still pass.
+     */
+    static class TokenBucket {
+        // bytes per second, 0 for unlimited
+        private double rate = 0;
+        private double capacity = 0;
+        private double tokens = 0;
+        private long updatedAt = System.nanoTime();
+
+        synchronized void setRate(double rate, double capacity) {
+            this.rate = rate;
+            this.capacity = capacity;
+            tokens = Math.min(tokens, capacity);
+        }
+
+        synchronized double getRate() {
+            return rate;
+        }
+
+        synchronized boolean isReady(long now) {
+            if (rate <= 0)
+                return true;
+            tokens = Math.min(capacity, tokens + rate * (now - updatedAt) / TimeUnit.SECONDS.toNanos(1));
+            updatedAt = now;
+            return tokens > 0;
+        }
 
-                        receiver.accept(decrypted);
+        synchronized void take(int bytes) {
+            if (rate > 0)
+                tokens -= bytes;
+        }
+    }
 
-                        sendAck(session, block.blockId);
-                    } else {
-                        session = createSession(block.senderNodeId, null, receivedDatagram.getAddress(), receivedDatagram.getPort());
-                        sendNack(session, block.blockId);
-                    }
-                    break;
 
-                case PacketTypes.ACK:
-                    System.out.println(getLabel() + " got ack from " + block.senderNodeId);
-                    ackBlockId = Boss.load(block.payload);
-                    session = sessionsById.get(block.senderNodeId);
-                    if(session != null && session.isValid()) {
-                        session.makeBlockDelivered(ackBlockId);
-                    }
-                    break;
+    /**
+     * Pool of direct buffers of the datagram size. Buffers are allocated on demand and at most {@code maxPooled} of
+     * them are kept for reuse.
+     */
+    static class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        BufferPool(int bufferSize, int maxPooled) {
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
 
-                case PacketTypes.NACK:
-                    System.out.println(getLabel() + " got nack from " + block.senderNodeId);
-                    ackBlockId = Boss.load(block.payload);
-                    System.out.println(getLabel() + " blockId: " + ackBlockId);
+        ByteBuffer take() {
+            return take(bufferSize);
+        }
 
-                    session = sessionsById.get(block.senderNodeId);
-                    if(session != null && session.isValid()) {
-                        session.moveBlocksFromSendingToWaiting();
-                        session.state = Session.HANDSHAKE;
-                        session.sessionKey = sessionKey;
-                        sendHello(session);
-                    }
-                    break;
-            }
+        /**
+         * @return buffer limited to the size, the pooled one if it is large enough
+         */
+        ByteBuffer take(int size) {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer != null)
+                pooled.decrementAndGet();
+            // smaller buffers pooled before the size has grown are left to the GC
+            if (buffer == null || buffer.capacity() < size)
+                buffer = ByteBuffer.allocateDirect(size);
+            buffer.clear();
+            buffer.limit(size);
+            return buffer;
+        }
+
+        void release(ByteBuffer buffer) {
+            if (pooled.incrementAndGet() <= maxPooled)
+                buffers.add(buffer);
+            else
+                pooled.decrementAndGet();
         }
     }
 
@@ -542,10 +1622,109 @@ public class UDPAdapter extends DatagramAdapter {
         static public final int WELCOME =   4;
         static public final int KEY_REQ =   5;
         static public final int SESSION =   6;
+        static public final int PROBE =     7;
+        static public final int PROBE_ACK = 8;
+        static public final int RESUME =    9;
+        static public final int RESUMED =   10;
+        static public final int TICKET =    11;
+    }
+
+
+    /**
+     * Datagram on the wire: a header with the acknowledgement state of the sender, followed by the packets coalesced
+     * into it, if any:
+     * <pre>
+     *     offset size  field
+     *       0     1    header version ({@link #HEADER_VERSION})
+     *       1     1    reserved, 0
+     *       2     4    sender node id
+     *       6     4    receiver node id
+     *      10     4    cumulative ack: next sequence number expected from the receiver of this datagram
+     *      14     4    selective ack: bit i is set if the packet (ack + 1 + i) is received
+     *      18     -    packets, see {@link Packet}
+     * </pre>
+     * All values are big-endian.
+     */
+    static public class Envelope {
+
+        static public final byte HEADER_VERSION = 3;
+        static public final int HEADER_SIZE = 18;
+
+        private int senderNodeId;
+        private int receiverNodeId;
+        private int ack;
+        private int sackBits;
+        private final List<Packet> packets = new ArrayList<>();
+
+        static void writeHeader(ByteBuffer buffer, int senderNodeId, int receiverNodeId, int ack, int sackBits) {
+            buffer.put(HEADER_VERSION);
+            buffer.put((byte) 0);
+            buffer.putInt(senderNodeId);
+            buffer.putInt(receiverNodeId);
+            buffer.putInt(ack);
+            buffer.putInt(sackBits);
+        }
+
+        /**
+         * Read the datagram from the buffer, from its position up to the limit.
+         *
+         * @throws IOException if the datagram is truncated, of unknown version or its packets are inconsistent
+         */
+        static public Envelope readFrom(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < HEADER_SIZE)
+                throw new IOException("datagram is too short: " + buffer.remaining());
+            byte version = buffer.get();
+            if (version != HEADER_VERSION)
+                throw new IOException("unsupported datagram header version: " + version);
+            buffer.get();
+            Envelope envelope = new Envelope();
+            envelope.senderNodeId = buffer.getInt();
+            envelope.receiverNodeId = buffer.getInt();
+            envelope.ack = buffer.getInt();
+            envelope.sackBits = buffer.getInt();
+            while (buffer.hasRemaining()) {
+                Packet packet = new Packet();
+                packet.senderNodeId = envelope.senderNodeId;
+                packet.receiverNodeId = envelope.receiverNodeId;
+                packet.readFrom(buffer);
+                envelope.packets.add(packet);
+            }
+            return envelope;
+        }
+
+        public List<Packet> getPackets() {
+            return packets;
+        }
     }
 
 
-    public class Packet {
+    /**
+     * Part of the block carried by a datagram, see {@link Envelope}. On the wire it is a fixed-size binary header
+     * followed by the payload chunk:
+     * <pre>
+     *     offset size  field
+     *       0     1    block type ({@link PacketTypes})
+     *       1     4    block id
+     *       5     2    packet index in the block (unsigned)
+     *       7     2    number of packets in the block (unsigned)
+     *       9     4    sequence number of the packet in the session, 0 if the packet is not sequenced
+     *      13     2    payload length (unsigned)
+     *      15     -    payload chunk
+     * </pre>
+     * All values are big-endian.
+     */
+    static public class Packet {
+
+        static public final int FRAME_HEADER_SIZE = 15;
+        /**
+         * Overhead of the datagram carrying a single packet
+         */
+        static public final int HEADER_SIZE = Envelope.HEADER_SIZE + FRAME_HEADER_SIZE;
+        /**
+         * Max number of packets a block can be split to, limited by the 2-byte index field.
+         */
+        static public final int MAX_PACKETS_IN_BLOCK = 0xFFFF;
+
         private int senderNodeId;
         private int receiverNodeId;
         private int blockId;
@@ -554,6 +1733,7 @@ public class UDPAdapter extends DatagramAdapter {
         // Num of packets in parent sequence if parent block is splitted to blocks sequence
         private int brotherPacketsNum = 0;
         private int type;
+        private int seq;
         private byte[] payload;
 
         public Packet() {
@@ -569,38 +1749,104 @@ public class UDPAdapter extends DatagramAdapter {
             this.payload = payload;
         }
 
+        public int getFrameSize() {
+            return FRAME_HEADER_SIZE + payload.length;
+        }
+
+        /**
+         * @return datagram carrying only this packet, with no acknowledgement
+         */
         public byte[] makeByteArray() {
-            List data = asList(brotherPacketsNum, packetId, senderNodeId, receiverNodeId, blockId, type, new Bytes(payload));
-            Bytes byteArray = Boss.dump(data);
-            return byteArray.toArray();
+            ByteBuffer buffer = ByteBuffer.allocate(Envelope.HEADER_SIZE + getFrameSize());
+            Envelope.writeHeader(buffer, senderNodeId, receiverNodeId, 0, 0);
+            writeTo(buffer);
+            return buffer.array();
+        }
+
+        /**
+         * Put the packet to the buffer at its current position.
+         *
+         * @param buffer to write to, should have at least {@link #getFrameSize()} bytes remaining
+         */
+        public void writeTo(ByteBuffer buffer) {
+            buffer.put((byte) type);
+            buffer.putInt(blockId);
+            buffer.putShort((short) packetId);
+            buffer.putShort((short) brotherPacketsNum);
+            buffer.putInt(seq);
+            buffer.putShort((short) payload.length);
+            buffer.put(payload);
         }
 
+        /**
+         * Read the datagram carrying a single packet, as made by {@link #makeByteArray()}.
+         */
         public void parseFromByteArray(byte[] byteArray) throws IOException {
+            Envelope envelope = Envelope.readFrom(ByteBuffer.wrap(byteArray));
+            if (envelope.packets.size() != 1)
+                throw new IOException("expected single packet, got " + envelope.packets.size());
+            Packet packet = envelope.packets.get(0);
+            senderNodeId = packet.senderNodeId;
+            receiverNodeId = packet.receiverNodeId;
+            blockId = packet.blockId;
+            packetId = packet.packetId;
+            brotherPacketsNum = packet.brotherPacketsNum;
+            type = packet.type;
+            seq = packet.seq;
+            payload = packet.payload;
+        }
 
-            List data = Boss.load(byteArray);
-            brotherPacketsNum = (int) data.get(0);
-            packetId = (int) data.get(1);
-            senderNodeId = (int) data.get(2);
-            receiverNodeId = (int) data.get(3);
-            blockId = (int) data.get(4);
-            type = (int) data.get(5);
-            payload = ((Bytes) data.get(6)).toArray();
+        /**
+         * Read the packet from the buffer position, leaving the position after it.
+         *
+         * @throws IOException if the packet is truncated or inconsistent
+         */
+        public void readFrom(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < FRAME_HEADER_SIZE)
+                throw new IOException("packet is too short: " + buffer.remaining());
+            type = buffer.get();
+            blockId = buffer.getInt();
+            packetId = buffer.getShort() & 0xFFFF;
+            brotherPacketsNum = buffer.getShort() & 0xFFFF;
+            seq = buffer.getInt();
+            int length = buffer.getShort() & 0xFFFF;
+            if (packetId >= brotherPacketsNum)
+                throw new IOException("bad packet index " + packetId + " of " + brotherPacketsNum);
+            if (length > buffer.remaining())
+                throw new IOException("packet payload is truncated: " + length + " of " + buffer.remaining());
+            payload = new byte[length];
+            buffer.get(payload);
         }
     }
 
 
-    public class Block
+    static public class Block
     {
         private int senderNodeId;
         private int receiverNodeId;
         private int blockId;
         private int type;
         private byte[] payload;
-        private int sendAttempts;
 
         private ConcurrentHashMap<Integer, Packet> packets;
 
-        private Boolean delivered = false;
+        private volatile Boolean delivered = false;
+
+        /**
+         * Time the last packet of the incoming block was received, and the size of its received packets
+         */
+        private long updatedAt;
+        private long bufferedBytes;
+
+        /**
+         * Number of packets of the sent block not acknowledged yet
+         */
+        private int unackedPackets;
+
+        /**
+         * For the DATA block, the RAW_DATA block it is encrypted from, to encrypt it again in the next session
+         */
+        private Block source;
 
         public Block() {
             packets = new ConcurrentHashMap<>();
@@ -628,25 +1874,16 @@ public class UDPAdapter extends DatagramAdapter {
         public ConcurrentHashMap<Integer, Packet> splitByPackets(int packetSize) {
             packets = new ConcurrentHashMap<>();
 
-            List headerData = asList(0, 0, senderNodeId, receiverNodeId, blockId, type);
-            int headerSize = Boss.dump(headerData).size() + 3; // 3 - Boss artefact
-
-            Packet packet;
-            byte[] cutPayload;
-            int offset = 0;
-            int copySize = 0;
-            int packetId = 0;
-            int packetsNum = payload.length / (packetSize - headerSize) + 1;
-            while(payload.length > offset) {
-                copySize = packetSize - headerSize;
-                if(offset + copySize >= payload.length) {
-                    copySize = payload.length - offset;
-                }
-                cutPayload = Arrays.copyOfRange(payload, offset, offset + copySize);
-                packet = new Packet(packetsNum, packetId, senderNodeId, receiverNodeId, blockId, type, cutPayload);
-                packets.putIfAbsent(packetId, packet);
-                offset += copySize;
-                packetId++;
+            int chunkSize = packetSize - Packet.HEADER_SIZE;
+            // empty block still needs one packet to be transmitted
+            int packetsNum = Math.max(1, (payload.length + chunkSize - 1) / chunkSize);
+            if (packetsNum > Packet.MAX_PACKETS_IN_BLOCK)
+                throw new IllegalArgumentException("block is too large: " + payload.length + " bytes");
+
+            for (int packetId = 0; packetId < packetsNum; packetId++) {
+                int offset = packetId * chunkSize;
+                byte[] cutPayload = Arrays.copyOfRange(payload, offset, Math.min(offset + chunkSize, payload.length));
+                packets.put(packetId, new Packet(packetsNum, packetId, senderNodeId, receiverNodeId, blockId, type, cutPayload));
             }
 
             return packets;
@@ -654,16 +1891,18 @@ public class UDPAdapter extends DatagramAdapter {
 
         public void reconstruct() throws IOException {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-            for (Packet packet : packets.values()) {
-                outputStream.write(packet.payload);
+            // packets are keyed by index, so walk indexes to keep the order
+            for (int i = 0; i < packets.size(); i++) {
+                outputStream.write(packets.get(i).payload);
             }
             payload = outputStream.toByteArray();
         }
 
-        public void addToPackets(Packet packet) {
-            if(!packets.containsKey(packet.packetId)) {
-                packets.putIfAbsent(packet.packetId, packet);
-            }
+        /**
+         * @return false if the packet with the same index is already there
+         */
+        public boolean addToPackets(Packet packet) {
+            return packets.putIfAbsent(packet.packetId, packet) == null;
         }
 
         public Boolean isSolid() {
@@ -680,6 +1919,52 @@ public class UDPAdapter extends DatagramAdapter {
         public Boolean isDelivered() {
             return delivered;
         }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+
+    /**
+     * Ticket issued by the remote node, opaque to this node, with the secret this node derived from the same session.
+     */
+    static class SessionTicket {
+        final byte[] ticket;
+        final byte[] secret;
+        final long expiresAt;
+
+        SessionTicket(byte[] ticket, byte[] secret, long expiresAt) {
+            this.ticket = ticket;
+            this.secret = secret;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    /**
+     * Packet sent within the session and not acknowledged yet.
+     */
+    static private class OutgoingPacket {
+        static final Comparator<OutgoingPacket> BY_DEADLINE = (a, b) -> {
+            int result = Long.compare(a.deadline - b.deadline, 0);
+            return result != 0 ? result : Integer.compare(a.seq, b.seq);
+        };
+
+        final Block block;
+        final Packet packet;
+        final int seq;
+        int attempts;
+        long firstSentAt;
+        long sentAt;
+        long deadline;
+        boolean fastRetransmitted;
+
+        OutgoingPacket(Block block, Packet packet, int seq) {
+            this.block = block;
+            this.packet = packet;
+            this.seq = seq;
+        }
     }
 
 
@@ -687,34 +1972,129 @@ public class UDPAdapter extends DatagramAdapter {
 
         private PublicKey publicKey;
         private SymmetricKey sessionKey;
-        private InetAddress address;
-        private int port;
+        private InetSocketAddress remoteAddress;
         private byte[] localNonce;
         private byte[] remoteNonce;
         private int remoteNodeId = 0;
 
+        /**
+         * True if this node has started the handshake (sent hello)
+         */
+        private boolean initiator;
+        /**
+         * Block id of the hello the session was created by, to recognize its retransmissions
+         */
+        private int helloBlockId;
+        /**
+         * Block id of the resume sent by the initiator, 0 if it started with hello
+         */
+        private int resumeBlockId;
+        /**
+         * True if the session is established with the ticket rather than the full handshake
+         */
+        private boolean resumed;
+        /**
+         * Payload codec negotiated for the session, null if data are not compressed
+         */
+        private String codec;
+        private long compressedPayloads = 0;
+        private long uncompressedBytes = 0;
+        private long compressedBytes = 0;
+
         private int state;
 
         static public final int HANDSHAKE =      0;
         static public final int EXCHANGING =     1;
 
         /**
-         * Queue where store not sent yet Blocks.
+         * Blocks not sent yet because the session is not established, by block id in the order they were added.
+         */
+        private LinkedHashMap<Integer, Block> waitingBlocks = new LinkedHashMap<>();
+
+        /**
+         * Blocks sent and not delivered yet, by block id.
+         */
+        private final HashMap<Integer, Block> sendingBlocks = new HashMap<>();
+
+        // sending side of the sequence
+        private int nextSeq = 1;
+        /**
+         * Packets sent and not acknowledged, by sequence number. Insertion order is the sequence order.
+         */
+        private final LinkedHashMap<Integer, OutgoingPacket> inFlight = new LinkedHashMap<>();
+        /**
+         * Packets in flight ordered by the retransmission deadline, earliest first
+         */
+        private final TreeSet<OutgoingPacket> retransmitQueue = new TreeSet<>(OutgoingPacket.BY_DEADLINE);
+        private final ArrayDeque<OutgoingPacket> pendingPackets = new ArrayDeque<>();
+        private long smoothedRtt = 0;
+        private long rttVariation = 0;
+        private long rto = TimeUnit.MILLISECONDS.toNanos(INITIAL_RTO);
+
+        // congestion control
+        private double cwnd = INITIAL_CWND;
+        private double ssthresh = SEND_WINDOW;
+        /**
+         * Sequence number sent next when the window was reduced last time: losses of the packets sent before it
+         * belong to the same congestion event and don't reduce the window again
+         */
+        private int recoverySeq = 1;
+        private final TokenBucket pacer = new TokenBucket();
+        private long retransmits = 0;
+        private long fastRetransmits = 0;
+        private long congestionEvents = 0;
+
+        /**
+         * Packets to send with the next flush, see {@link #flush()}
+         */
+        private final ArrayList<Packet> outbox = new ArrayList<>();
+        private int corks = 0;
+        /**
+         * Datagram size confirmed to pass the path to the remote
+         */
+        private volatile int mtu = MAX_PACKET_SIZE;
+        // path MTU probing: size of the probe in flight, 0 if none, and the least size known not to pass
+        private int probeSize = 0;
+        private int probeAttempts = 0;
+        private long probeDeadline;
+        private int probeHigh;
+        /**
+         * Last time anything was received from the remote
          */
-        private BlockingQueue<Block> waitingBlocksQueue = new LinkedBlockingQueue<>();
+        private volatile long lastHeardAt;
+        private long lastSentAt;
+        private long handshakeStartedAt;
+        private long handshakeTime = 0;
+        private long sentDatagrams = 0;
+        private long sentBytes = 0;
+        private long receivedDatagrams = 0;
+        private long receivedBytes = 0;
+        private int handshakeAttempts = 0;
+        /**
+         * Scheduled {@link #check()}, at most one per session
+         */
+        private HashedWheelTimer.Timeout timeout;
+        private long timeoutAt;
+        /**
+         * Set when the session is removed from the adapter, blocks should not be added to it anymore
+         */
+        private boolean forgotten = false;
 
+        // receiving side of the sequence
+        private int receiveNext = 1;
         /**
-         * Queue where store sending Blocks.
+         * Bit i is set if the packet (receiveNext + i) is received
          */
-        private BlockingQueue<Block> sendingBlocksQueue = new LinkedBlockingQueue<>();
+        private BitSet receivedAhead = new BitSet();
+        private boolean ackPending = false;
 
 
         Session(PublicKey key, InetAddress address, int port) throws EncryptionError {
             publicKey = key;
-            this.address = address;
-            this.port = port;
+            remoteAddress = new InetSocketAddress(address, port);
             localNonce = Do.randomBytes(64);
             state = HANDSHAKE;
+            handshakeStartedAt = lastHeardAt = lastSentAt = System.nanoTime();
         }
 
         public Boolean isValid() {
@@ -744,7 +2124,6 @@ public class UDPAdapter extends DatagramAdapter {
             if (sessionKey == null) {
                 sessionKey = new SymmetricKey();
             }
-            state = EXCHANGING;
         }
 
         public void reconstructSessionKey(byte[] key) throws EncryptionError {
@@ -752,51 +2131,557 @@ public class UDPAdapter extends DatagramAdapter {
             state = EXCHANGING;
         }
 
-        public void addBlockToWaitingQueue(Block block) throws InterruptedException {
-            if(!waitingBlocksQueue.contains(block))
-                waitingBlocksQueue.put(block);
+        synchronized void addBlockToWaitingQueue(Block block) {
+            waitingBlocks.putIfAbsent(block.blockId, block);
+        }
+
+        synchronized Block pollWaitingBlock() {
+            Iterator<Block> it = waitingBlocks.values().iterator();
+            if (!it.hasNext())
+                return null;
+            Block block = it.next();
+            it.remove();
+            return block;
+        }
+
+        synchronized boolean isSending(int blockId) {
+            return sendingBlocks.containsKey(blockId);
+        }
+
+        /**
+         * Start the session over: drop the sequence state and the handshake data, and put the data blocks that are
+         * not delivered yet back to the waiting queue to be encrypted with the key of the next session.
+         */
+        synchronized void reset() throws InterruptedException {
+            LinkedHashMap<Integer, Block> waiting = new LinkedHashMap<>();
+            for (Block sendingBlock : sendingBlocks.values()) {
+                if (sendingBlock.source != null && !sendingBlock.isDelivered())
+                    waiting.put(sendingBlock.source.blockId, sendingBlock.source);
+            }
+            waiting.putAll(waitingBlocks);
+            waitingBlocks = waiting;
+            sendingBlocks.clear();
+
+            inFlight.clear();
+            retransmitQueue.clear();
+            cwnd = INITIAL_CWND;
+            ssthresh = SEND_WINDOW;
+            recoverySeq = 1;
+            pendingPackets.clear();
+            outbox.clear();
+            probeSize = 0;
+            probeAttempts = 0;
+            nextSeq = 1;
+            receiveNext = 1;
+            receivedAhead.clear();
+            ackPending = false;
+
+            state = HANDSHAKE;
+            localNonce = Do.randomBytes(64);
+            remoteNonce = null;
+            sessionKey = UDPAdapter.this.sessionKey;
+            helloBlockId = 0;
+            resumeBlockId = 0;
+            resumed = false;
+            codec = null;
+            handshakeStartedAt = System.nanoTime();
+        }
+
+        /**
+         * Assign sequence numbers to the packets of the block and send as many of them as the window allows.
+         */
+        synchronized void enqueue(Block block, List<Packet> packets) {
+            sendingBlocks.put(block.blockId, block);
+            block.unackedPackets = packets.size();
+            for (Packet packet : packets) {
+                OutgoingPacket op = new OutgoingPacket(block, packet, nextSeq);
+                packet.seq = nextSeq;
+                nextSeq = seqAdvance(nextSeq, 1);
+                if (pendingPackets.isEmpty() && inFlight.size() < sendWindow()) {
+                    inFlight.put(op.seq, op);
+                    transmit(op);
+                } else {
+                    pendingPackets.add(op);
+                }
+            }
+            flushUnlessCorked();
+        }
+
+        private void transmit(OutgoingPacket op) {
+            long now = System.nanoTime();
+            if (op.attempts++ == 0)
+                op.firstSentAt = now;
+            op.sentAt = now;
+            // the deadline is the sort key, so the packet is re-inserted
+            retransmitQueue.remove(op);
+            // exponential backoff of the packet retransmissions
+            op.deadline = now + Math.min(rto << Math.min(op.attempts - 1, 16), TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_TIME));
+            retransmitQueue.add(op);
+            outbox.add(op.packet);
+        }
+
+        /**
+         * Hold the outgoing packets until {@link #uncork()}, so everything sent meanwhile is coalesced. Calls could be
+         * nested.
+         */
+        synchronized void cork() {
+            corks++;
+        }
+
+        synchronized void uncork() {
+            if (--corks == 0)
+                flush();
+        }
+
+        private void flushUnlessCorked() {
+            if (corks == 0)
+                flush();
+        }
+
+        /**
+         * Send the packets collected in the outbox, packing as many of them into each datagram as the MTU allows,
+         * along with the acknowledgement of the received packets. Packets the pacing or the egress limit don't allow
+         * to send now stay in the outbox till the next flush. If no packets are sent but received packets are not
+         * acknowledged yet, sends the header-only datagram, which is not paced.
+         */
+        synchronized void flush() {
+            if (testMode == TestModes.SHUFFLE_PACKETS)
+                Collections.shuffle(outbox);
+            long now = System.nanoTime();
+            updatePacingRate();
+            int i = 0;
+            while (i < outbox.size()) {
+                if (!pacer.isReady(now) || !egress.isReady(now)) {
+                    pacingDelays.incrementAndGet();
+                    break;
+                }
+                ByteBuffer buffer = bufferPool.take();
+                writeEnvelopeHeader(buffer);
+                // the first packet always goes: blocks are split for the MTU, and probes are oversized on purpose
+                do {
+                    Packet packet = outbox.get(i++);
+                    packet.writeTo(buffer);
+                    trace(true, remoteNodeId, packet);
+                } while (i < outbox.size() && buffer.position() + outbox.get(i).getFrameSize() <= mtu);
+                buffer.flip();
+                pacer.take(buffer.remaining());
+                egress.take(buffer.remaining());
+                sent(buffer.remaining());
+                sendDatagram(buffer, remoteAddress);
+                lastSentAt = now;
+            }
+            outbox.subList(0, i).clear();
+            if (ackPending) {
+                ByteBuffer buffer = bufferPool.take();
+                writeEnvelopeHeader(buffer);
+                buffer.flip();
+                sent(buffer.remaining());
+                sendDatagram(buffer, remoteAddress);
+            }
+            scheduleCheck(now);
+        }
+
+        /**
+         * Make sure {@link #check()} runs by the nearest deadline of the session: the retransmission of the first
+         * packet, the MTU probe, the packets held by pacing, or the handshake or idle timeout since the last datagram
+         * sent or received. Timeout scheduled for the earlier time is kept, it just reschedules the check when fired.
+         */
+        private void scheduleCheck(long now) {
+            if (closed || forgotten)
+                return;
+            long due = lastActiveAt() + TimeUnit.MILLISECONDS.toNanos(state == HANDSHAKE ? handshakeTimeout : sessionIdleTimeout);
+            if (!retransmitQueue.isEmpty())
+                due = earliest(due, retransmitQueue.first().deadline);
+            if (probeSize != 0)
+                due = earliest(due, probeDeadline);
+            if (!outbox.isEmpty() && corks == 0)
+                due = earliest(due, now);
+            if (timeout != null && !timeout.isExpired() && !timeout.isCancelled()) {
+                if (timeoutAt - due <= 0)
+                    return;
+                timeout.cancel();
+            }
+            timeoutAt = due;
+            timeout = wheel.schedule(this::check, due - now, TimeUnit.NANOSECONDS);
+        }
+
+        private void sent(int size) {
+            sentDatagrams++;
+            sentBytes += size;
+        }
+
+        synchronized void received(int size) {
+            lastHeardAt = System.nanoTime();
+            receivedDatagrams++;
+            receivedBytes += size;
+        }
+
+        private long earliest(long time1, long time2) {
+            return time1 - time2 <= 0 ? time1 : time2;
+        }
+
+        private long lastActiveAt() {
+            long heard = lastHeardAt;
+            return heard - lastSentAt > 0 ? heard : lastSentAt;
+        }
+
+        private boolean isIdle() {
+            return sendingBlocks.isEmpty() && waitingBlocks.isEmpty() && retransmitQueue.isEmpty() &&
+                    pendingPackets.isEmpty() && outbox.isEmpty() && probeSize == 0;
+        }
+
+        /**
+         * Run by the timer: retransmit the lost packets, send what pacing allows, and start the handshake over if it
+         * stalls or drop the session if it is idle.
+         */
+        void check() {
+            try {
+                synchronized (this) {
+                    if (closed || forgotten)
+                        return;
+                    long now = System.nanoTime();
+                    checkRetransmits(now);
+                    if (forgotten)
+                        return;
+                    long silence = now - lastActiveAt();
+                    if (state == HANDSHAKE) {
+                        if (silence >= TimeUnit.MILLISECONDS.toNanos(handshakeTimeout))
+                            handshakeExpired();
+                    } else if (isIdle() && silence >= TimeUnit.MILLISECONDS.toNanos(sessionIdleTimeout)) {
+                        log.d("%ssession with %d is idle, forgotten", getLabel(), remoteNodeId);
+                        forget();
+                    }
+                    scheduleCheck(now);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.wtf(getLabel() + "session check failed", e);
+            }
+        }
+
+        /**
+         * The remote has stopped answering during the handshake. The initiator starts it over while there are blocks
+         * to send, up to {@link #HANDSHAKE_ATTEMPTS} times; the ticket is not used again, the remote may have lost
+         * it.
+         */
+        private void handshakeExpired() throws EncryptionError, InterruptedException {
+            log.d("%shandshake with %d timed out", getLabel(), remoteNodeId);
+            if (resumeBlockId != 0)
+                sessionTickets.remove(remoteNodeId);
+            boolean retry = initiator && ++handshakeAttempts < maxHandshakeAttempts;
+            reset();
+            if (retry && !waitingBlocks.isEmpty()) {
+                initiator = true;
+                startHandshake(this);
+            } else {
+                waitingBlocks.clear();
+                forget();
+            }
+        }
+
+        /**
+         * Remove the session from the adapter and stop its timer.
+         */
+        private void forget() {
+            forgotten = true;
+            cancelTimeout();
+            sessionsById.remove(remoteNodeId, this);
+        }
+
+        synchronized void cancelTimeout() {
+            if (timeout != null)
+                timeout.cancel();
+        }
+
+        private int sendWindow() {
+            return Math.min(SEND_WINDOW, (int) cwnd);
+        }
+
+        private void updatePacingRate() {
+            // not paced until the round-trip time is measured
+            if (smoothedRtt == 0)
+                return;
+            double rate = PACING_GAIN * cwnd * mtu * TimeUnit.SECONDS.toNanos(1) / smoothedRtt;
+            pacer.setRate(rate, Math.max(PACING_BURST * mtu, rate * RETRANSMIT_TICK * 2 / 1000));
+        }
+
+        /**
+         * Reduce the congestion window on the loss of the packet, once per window of data.
+         *
+         * @param timeout true if the loss is detected by the retransmission timeout, false for the fast retransmit
+         */
+        private void congestionDetected(OutgoingPacket op, boolean timeout) {
+            if (seqDistance(recoverySeq, op.seq) < 0)
+                return;
+            congestionEvents++;
+            recoverySeq = nextSeq;
+            ssthresh = Math.max(MIN_CWND, cwnd / 2);
+            cwnd = timeout ? MIN_CWND : ssthresh;
+        }
+
+        synchronized Binder getStats() {
+            return Binder.fromKeysValues(
+                    "sent_datagrams", sentDatagrams,
+                    "sent_bytes", sentBytes,
+                    "received_datagrams", receivedDatagrams,
+                    "received_bytes", receivedBytes,
+                    "handshake_ms", handshakeTime / 1e6,
+                    "cwnd", cwnd,
+                    "ssthresh", ssthresh,
+                    "in_flight", inFlight.size(),
+                    "pending", pendingPackets.size(),
+                    "srtt_ms", smoothedRtt / 1e6,
+                    "rto_ms", rto / 1e6,
+                    "pacing_rate", smoothedRtt == 0 ? 0 : pacer.getRate(),
+                    "mtu", mtu,
+                    "retransmits", retransmits,
+                    "fast_retransmits", fastRetransmits,
+                    "congestion_events", congestionEvents,
+                    "codec", codec == null ? "" : codec,
+                    "compressed_payloads", compressedPayloads,
+                    "compression_ratio", uncompressedBytes == 0 ? 1.0 : (double) compressedBytes / uncompressedBytes
+            );
+        }
+
+        private void writeEnvelopeHeader(ByteBuffer buffer) {
+            int bits = 0;
+            for (int i = receivedAhead.nextSetBit(1); i >= 1 && i <= 32; i = receivedAhead.nextSetBit(i + 1))
+                bits |= 1 << (i - 1);
+            Envelope.writeHeader(buffer, myNodeInfo.getId(), remoteNodeId, receiveNext, bits);
+            ackPending = false;
         }
 
-        public void addBlocksToSendingQueue(Block block) throws InterruptedException {
-            if(!sendingBlocksQueue.contains(block))
-                sendingBlocksQueue.put(block);
+        /**
+         * Start raising the MTU if a larger one is set for the remote with {@link #setPeerMtu(int, int)} or {@link
+         * #setMtu(int)}.
+         */
+        synchronized void startMtuProbing() {
+            int maxMtu = getMtu(remoteNodeId);
+            if (maxMtu <= mtu || probeSize != 0)
+                return;
+            probeHigh = maxMtu + 1;
+            sendMtuProbe(maxMtu);
+        }
+
+        private void sendMtuProbe(int size) {
+            probeSize = size;
+            probeAttempts++;
+            probeDeadline = System.nanoTime() + 2 * rto;
+            // the probe is padded to the probed size, so it never shares the datagram
+            outbox.add(new Packet(1, 0, myNodeInfo.getId(), remoteNodeId, 0, PacketTypes.PROBE, new byte[size - Packet.HEADER_SIZE]));
+            flushUnlessCorked();
+        }
+
+        synchronized void answerMtuProbe(Packet probe) {
+            byte[] size = ByteBuffer.allocate(4).putInt(Packet.HEADER_SIZE + probe.payload.length).array();
+            outbox.add(new Packet(1, 0, myNodeInfo.getId(), remoteNodeId, 0, PacketTypes.PROBE_ACK, size));
+            flushUnlessCorked();
+        }
+
+        synchronized void mtuProbeAnswered(Packet answer) {
+            if (answer.payload.length != 4 || probeSize == 0 || ByteBuffer.wrap(answer.payload).getInt() != probeSize)
+                return;
+            mtu = Math.max(mtu, probeSize);
+            probeSize = 0;
+            probeAttempts = 0;
+            nextMtuProbe();
         }
 
-        public void removeBlockFromWaitingQueue(Block block) throws InterruptedException {
-            if(waitingBlocksQueue.contains(block))
-                waitingBlocksQueue.remove(block);
+        private void mtuProbeExpired(long now) {
+            if (probeSize == 0 || probeDeadline - now > 0)
+                return;
+            if (probeAttempts < MTU_PROBE_ATTEMPTS) {
+                sendMtuProbe(probeSize);
+            } else {
+                probeHigh = probeSize;
+                probeSize = 0;
+                probeAttempts = 0;
+                nextMtuProbe();
+            }
         }
 
-        public void removeBlockFromSendingQueue(Block block) throws InterruptedException {
-            if(sendingBlocksQueue.contains(block))
-                sendingBlocksQueue.remove(block);
+        /**
+         * Binary search between the confirmed MTU and the least size known not to pass.
+         */
+        private void nextMtuProbe() {
+            if (probeHigh - mtu > MTU_PROBE_PRECISION)
+                sendMtuProbe((mtu + probeHigh) / 2);
         }
 
-        public void makeBlockDelivered(int blockId) throws InterruptedException {
+        /**
+         * Register received sequenced packet.
+         *
+         * @return false if the packet is a duplicate or beyond the receive window and should be dropped
+         */
+        synchronized boolean markReceived(int seq) {
+            int offset = seqDistance(receiveNext, seq);
+            if (offset >= RECEIVE_WINDOW)
+                return false;
+            ackPending = true;
+            if (offset < 0 || receivedAhead.get(offset))
+                return false;
+            receivedAhead.set(offset);
+            int received = receivedAhead.nextClearBit(0);
+            if (received > 0) {
+                receivedAhead = receivedAhead.get(received, Math.max(received, receivedAhead.length()));
+                receiveNext = seqAdvance(receiveNext, received);
+            }
+            return true;
+        }
 
+        synchronized void markReceived(Block block) {
+            for (Packet packet : block.packets.values())
+                markReceived(packet.seq);
+        }
 
-            for (Block sendingBlock : sendingBlocksQueue) {
-                if (sendingBlock.blockId == blockId) {
-                    removeBlockFromSendingQueue(sendingBlock);
-                    sendingBlock.delivered = true;
+        /**
+         * Process acknowledgement received from the remote: release acknowledged packets, update round-trip time,
+         * fast-retransmit packets reported missing and send pending packets the window now allows.
+         */
+        synchronized void acknowledge(int ack, int sackBits) throws EncryptionError, InterruptedException {
+            if (ack == 0 || inFlight.isEmpty())
+                return;
+            long now = System.nanoTime();
+            List<Block> deliveredBlocks = new ArrayList<>();
+
+            // cumulatively acknowledged packets are at the head of the sequence order
+            OutgoingPacket rttSample = null;
+            Iterator<OutgoingPacket> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                OutgoingPacket op = it.next();
+                if (seqDistance(ack, op.seq) >= 0)
+                    break;
+                it.remove();
+                rttSample = packetAcknowledged(op, rttSample, deliveredBlocks);
+            }
+            for (int bits = sackBits, offset = 1; bits != 0; bits >>>= 1, offset++) {
+                if ((bits & 1) == 0)
+                    continue;
+                OutgoingPacket op = inFlight.remove(seqAdvance(ack, offset));
+                if (op != null)
+                    rttSample = packetAcknowledged(op, rttSample, deliveredBlocks);
+            }
+            if (rttSample != null)
+                updateRto(now - rttSample.sentAt);
+
+            if (sackBits != 0) {
+                int highestSacked = 32 - Integer.numberOfLeadingZeros(sackBits);
+                for (OutgoingPacket op : inFlight.values()) {
+                    int offset = seqDistance(ack, op.seq);
+                    if (highestSacked - offset < FAST_RETRANSMIT_THRESHOLD)
+                        break;
+                    if (!op.fastRetransmitted) {
+                        op.fastRetransmitted = true;
+                        fastRetransmits++;
+                        congestionDetected(op, false);
+                        transmit(op);
+                    }
                 }
             }
+
+            for (Block block : deliveredBlocks)
+                blockDelivered(block);
+            fillWindow();
+        }
+
+        private OutgoingPacket packetAcknowledged(OutgoingPacket op, OutgoingPacket rttSample, List<Block> deliveredBlocks) {
+            retransmitQueue.remove(op);
+            // slow start, then additive increase by a packet per window
+            cwnd += cwnd < ssthresh ? 1 : 1 / cwnd;
+            cwnd = Math.min(cwnd, SEND_WINDOW);
+            if (--op.block.unackedPackets == 0)
+                deliveredBlocks.add(op.block);
+            // Karn's algorithm: retransmitted packets give ambiguous samples
+            if (op.attempts == 1 && (rttSample == null || op.sentAt - rttSample.sentAt > 0))
+                return op;
+            return rttSample;
+        }
+
+        private void fillWindow() {
+            while (inFlight.size() < sendWindow() && !pendingPackets.isEmpty()) {
+                OutgoingPacket op = pendingPackets.poll();
+                inFlight.put(op.seq, op);
+                transmit(op);
+            }
         }
 
-        public void moveBlocksFromSendingToWaiting() throws InterruptedException {
-            for (Block sendingBlock : sendingBlocksQueue) {
-                removeBlockFromSendingQueue(sendingBlock);
-                addBlockToWaitingQueue(sendingBlock);
+        /**
+         * RFC 6298 estimation of the retransmission timeout
+         */
+        private void updateRto(long rtt) {
+            if (smoothedRtt == 0) {
+                smoothedRtt = rtt;
+                rttVariation = rtt / 2;
+            } else {
+                rttVariation = (3 * rttVariation + Math.abs(smoothedRtt - rtt)) / 4;
+                smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+            }
+            rto = Math.max(TimeUnit.MILLISECONDS.toNanos(MIN_RTO),
+                    Math.min(TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_TIME), smoothedRtt + 4 * rttVariation));
+        }
+
+        private void blockDelivered(Block block) throws EncryptionError, InterruptedException {
+            block.delivered = true;
+            sendingBlocks.remove(block.blockId);
+            if ((block.type == PacketTypes.SESSION || block.type == PacketTypes.RESUMED) && state == HANDSHAKE && !initiator) {
+                // the initiator has got the key, so data can be sent now
+                log.d("%s check session %s", getLabel(), isValid());
+                established();
             }
         }
 
-        public void makeBlockDeliveredByType(int type) throws InterruptedException {
+        /**
+         * Start exchanging data once both sides have the session key.
+         */
+        void established() throws EncryptionError, InterruptedException {
+            state = EXCHANGING;
+            handshakeAttempts = 0;
+            (resumed ? resumedSessions : handshakes).incrementAndGet();
+            handshakeTime = System.nanoTime() - handshakeStartedAt;
+            handshakeNanos.addAndGet(handshakeTime);
+            maxHandshakeNanos.accumulateAndGet(handshakeTime, Math::max);
+            flushWaitingBlocks(this);
+            sendTicket(this);
+            startMtuProbing();
+        }
 
-            for (Block sendingBlock : sendingBlocksQueue) {
-                if (sendingBlock.type == type) {
-                    removeBlockFromSendingQueue(sendingBlock);
-                    sendingBlock.delivered = true;
+        /**
+         * Retransmit packets with expired timeouts. When a packet exceeds {@link #RETRANSMIT_MAX_ATTEMPTS} and nothing
+         * was heard from the remote since the packet was sent first, or it exceeds {@link
+         * #RETRANSMIT_MAX_ATTEMPTS_ALIVE}, the remote is considered lost: the block is dropped, and the session is
+         * started over if there is something else to send, or forgotten otherwise.
+         */
+        synchronized void checkRetransmits(long now) throws EncryptionError, InterruptedException {
+            OutgoingPacket op;
+            while (!retransmitQueue.isEmpty() && (op = retransmitQueue.first()).deadline - now <= 0) {
+                if (op.attempts >= RETRANSMIT_MAX_ATTEMPTS_ALIVE ||
+                        (op.attempts >= RETRANSMIT_MAX_ATTEMPTS && lastHeardAt - op.firstSentAt < 0)) {
+                    abandon(op.block);
+                    return;
                 }
+                retransmits++;
+                congestionDetected(op, true);
+                transmit(op);
+            }
+            mtuProbeExpired(now);
+            flushUnlessCorked();
+        }
+
+        private void abandon(Block block) throws EncryptionError, InterruptedException {
+            log.d("%sblock %d type %d will be removed", getLabel(), block.blockId, block.type);
+            block.delivered = true;
+            boolean handshake = state == HANDSHAKE;
+            // the remote may not know the ticket, next time the full handshake is made
+            if (block.type == PacketTypes.RESUME)
+                sessionTickets.remove(remoteNodeId);
+            reset();
+            if (handshake || waitingBlocks.isEmpty()) {
+                waitingBlocks.clear();
+                forget();
+            } else {
+                initiator = true;
+                startHandshake(this);
             }
         }
 
@@ -0,0 +1,17 @@
+-- finds the records of the hashes creating the missing ones, telling which records were inserted by the call
+CREATE OR REPLACE FUNCTION sr_find_or_create(hash_ids bytea[])
+RETURNS TABLE(id integer, hash bytea, state integer, locked_by_id integer, created_at integer, expires_at integer,
+              inserted boolean) AS $$
+    WITH new_records AS (
+        INSERT INTO ledger(hash, state, created_at, expires_at)
+        SELECT h, 1, extract(epoch from timezone('GMT', now())), extract(epoch from timezone('GMT', now() + interval '5 minutes'))
+        FROM unnest($1) AS h
+        ON CONFLICT (hash) DO NOTHING
+        RETURNING *
+    )
+    -- the query does not see the rows inserted above, so existing and new ones are selected separately
+    SELECT l.id, l.hash, l.state, l.locked_by_id, l.created_at, l.expires_at, false FROM ledger l WHERE l.hash = ANY($1)
+    UNION ALL
+    SELECT n.id, n.hash, n.state, n.locked_by_id, n.created_at, n.expires_at, true FROM new_records n;
+$$
+LANGUAGE 'sql';
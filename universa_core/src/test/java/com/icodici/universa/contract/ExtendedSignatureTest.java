@@ -22,9 +22,7 @@ import java.util.concurrent.Future;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.Matchers.lessThan;
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.junit.Assert.assertThat;
+import static org.junit.Assert.*;
 
 public class ExtendedSignatureTest extends TestCase{
 
@@ -41,6 +39,31 @@ public class ExtendedSignatureTest extends TestCase{
         assertEquals(ExtendedSignature.keyId(k), ExtendedSignature.extractKeyId(signature));
     }
 
+    @Test
+    public void parseOnce() throws Exception {
+        byte[] data = "Hello world".getBytes();
+        PrivateKey k = TestKeys.privateKey(3);
+        PublicKey pubKey = k.getPublicKey();
+        byte[] signature = ExtendedSignature.sign(k, data);
+        byte[] otherSignature = ExtendedSignature.sign(TestKeys.privateKey(1), data);
+
+        ExtendedSignature.Parsed parsed = ExtendedSignature.parse(signature);
+        assertEquals(ExtendedSignature.keyId(k), parsed.getKeyId());
+        assertAlmostSame(parsed.getCreatedAt(), ZonedDateTime.now());
+        assertArrayEquals(signature, parsed.getPacked());
+
+        byte[] digest = ExtendedSignature.dataDigest(data);
+        ExtendedSignature es = ExtendedSignature.verify(pubKey, parsed, digest, null);
+        assertNotNull(es);
+        assertEquals(parsed.getKeyId(), es.getKeyId());
+        assertEquals(parsed.getCreatedAt(), es.getCreatedAt());
+        byte[] otherDigest = ExtendedSignature.dataDigest("Hello world!".getBytes());
+        assertNull(ExtendedSignature.verify(pubKey, parsed, otherDigest, null));
+        assertNull(ExtendedSignature.verify(pubKey, ExtendedSignature.parse(otherSignature), digest, null));
+        PublicKey otherKey = TestKeys.publicKey(1);
+        assertNotNull(ExtendedSignature.verify(otherKey, ExtendedSignature.parse(otherSignature), digest, null));
+    }
+
     @Test
     public void parallelExecutionSign() throws Exception {
         ExecutorService single = Executors.newSingleThreadExecutor();
@@ -80,17 +103,53 @@ public class ExtendedSignatureTest extends TestCase{
         for(int i=0; i<200; i++)
             ExtendedSignature.sign(k, data);
 
-        double t1 = parallelize(single, 1, ()-> {
-            for(int i=0; i<1000; i++)
-                ExtendedSignature.verify(key, signature, data);
+        // measure the verification itself, without the cache
+        double t1 = parallelize(single, 1, () -> {
+            for (int i = 0; i < 1000; i++)
+                ExtendedSignature.verify(key, signature, data, null);
         });
         System.out.println(t1);
-        double t2 = parallelize(multiple, 4, ()-> {
-            for(int i=0; i<1000; i++)
-                ExtendedSignature.verify(key, signature, data);
+        double t2 = parallelize(multiple, 4, () -> {
+            for (int i = 0; i < 1000; i++)
+                ExtendedSignature.verify(key, signature, data, null);
         });
         System.out.println(t2);
-        assertThat(Math.abs(t1-t2), is(lessThan(0.15)));
+        assertThat(Math.abs(t1 - t2), is(lessThan(0.15)));
+    }
+
+    @Test
+    public void verificationCache() throws Exception {
+        // own cache, so the verifications of the other tests do not change its counters
+        VerificationCache cache = new VerificationCache(VerificationCache.DEFAULT_MAX_SIZE);
+        byte[] data = "Hello world".getBytes();
+        PrivateKey k = TestKeys.privateKey(3);
+        PublicKey pubKey = k.getPublicKey();
+        byte[] signature = ExtendedSignature.sign(k, data);
+        byte[] otherData = "Hello world!".getBytes();
+
+        ExtendedSignature es = ExtendedSignature.verify(pubKey, signature, data, cache);
+        assertNotNull(es);
+        assertSame(es, ExtendedSignature.verify(pubKey, signature, data, cache));
+        assertNull(ExtendedSignature.verify(pubKey, signature, otherData, cache));
+        assertNull(ExtendedSignature.verify(pubKey, signature, otherData, cache));
+        assertNull(ExtendedSignature.verify(TestKeys.publicKey(1), signature, data, cache));
+        assertEquals(2, cache.getStats().getLongOrThrow("hits"));
+        assertEquals(3, cache.getStats().getLongOrThrow("misses"));
+
+        cache.setEnabled(false);
+        assertEquals(0, cache.size());
+        ExtendedSignature fresh = ExtendedSignature.verify(pubKey, signature, data, cache);
+        assertNotSame(es, fresh);
+        assertEquals(es.getCreatedAt(), fresh.getCreatedAt());
+        assertNull(ExtendedSignature.verify(pubKey, signature, otherData, cache));
+        assertEquals(0, cache.size());
+        cache.setEnabled(true);
+
+        cache.setMaxSize(2);
+        for (int i = 0; i < 5; i++)
+            ExtendedSignature.verify(pubKey, signature, ("data " + i).getBytes(), cache);
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getStats().getLongOrThrow("evictions"));
     }
 
     double parallelize(ExecutorService es,int nThreads,Runnable r) throws ExecutionException, InterruptedException {
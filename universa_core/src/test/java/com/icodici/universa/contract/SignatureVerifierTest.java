@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.contract;
+
+import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.contract.roles.ListRole;
+import com.icodici.universa.contract.roles.Role;
+import com.icodici.universa.contract.roles.SimpleRole;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SignatureVerifierTest extends ContractTestBase {
+
+    static private final List<PrivateKey> keys = new ArrayList<>();
+
+    @BeforeClass
+    static public void generateKeys() throws Exception {
+        for (int i = 0; i < 5; i++)
+            keys.add(new PrivateKey(2048));
+    }
+
+    @Test
+    public void verifyTree() throws Exception {
+        byte[] sealed = quorumContract();
+        Contract expected = new Contract(sealed);
+        assertEquals(5, expected.getSealedByKeys().size());
+
+        SignatureVerifier verifier = new SignatureVerifier(4, null);
+        try {
+            Contract c = new Contract(sealed, null);
+            assertEquals(0, c.getSealedByKeys().size());
+            Contract item = (Contract) c.getNewItems().iterator().next();
+            assertEquals(0, item.getSealedByKeys().size());
+
+            verifier.verify(c);
+            assertEquals(expected.getSealedByKeys(), c.getSealedByKeys());
+            assertEquals(1, item.getSealedByKeys().size());
+            assertEquals(6, verifier.getStats().getLongOrThrow("verified"));
+            assertEquals(6, verifier.getStats().getLongOrThrow("valid"));
+
+            // nothing is left to verify
+            verifier.verify(c);
+            assertEquals(6, verifier.getStats().getLongOrThrow("verified"));
+
+            // batch of the contracts
+            List<Contract> batch = new ArrayList<>();
+            for (int i = 0; i < 3; i++)
+                batch.add(new Contract(sealed, null));
+            verifier.verifyAll(batch);
+            for (Contract b : batch)
+                assertEquals(expected.getSealedByKeys(), b.getSealedByKeys());
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
+    @Test
+    public void verifyUntilRoleIsSatisfied() throws Exception {
+        byte[] sealed = quorumContract();
+        SignatureVerifier verifier = new SignatureVerifier(2, null);
+        try {
+            Contract c = new Contract(sealed, null);
+            Role quorum = c.getRole("owner");
+            assertTrue(verifier.verify(c, quorum));
+            assertTrue(quorum.isAllowedForKeys(c.getSealedByKeys()));
+            // the items are verified anyway
+            Contract item = (Contract) c.getNewItems().iterator().next();
+            assertEquals(1, item.getSealedByKeys().size());
+            assertTrue(c.getSealedByKeys().size() >= 2);
+
+            // the role that can't be satisfied needs all the signatures
+            Contract other = new Contract(sealed, null);
+            Role stranger = new SimpleRole("stranger", new KeyRecord(keys.get(4).getPublicKey()));
+            assertFalse(verifier.verify(other, stranger));
+            assertEquals(5, other.getSealedByKeys().size());
+        } finally {
+            verifier.shutdown();
+        }
+    }
+
+    @Test
+    public void interruptedVerificationFails() throws Exception {
+        byte[] sealed = quorumContract();
+        SignatureVerifier verifier = new SignatureVerifier(2, null);
+        try {
+            // the half-verified contract is not returned
+            Thread.currentThread().interrupt();
+            new Contract(sealed, verifier);
+            fail("interrupted verification should fail");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+            assertTrue(Thread.interrupted());
+        } finally {
+            Thread.interrupted();
+            verifier.shutdown();
+        }
+    }
+
+    /**
+     * @return contract signed by the issuer and 4 members of the 2 of 4 quorum owner, with the new item signed by the issuer
+     */
+    private byte[] quorumContract() throws Exception {
+        Contract c = newContract();
+        Set<Role> members = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            PrivateKey k = keys.get(i);
+            members.add(new SimpleRole("member" + i, new KeyRecord(k.getPublicKey())));
+            c.addSignerKey(k);
+        }
+        c.registerRole(new ListRole("owner", 2, members));
+        c.addNewItem(newContract());
+        return c.seal();
+    }
+
+    private Contract newContract() throws Exception {
+        Contract c = Contract.fromYamlFile(ROOT_CONTRACT);
+        c.setExpiresAt(ZonedDateTime.now().plusMonths(1));
+        c.addSignerKeyFromFile(PRIVATE_KEY_PATH);
+        return c;
+    }
+}
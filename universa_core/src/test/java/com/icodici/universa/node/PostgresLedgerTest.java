@@ -6,14 +6,19 @@ import net.sergeych.tools.StopWatch;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 
 public class PostgresLedgerTest extends TestCase {
@@ -278,4 +283,68 @@ public class PostgresLedgerTest extends TestCase {
 
     }
 
+    @Test
+    public void findOrCreateAll() throws Exception {
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.setState(ItemState.APPROVED);
+        existing.save();
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.withDigest(Do.randomNegativeBytes(64));
+        Map<HashId, StateRecord> records = ledger.findOrCreateAll(asList(id1, existing.getId(), id2, id1));
+        assertEquals(3, records.size());
+        assertEquals(ItemState.APPROVED, records.get(existing.getId()).getState());
+        assertEquals(existing.getRecordId(), records.get(existing.getId()).getRecordId());
+        assertEquals(ItemState.PENDING, records.get(id1).getState());
+        assertEquals(ItemState.PENDING, records.get(id2).getState());
+        assertSameRecords(records.get(id2), ledger.getRecord(id2));
+        assertSameRecords(records.get(id1), ledger.findOrCreate(id1));
+    }
+
+    @Test
+    public void findOrCreateAllTellsCreated() throws Exception {
+        HashId existing = ledger.findOrCreate(HashId.createRandom()).getId();
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        Set<HashId> created = new HashSet<>();
+        Map<HashId, StateRecord> records = ledger.findOrCreateAll(asList(id1, existing, id2, id1), created);
+        assertEquals(3, records.size());
+        assertEquals(new HashSet<>(asList(id1, id2)), created);
+        assertEquals(ItemState.PENDING, records.get(existing).getState());
+
+        created.clear();
+        ledger.findOrCreateAll(asList(id1, existing, id2), created);
+        assertTrue(created.isEmpty());
+    }
+
+    @Test
+    public void readOnlyPool() throws Exception {
+        // the primary with read-only connections acts as a replica without lag
+        PostgresLedger splitLedger = new PostgresLedger(CONNECTION_STRING, CONNECTION_STRING);
+        splitLedger.enableCache(false);
+        try {
+            HashId id = HashId.createRandom();
+            StateRecord r = splitLedger.findOrCreate(id);
+            r.setState(ItemState.APPROVED);
+            r.save();
+            // recently written records are read from the primary
+            assertEquals(ItemState.APPROVED, splitLedger.getRecord(id).getState());
+
+            splitLedger.setReplicationLag(Duration.ZERO);
+            assertTrue(splitLedger.isApproved(id));
+            assertThrows(() -> splitLedger.inReadPool(id, db -> {
+                db.update("DELETE FROM ledger WHERE id = ?", r.getRecordId());
+                return null;
+            }));
+            assertTrue(splitLedger.isApproved(id));
+            // but transactions always use the primary
+            splitLedger.transaction(() -> splitLedger.inReadPool(id, db -> {
+                db.update("DELETE FROM ledger WHERE id = ?", r.getRecordId());
+                return null;
+            }));
+            assertNull(splitLedger.getRecord(id));
+        } finally {
+            splitLedger.close();
+        }
+    }
+
 }
@@ -7,6 +7,8 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.time.Clock;
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
@@ -264,4 +266,22 @@ public class SqliteLedgerTest extends TestCase {
 
     }
 
+    @Test
+    public void recordExpirationUsesSharedClock() throws Exception {
+        HashId hashId = HashId.createRandom();
+        StateRecord r = ledger.findOrCreate(hashId);
+        long expiresAt = StateRecord.currentEpochSecond() + 100;
+        r.setExpiresAt(expiresAt);
+        r.save();
+        assertEquals(expiresAt, r.getExpiresAt().toEpochSecond());
+        assertEquals(expiresAt, ledger.getRecord(hashId).getExpiresAtEpochSecond());
+        try {
+            StateRecord.setClock(Clock.offset(Clock.systemUTC(), Duration.ofSeconds(200)));
+            assertTrue(r.isExpired());
+            assertNull(ledger.getRecord(hashId));
+        } finally {
+            StateRecord.setClock(null);
+        }
+    }
+
 }
@@ -18,7 +18,7 @@ import java.time.temporal.ChronoUnit;
 import java.util.List;
 
 import static java.util.Arrays.asList;
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class ItemNotificationTest {
     @Test
@@ -46,4 +46,47 @@ public class ItemNotificationTest {
         assertEquals(n, n3);
     }
 
+    @Test
+    public void packUnpackAliases() throws Exception {
+        NodeInfo ni = new NodeInfo(TestKeys.publicKey(0),1, "test1", "localhost", 17101, 17102, 17104);
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ItemResult ir = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        List<Notification> batch = asList(new ItemNotification(ni, id1, ir, true), new ItemNotification(ni, id2, ir, false));
+
+        HashIdDictionary.Encoder encoder = new HashIdDictionary.Encoder();
+        HashIdDictionary.Decoder decoder = new HashIdDictionary.Decoder(encoder.getEpoch());
+        byte[] first = Notification.pack(batch, encoder);
+        List<Object> definitions = encoder.takeDefinitions();
+        assertEquals(4, definitions.size());
+        byte[] second = Notification.pack(batch, encoder);
+        assertEquals(0, encoder.takeDefinitions().size());
+        // the digests are sent once, along with the first message
+        assertArrayEquals(first, second);
+        assertTrue(second.length * 2 < Notification.pack(batch).length);
+
+        // the message delivered before the definitions
+        try {
+            Notification.unpack(ni, second, decoder);
+            fail("must throw");
+        } catch (HashIdDictionary.UnknownAliasException e) {
+            assertEquals(1, e.getHandle());
+        }
+        decoder.update(definitions, asList());
+        assertEquals(batch, Notification.unpack(ni, second, decoder));
+        assertEquals(batch, Notification.unpack(ni, first, decoder));
+
+        // forgotten item gets the new alias, the old one still resolves for the late messages
+        encoder.forget(id1);
+        assertEquals(1, encoder.size());
+        byte[] third = Notification.pack(batch, encoder);
+        decoder.update(encoder.takeDefinitions(), encoder.takeForgotten());
+        assertEquals(3, decoder.size());
+        assertEquals(batch, Notification.unpack(ni, third, decoder));
+        assertEquals(batch, Notification.unpack(ni, second, decoder));
+
+        // plain packed notifications are read with the dictionary too
+        assertEquals(batch, Notification.unpack(ni, Notification.pack(batch), decoder));
+    }
 }
\ No newline at end of file
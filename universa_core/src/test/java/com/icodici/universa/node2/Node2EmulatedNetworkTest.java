@@ -34,7 +34,10 @@ public class Node2EmulatedNetworkTest extends Node2SingleTest {
         nc = new NetConfig();
         TestEmulatedNetwork en = new TestEmulatedNetwork(nc);
         for(int i=0; i<NODES; i++) {
-            legder = new PostgresLedger(PostgresLedgerTest.CONNECTION_STRING+"_t"+i);
+            PostgresLedger nodeLedger = new PostgresLedger(PostgresLedgerTest.CONNECTION_STRING+"_t"+i);
+            // the tests use the ledger of the node they register items with
+            if (i == 0)
+                legder = nodeLedger;
             int offset = 7100 + 10*i;
             NodeInfo info =
                     new NodeInfo(
@@ -47,7 +50,7 @@ public class Node2EmulatedNetworkTest extends Node2SingleTest {
                             offset+2
                     );
             nc.addNode(info);
-            Node n = new Node(config, info, legder, en);
+            Node n = new Node(config, info, nodeLedger, en);
             nodes.add(n);
             en.addNode(info, n);
         }
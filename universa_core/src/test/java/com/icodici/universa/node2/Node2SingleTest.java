@@ -12,6 +12,8 @@ import com.icodici.universa.node2.network.Network;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.List;
+
 import static java.util.Arrays.asList;
 import static org.junit.Assert.assertEquals;
 
@@ -65,4 +67,39 @@ public class Node2SingleTest extends TestCase {
         assertEquals(ItemState.DECLINED, node.checkItem(bad.getId()).state);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void registerItems() throws Exception {
+        TestItem ok = new TestItem(true);
+        TestItem bad = new TestItem(false);
+        node.registerItem(ok);
+        node.waitItem(ok.getId(), 100);
+        TestItem ok2 = new TestItem(true);
+        List<ItemResult> results = node.registerItems(asList(ok, bad, ok2));
+        assertEquals(3, results.size());
+        assertEquals(ItemState.APPROVED, results.get(0).state);
+        assertEquals(ItemState.APPROVED, node.waitItem(ok2.getId(), 100).state);
+        assertEquals(ItemState.DECLINED, node.waitItem(bad.getId(), 100).state);
+    }
+
+    @Test
+    public void registerItemsWithStaleRecords() throws Exception {
+        // records left pending, e.g. by the node restarted in the middle of the elections
+        TestItem stale1 = new TestItem(true);
+        TestItem stale2 = new TestItem(true);
+        legder.findOrCreate(stale1.getId());
+        legder.findOrCreate(stale2.getId());
+        TestItem fresh = new TestItem(true);
+
+        // items with records are not processed, on both paths
+        assertEquals(ItemState.PENDING, node.registerItem(stale1).state);
+        assertEquals(ItemState.PENDING, node.registerItems(asList(stale2)).get(0).state);
+        assertEquals(0, node.countElections());
+
+        List<ItemResult> results = node.registerItems(asList(stale2, fresh));
+        assertEquals(ItemState.PENDING, results.get(0).state);
+        assertEquals(ItemState.APPROVED, node.waitItem(fresh.getId(), 5000).state);
+        assertEquals(ItemState.PENDING, node.checkItem(stale1.getId()).state);
+        assertEquals(ItemState.PENDING, node.checkItem(stale2.getId()).state);
+    }
+
+}
@@ -10,16 +10,300 @@ package com.icodici.universa.node2.network;
 import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.node.network.TestKeys;
 import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.boss.Boss;
+import net.sergeych.tools.Binder;
+import net.sergeych.tools.Do;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DatagramAdapterTest {
+
+    @Test
+    public void packetHeader() throws Exception {
+        byte[] payload = Do.randomBytes(DatagramAdapter.MAX_PACKET_SIZE * 3);
+        UDPAdapter.Block block = new UDPAdapter.Block(10, 11, -7, UDPAdapter.PacketTypes.RAW_DATA, payload);
+
+        int chunkSize = DatagramAdapter.MAX_PACKET_SIZE - UDPAdapter.Packet.HEADER_SIZE;
+        Map<Integer, UDPAdapter.Packet> packets = block.splitByPackets(DatagramAdapter.MAX_PACKET_SIZE);
+        assertEquals((payload.length + chunkSize - 1) / chunkSize, packets.size());
+
+        UDPAdapter.Block received = new UDPAdapter.Block(10, 11, -7, UDPAdapter.PacketTypes.RAW_DATA);
+        for (UDPAdapter.Packet packet : packets.values()) {
+            byte[] datagram = packet.makeByteArray();
+            assertTrue(datagram.length <= DatagramAdapter.MAX_PACKET_SIZE);
+            UDPAdapter.Packet parsed = new UDPAdapter.Packet();
+            parsed.parseFromByteArray(datagram);
+            received.addToPackets(parsed);
+        }
+        assertTrue(received.isSolid());
+        received.reconstruct();
+        assertArrayEquals(payload, received.getPayload());
+
+        // exact multiple of the chunk size must not produce an extra empty packet
+        block = new UDPAdapter.Block(10, 11, 1, UDPAdapter.PacketTypes.RAW_DATA, new byte[chunkSize * 2]);
+        assertEquals(2, block.splitByPackets(DatagramAdapter.MAX_PACKET_SIZE).size());
+        block = new UDPAdapter.Block(10, 11, 1, UDPAdapter.PacketTypes.ACK, new byte[0]);
+        assertEquals(1, block.splitByPackets(DatagramAdapter.MAX_PACKET_SIZE).size());
+
+        // packets coalesced into one datagram
+        ByteBuffer buffer = ByteBuffer.allocate(DatagramAdapter.MAX_MTU);
+        UDPAdapter.Envelope.writeHeader(buffer, 10, 11, 5, 3);
+        for (UDPAdapter.Packet packet : packets.values())
+            packet.writeTo(buffer);
+        buffer.flip();
+        UDPAdapter.Envelope envelope = UDPAdapter.Envelope.readFrom(buffer);
+        assertEquals(packets.size(), envelope.getPackets().size());
+        received = new UDPAdapter.Block(10, 11, -7, UDPAdapter.PacketTypes.RAW_DATA);
+        for (UDPAdapter.Packet packet : envelope.getPackets())
+            received.addToPackets(packet);
+        received.reconstruct();
+        assertArrayEquals(payload, received.getPayload());
+
+        byte[] bad = packets.get(0).makeByteArray();
+        bad[0] = 0x7F;
+        try {
+            new UDPAdapter.Packet().parseFromByteArray(bad);
+            fail("unknown header version must be rejected");
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void mtuProbing() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            d1.setMtu(1400);
+            d2.setPeerMtu(10, 1400);
+            assertEquals(DatagramAdapter.MAX_PACKET_SIZE, d2.getMtu(12));
+            // datagrams are received up to the largest MTU set
+            assertEquals(1400, d1.getMaxMtu());
+            assertEquals(1400, d2.getMaxMtu());
+            try {
+                d1.setMtu(DatagramAdapter.MAX_MTU + 1);
+                fail("MTU above the max must be rejected");
+            } catch (IllegalArgumentException e) {
+            }
+
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+
+            byte[] payload = Do.randomBytes(20000);
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+
+            // both sides probe the path once the session is established, localhost passes the whole MTU
+            long deadline = System.currentTimeMillis() + 5000;
+            while ((d1.getEffectiveMtu(11) != 1400 || d2.getEffectiveMtu(10) != 1400) && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertEquals(1400, d1.getEffectiveMtu(11));
+            assertEquals(1400, d2.getEffectiveMtu(10));
+
+            payload = Do.randomBytes(20000);
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+    @Test
+    public void egressLimitAndStats() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+
+            // establish the session first so only the payload is limited
+            d1.send(node2, "hello".getBytes());
+            assertArrayEquals("hello".getBytes(), received.poll(10, TimeUnit.SECONDS));
+
+            d1.setEgressLimit(100000);
+            byte[] payload = Do.randomBytes(50000);
+            long started = System.currentTimeMillis();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+            // the burst of the bucket passes at once, the rest takes about 0.5s
+            assertTrue(System.currentTimeMillis() - started >= 300);
+
+            Binder stats = d1.getStats();
+            assertTrue(stats.getLongOrThrow("sent_bytes") > payload.length);
+            assertTrue(stats.getLongOrThrow("pacing_delays") > 0);
+            Binder peer = stats.getBinderOrThrow("peers").getBinderOrThrow("11");
+            assertTrue(peer.getDouble("cwnd") >= UDPAdapter.MIN_CWND);
+            assertEquals(DatagramAdapter.MAX_PACKET_SIZE, peer.getIntOrThrow("mtu"));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+    @Test
+    public void transportStatsAndTrace() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+            d1.setPacketTrace(4);
+
+            d1.send(node2, "hello".getBytes());
+            assertArrayEquals("hello".getBytes(), received.poll(10, TimeUnit.SECONDS));
+
+            Binder stats = d1.getStats();
+            assertEquals(1, stats.getIntOrThrow("handshakes"));
+            assertTrue(stats.getDouble("handshake_max_ms") > 0);
+            assertEquals(0, stats.getIntOrThrow("decrypt_failures"));
+            assertEquals(0, stats.getIntOrThrow("rejected_blocks"));
+            Binder peer = stats.getBinderOrThrow("peers").getBinderOrThrow("11");
+            assertTrue(peer.getLongOrThrow("sent_datagrams") > 0);
+            assertTrue(peer.getLongOrThrow("sent_bytes") <= stats.getLongOrThrow("sent_bytes"));
+            assertTrue(peer.getDouble("handshake_ms") > 0);
+
+            Binder remoteStats = d2.getStats();
+            assertTrue(remoteStats.getLongOrThrow("received_datagrams") > 0);
+            assertTrue(remoteStats.getBinderOrThrow("peers").getBinderOrThrow("10").getLongOrThrow("received_bytes") > 0);
+
+            List<Binder> trace = d1.getPacketTrace();
+            assertEquals(4, trace.size());
+            for (Binder record : trace)
+                assertEquals(11, record.getIntOrThrow("peer"));
+            assertTrue(d2.getPacketTrace().isEmpty());
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+
+        // the ring keeps the last records, oldest first
+        UDPAdapter.PacketTrace trace = new UDPAdapter.PacketTrace(2);
+        for (int blockId = 1; blockId <= 3; blockId++)
+            trace.add(true, 11, new UDPAdapter.Block(10, 11, blockId, UDPAdapter.PacketTypes.DATA, new byte[10])
+                    .splitByPackets(DatagramAdapter.MAX_PACKET_SIZE).get(0));
+        List<Binder> records = trace.getRecords();
+        assertEquals(2, records.size());
+        assertEquals(2, records.get(0).getIntOrThrow("block_id"));
+        assertEquals(3, records.get(1).getIntOrThrow("block_id"));
+        assertEquals("out", records.get(1).getStringOrThrow("direction"));
+    }
+
+    @Test
+    public void bufferPool() throws Exception {
+        UDPAdapter.BufferPool pool = new UDPAdapter.BufferPool(DatagramAdapter.MAX_PACKET_SIZE, 1);
+        ByteBuffer buffer = pool.take(DatagramAdapter.MAX_PACKET_SIZE);
+        assertEquals(DatagramAdapter.MAX_PACKET_SIZE, buffer.capacity());
+        pool.release(buffer);
+        // the pooled buffer is too small once the MTU has grown
+        buffer = pool.take(1400);
+        assertEquals(1400, buffer.capacity());
+        assertEquals(1400, buffer.remaining());
+        pool.release(buffer);
+        // and the larger one is limited to the smaller size
+        ByteBuffer reused = pool.take(DatagramAdapter.MAX_PACKET_SIZE);
+        assertTrue(reused == buffer);
+        assertEquals(DatagramAdapter.MAX_PACKET_SIZE, reused.remaining());
+    }
+
+    @Test
+    public void reassembly() throws Exception {
+        UDPAdapter.Reassembler reassembler = new UDPAdapter.Reassembler(3000, 1000);
+        byte[] payload = Do.randomBytes(1000);
+        Map<Integer, UDPAdapter.Packet> first = new UDPAdapter.Block(10, 11, 7, UDPAdapter.PacketTypes.DATA, payload)
+                .splitByPackets(DatagramAdapter.MAX_PACKET_SIZE);
+        // another sender with the same block id must not be mixed in
+        Map<Integer, UDPAdapter.Packet> second = new UDPAdapter.Block(12, 11, 7, UDPAdapter.PacketTypes.DATA, payload)
+                .splitByPackets(DatagramAdapter.MAX_PACKET_SIZE);
+        assertEquals(3, first.size());
+
+        assertEquals(null, reassembler.add(first.get(0), 0));
+        assertEquals(null, reassembler.add(second.get(0), 0));
+        assertEquals(null, reassembler.add(first.get(0), 0));
+        assertEquals(null, reassembler.add(first.get(1), 0));
+        UDPAdapter.Block block = reassembler.add(first.get(2), 0);
+        block.reconstruct();
+        assertArrayEquals(payload, block.getPayload());
+
+        // the second block is not updated in time
+        assertEquals(null, reassembler.add(second.get(1), 1000));
+        assertEquals(null, reassembler.add(second.get(2), 1000));
+
+        // over the budget the least recently updated blocks go first
+        for (int blockId = 100; blockId < 110; blockId++) {
+            UDPAdapter.Packet packet = new UDPAdapter.Block(10, 11, blockId, UDPAdapter.PacketTypes.DATA, payload)
+                    .splitByPackets(DatagramAdapter.MAX_PACKET_SIZE).get(0);
+            assertEquals(null, reassembler.add(packet, 1500));
+        }
+
+        Binder stats = reassembler.getStats();
+        assertEquals(1, stats.getLongOrThrow("completed"));
+        assertEquals(1, stats.getLongOrThrow("expired"));
+        assertEquals(1, stats.getLongOrThrow("duplicates"));
+        assertTrue(stats.getLongOrThrow("evicted") > 0);
+        assertTrue(stats.getLongOrThrow("bytes") <= 3000);
+
+        // rejected packets don't keep the block alive nor hide the expired ones behind it
+        reassembler = new UDPAdapter.Reassembler(100_000, 1000);
+        assertEquals(null, reassembler.add(first.get(0), 0));
+        assertEquals(null, reassembler.add(second.get(0), 500));
+        assertEquals(null, reassembler.add(first.get(0), 900));
+        reassembler.expire(1100);
+        stats = reassembler.getStats();
+        assertEquals(1, stats.getLongOrThrow("duplicates"));
+        assertEquals(1, stats.getLongOrThrow("expired"));
+        assertEquals(null, reassembler.add(first.get(1), 1100));
+        assertEquals(null, reassembler.add(first.get(2), 1100));
+        assertEquals(0, reassembler.getStats().getLongOrThrow("completed"));
+    }
+
+    @Test
+    public void sequenceNumbers() throws Exception {
+        assertEquals(3, UDPAdapter.seqDistance(1, 4));
+        assertEquals(-3, UDPAdapter.seqDistance(4, 1));
+        // zero is skipped when the sequence wraps
+        assertEquals(1, UDPAdapter.seqDistance(-1, 1));
+        assertEquals(-1, UDPAdapter.seqDistance(1, -1));
+        assertEquals(1, UDPAdapter.seqAdvance(-1, 1));
+        assertEquals(3, UDPAdapter.seqAdvance(-2, 4));
+        assertEquals(Integer.MIN_VALUE, UDPAdapter.seqAdvance(Integer.MAX_VALUE, 1));
+        assertEquals(1, UDPAdapter.seqDistance(Integer.MAX_VALUE, Integer.MIN_VALUE));
+        for (int from : new int[]{1, -10, Integer.MAX_VALUE - 5}) {
+            for (int i = 0; i < 20; i++)
+                assertEquals(i, UDPAdapter.seqDistance(from, UDPAdapter.seqAdvance(from, i)));
+        }
+    }
+
     @Test
     public void sendAndReceive() throws Exception {
 
@@ -239,6 +523,220 @@ public class DatagramAdapterTest {
     }
 
 
+    @Test
+    public void sessionResumption() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        UDPAdapter d3 = null;
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+            byte[] payload = "test data set 1".getBytes();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!d1.hasSessionTicket(11) && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertTrue(d1.hasSessionTicket(11));
+            assertEquals(1, d2.getStats().getLongOrThrow("handshakes"));
+
+            // restarted node accepts the ticket it has issued before
+            d2.shutdown();
+            d3 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+            d3.receive(received::add);
+            payload = "test data set 2".getBytes();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+            assertEquals(0, d3.getStats().getLongOrThrow("handshakes"));
+            assertEquals(1, d3.getStats().getLongOrThrow("resumed_sessions"));
+            assertEquals(1, d1.getStats().getLongOrThrow("resumed_sessions"));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+            if (d3 != null)
+                d3.shutdown();
+        }
+    }
+
+
+    @Test
+    public void sessionTicketOfOtherNode() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+        // impostor of node 10: knows the session key of node 11, as every peer of it does, but not the key of node 10
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16205, 16206, 16303);
+
+        SymmetricKey key2 = new SymmetricKey();
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), key2, node2);
+        UDPAdapter d3 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node3);
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+            byte[] payload = "test data set 1".getBytes();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!d1.hasSessionTicket(11) && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            UDPAdapter.SessionTicket ticket = d1.getSessionTicket(11);
+            assertNotNull(ticket);
+            assertFalse(Arrays.equals(UDPAdapter.hmac(key2.getKey(), "resumption"), ticket.secret));
+
+            // the ticket is captured, the secret is guessed from the session key of node 11
+            d3.putSessionTicket(11, new UDPAdapter.SessionTicket(ticket.ticket,
+                    UDPAdapter.hmac(key2.getKey(), "resumption"), ticket.expiresAt));
+            d3.setHandshakeTimeout(300, 3);
+            d3.send(node2, "test data set 2".getBytes());
+            assertNull(received.poll(2, TimeUnit.SECONDS));
+            assertEquals(0, d2.getStats().getLongOrThrow("resumed_sessions"));
+            assertFalse(d3.hasSessionTicket(11));
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+            d3.shutdown();
+        }
+    }
+
+
+    @Test
+    public void handshakeTimeout() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        // node 10 signs with the key its node info does not have: the remote acknowledges and rejects its key
+        // requests, so the handshake never completes
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(2), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+            d1.setHandshakeTimeout(300, 3);
+            d1.send(node2, "test data set 1".getBytes());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (d1.getStats().getBinderOrThrow("peers").containsKey("11") && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertFalse(d1.getStats().getBinderOrThrow("peers").containsKey("11"));
+            assertEquals(3, d2.getStats().getLongOrThrow("rejected_blocks"));
+
+            // the block is dropped, nothing is retried after giving up
+            Thread.sleep(1000);
+            assertEquals(3, d2.getStats().getLongOrThrow("rejected_blocks"));
+            assertEquals(0, d1.getStats().getLongOrThrow("handshakes"));
+            assertTrue(received.isEmpty());
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+
+    @Test
+    public void idleSessionTimeout() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            BlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+            d2.receive(received::add);
+            d1.setSessionIdleTimeout(200);
+            d2.setSessionIdleTimeout(200);
+            byte[] payload = "test data set 1".getBytes();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (d1.getStats().getBinderOrThrow("peers").containsKey("11") && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assertFalse(d1.getStats().getBinderOrThrow("peers").containsKey("11"));
+
+            // next block starts the new session, resumed with the ticket
+            payload = "test data set 2".getBytes();
+            d1.send(node2, payload);
+            assertArrayEquals(payload, received.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, d1.getStats().getLongOrThrow("handshakes"));
+            assertEquals(1, d1.getStats().getLongOrThrow("resumed_sessions"));
+
+            // blocks sent at once while the session expires go with the new one
+            Set<String> sent = ConcurrentHashMap.newKeySet();
+            List<Thread> senders = new ArrayList<>();
+            long[] delays = new Random().longs(10, 190, 280).toArray();
+            for (int t = 0; t < 2; t++) {
+                int sender = t;
+                senders.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 10; i++) {
+                            Thread.sleep(delays[i]);
+                            String data = "sender " + sender + " block " + i;
+                            sent.add(data);
+                            d1.send(node2, data.getBytes());
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+            senders.forEach(Thread::start);
+            for (Thread thread : senders)
+                thread.join();
+            Set<String> delivered = new HashSet<>();
+            while (delivered.size() < sent.size() && (payload = received.poll(10, TimeUnit.SECONDS)) != null)
+                delivered.add(new String(payload));
+            assertEquals(20, sent.size());
+            assertEquals(sent, delivered);
+            assertTrue(d1.getStats().getLongOrThrow("resumed_sessions") > 1);
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+
+    @Test
+    public void payloadCompression() throws Exception {
+        Binder record = Binder.fromKeysValues("state", Binder.fromKeysValues("owner", "test", "revision", 1),
+                "definition", Binder.fromKeysValues("issuer", "test", "data", "test data set 1"));
+        ArrayList<Binder> records = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            records.add(record);
+        byte[] packed = Boss.pack(records);
+        byte[] compressed = PayloadCodec.compress(packed);
+        assertTrue(compressed.length < packed.length / 4);
+        assertArrayEquals(packed, PayloadCodec.decompress(compressed));
+        // short and incompressible payloads are sent as is
+        assertEquals(null, PayloadCodec.compress(new byte[100]));
+        assertEquals(null, PayloadCodec.compress(Do.randomBytes(2000)));
+
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0),10, "test_node_10", "localhost", 16201, 16202, 16301);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1),11, "test_node_11", "localhost", 16203, 16204, 16302);
+
+        UDPAdapter d1 = new UDPAdapter(TestKeys.privateKey(0), new SymmetricKey(), node1);
+        UDPAdapter d2 = new UDPAdapter(TestKeys.privateKey(1), new SymmetricKey(), node2);
+        try {
+            BlockingQueue<byte[]> received = new ArrayBlockingQueue<>(10);
+            d2.receive(received::add);
+            d1.send(node2, packed);
+            assertArrayEquals(packed, received.poll(10, TimeUnit.SECONDS));
+
+            Binder peer = d1.getStats().getBinderOrThrow("peers").getBinderOrThrow("11");
+            assertEquals(PayloadCodec.DEFLATE, peer.getStringOrThrow("codec"));
+            assertEquals(1, peer.getLongOrThrow("compressed_payloads"));
+            assertTrue(peer.getDouble("compression_ratio") < 0.25);
+        } finally {
+            d1.shutdown();
+            d2.shutdown();
+        }
+    }
+
+
     @Test
     public void testLostPackets() throws Exception {
         // create pair of connected adapters
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.NodeInfo;
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DatagramSimulatorTest {
+
+    private final NodeInfo node1;
+    private final NodeInfo node2;
+
+    public DatagramSimulatorTest() throws Exception {
+        // the simulator does not use the addresses
+        node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16601, 16602, 16701);
+        node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16603, 16604, 16702);
+    }
+
+    @Test
+    public void latencyAndBandwidth() throws Exception {
+        DatagramSimulator sim = new DatagramSimulator(1);
+        DatagramSimulator.Link link = new DatagramSimulator.Link();
+        link.setLatency(DatagramSimulator.Latency.constant(Duration.ofMillis(50)));
+        link.setBandwidth(10_000);
+        sim.setDefaultLink(link);
+
+        SimulatedDatagramAdapter a1 = sim.createAdapter(node1);
+        SimulatedDatagramAdapter a2 = sim.createAdapter(node2);
+        List<Long> arrivals = new ArrayList<>();
+        a1.receive(payload -> arrivals.add(sim.now()));
+        // the node answers in the simulator thread, the answer goes back by the same link model
+        a2.receive(payload -> {
+            arrivals.add(sim.now());
+            if (payload.length == 1)
+                a2.send(node1, payload);
+        });
+
+        // 1000 bytes take 100ms at 10000 B/s, the second payload queues behind the first
+        a1.send(node2, new byte[1000]);
+        a1.send(node2, new byte[1000]);
+        a1.send(node2, new byte[1]);
+        assertEquals(0, sim.runFor(Duration.ofMillis(149)));
+        assertEquals(4, sim.runUntilIdle());
+        assertEquals(150_000_000L, (long) arrivals.get(0));
+        assertEquals(250_000_000L, (long) arrivals.get(1));
+        assertEquals(250_100_000L, (long) arrivals.get(2));
+        assertEquals(300_200_000L, (long) arrivals.get(3));
+
+        a2.shutdown();
+        a1.send(node2, new byte[10]);
+        sim.runUntilIdle();
+        Binder stats = sim.getStats();
+        assertEquals(5, stats.getLongOrThrow("sent"));
+        assertEquals(4, stats.getLongOrThrow("delivered"));
+        assertEquals(1, stats.getLongOrThrow("undeliverable"));
+        assertEquals(0, stats.getLongOrThrow("pending"));
+    }
+
+    @Test
+    public void sameSeedSameRun() throws Exception {
+        List<String> first = lossyRun(42);
+        assertEquals(first, lossyRun(42));
+        assertNotEquals(first, lossyRun(43));
+    }
+
+    @Test
+    public void retransmitLosses() throws Exception {
+        DatagramSimulator sim = new DatagramSimulator(7);
+        DatagramSimulator.Link link = new DatagramSimulator.Link();
+        link.setLatency(DatagramSimulator.Latency.constant(Duration.ofMillis(10)));
+        link.setLoss(0.5);
+        link.setRetransmitTimeout(Duration.ofMillis(100));
+        sim.setLink(node1.getId(), node2.getId(), link);
+
+        SimulatedDatagramAdapter a1 = sim.createAdapter(node1);
+        SimulatedDatagramAdapter a2 = sim.createAdapter(node2);
+        // payloads sent before the receiver is set are queued
+        int count = 1000;
+        for (int i = 0; i < count; i++)
+            a1.send(node2, new byte[]{(byte) i});
+        sim.runUntilIdle();
+        List<byte[]> received = new ArrayList<>();
+        a2.receiveFrom((senderId, payload) -> {
+            assertEquals(node1.getId(), (int) senderId);
+            received.add(payload);
+        });
+        assertEquals(count, received.size());
+
+        Binder stats = sim.getStats();
+        assertEquals(0, stats.getLongOrThrow("lost"));
+        long retransmitted = stats.getLongOrThrow("retransmitted");
+        assertTrue(retransmitted > count * 0.8 && retransmitted < count * 1.2);
+        // the last payload is late by the retransmissions
+        assertTrue(stats.getDouble("now_ms") >= 110);
+    }
+
+    /**
+     * @return what node2 received and when, through the link that loses, duplicates and reorders
+     */
+    private List<String> lossyRun(long seed) throws Exception {
+        DatagramSimulator sim = new DatagramSimulator(seed);
+        DatagramSimulator.Link link = new DatagramSimulator.Link();
+        link.setLatency(DatagramSimulator.Latency.pareto(Duration.ofMillis(5), Duration.ofMillis(20), 1.5));
+        link.setLoss(0.1);
+        link.setDuplication(0.05);
+        link.setReordering(0.2, Duration.ofMillis(30));
+        link.setBandwidth(1_000_000);
+        sim.setDefaultLink(link);
+
+        SimulatedDatagramAdapter a1 = sim.createAdapter(node1);
+        SimulatedDatagramAdapter a2 = sim.createAdapter(node2);
+        List<String> log = new ArrayList<>();
+        a2.receive(payload -> log.add(payload[0] + "@" + sim.now()));
+        for (int i = 0; i < 100; i++) {
+            a1.send(node2, new byte[]{(byte) i});
+            sim.runFor(Duration.ofMillis(1));
+        }
+        sim.runUntilIdle();
+
+        Binder stats = sim.getStats();
+        assertTrue(stats.getLongOrThrow("lost") > 0);
+        assertTrue(stats.getLongOrThrow("reordered") > 0);
+        assertEquals(stats.getLongOrThrow("delivered"), log.size());
+        return log;
+    }
+}
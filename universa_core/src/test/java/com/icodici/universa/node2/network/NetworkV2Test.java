@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.TestItem;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NetConfig;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class NetworkV2Test {
+
+    @Test
+    public void notificationsAndItems() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16401, 16402, 16501);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16403, 16404, 16502);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        try {
+            BlockingQueue<Notification> received = new ArrayBlockingQueue<>(1000);
+            n2.subscribe(node2, received::add);
+
+            ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+            ItemResult result = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+            int count = 500;
+            for (int i = 0; i < count; i++)
+                n1.deliver(node2, new ItemNotification(node1, HashId.createRandom(), result, i % 2 == 0));
+            for (int i = 0; i < count; i++) {
+                ItemNotification n = (ItemNotification) received.poll(10, TimeUnit.SECONDS);
+                assertNotNull(n);
+                assertEquals(node1, n.getFrom());
+                assertEquals(result, n.getItemResult());
+            }
+            // notifications queued meanwhile are packed together
+            assertTrue(n1.getStats().getLongOrThrow("sent_messages") < count);
+            assertEquals(0, n1.getStats().getLongOrThrow("dropped_notifications"));
+            // every item id is sent once, the rest are aliases
+            assertEquals(count, n1.getStats().getBinderOrThrow("aliases").getIntOrThrow("11"));
+            assertEquals(0, n2.getStats().getLongOrThrow("dropped_messages"));
+
+            TestItem item = new TestItem(true);
+            n2.setItemSource(id -> id.equals(item.getId()) ? item : null);
+            Approvable downloaded = n1.getItem(item.getId(), node2, Duration.ofSeconds(10));
+            assertTrue(downloaded instanceof TestItem);
+            assertTrue(downloaded.check());
+            long started = System.currentTimeMillis();
+            assertNull(n1.getItem(HashId.createRandom(), node2, Duration.ofSeconds(10)));
+            // the node answers it has no item, no need to wait for the timeout
+            assertTrue(System.currentTimeMillis() - started < 5000);
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void notificationsInOrder() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16413, 16414, 16507);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16415, 16416, 16508);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        try {
+            BlockingQueue<HashId> received = new LinkedBlockingQueue<>();
+            // the slow subscriber, so the messages that come meanwhile wait for it
+            n2.subscribe(node2, n -> {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                received.add(((ItemNotification) n).getItemId());
+            });
+            ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+            ItemResult result = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+            List<HashId> ids = new ArrayList<>();
+            for (int i = 0; i < 300; i++) {
+                HashId id = HashId.createRandom();
+                ids.add(id);
+                n1.deliver(node2, new ItemNotification(node1, id, result, false));
+            }
+            for (HashId id : ids)
+                assertEquals(id, received.poll(10, TimeUnit.SECONDS));
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void senderIsAuthenticated() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16401, 16402, 16501);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16403, 16404, 16502);
+        NodeInfo node3 = new NodeInfo(TestKeys.publicKey(2), 12, "test_node_12", "localhost", 16405, 16406, 16503);
+        NetConfig nc = new NetConfig(asList(node1, node2, node3));
+
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        NetworkV2 n3 = new NetworkV2(nc, node3, TestKeys.privateKey(2));
+        try {
+            BlockingQueue<Notification> received = new ArrayBlockingQueue<>(10);
+            n2.subscribe(node2, received::add);
+
+            // the notification claims to be from node 10, but it comes over the session with node 12
+            ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+            ItemResult result = new ItemResult(ItemState.APPROVED, false, now, now.plusDays(30));
+            n3.deliver(node2, new ItemNotification(node1, HashId.createRandom(), result, false));
+            Notification n = received.poll(10, TimeUnit.SECONDS);
+            assertNotNull(n);
+            assertEquals(node3, n.getFrom());
+        } finally {
+            n2.shutdown();
+            n3.shutdown();
+        }
+    }
+
+    @Test
+    public void receiverRestart() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16401, 16402, 16501);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16403, 16404, 16502);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        NetworkV2 restarted = null;
+        try {
+            BlockingQueue<Notification> received = new LinkedBlockingQueue<>();
+            n2.subscribe(node2, received::add);
+            ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+            ItemResult result = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+            List<HashId> ids = new ArrayList<>();
+            for (int i = 0; i < 10; i++)
+                ids.add(HashId.createRandom());
+            for (HashId id : ids)
+                n1.deliver(node2, new ItemNotification(node1, id, result, false));
+            for (int i = 0; i < ids.size(); i++)
+                assertNotNull(received.poll(10, TimeUnit.SECONDS));
+
+            // the restarted node knows none of the aliases the sender goes on with
+            n2.shutdown();
+            restarted = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+            restarted.setAliasWaitTimeout(Duration.ofMillis(300));
+            restarted.subscribe(node2, received::add);
+            Set<HashId> delivered = new HashSet<>();
+            long deadline = System.currentTimeMillis() + 15000;
+            while (delivered.size() < ids.size() && System.currentTimeMillis() < deadline) {
+                for (HashId id : ids)
+                    n1.deliver(node2, new ItemNotification(node1, id, result, false));
+                Notification n;
+                while ((n = received.poll(100, TimeUnit.MILLISECONDS)) != null)
+                    delivered.add(((ItemNotification) n).getItemId());
+            }
+            assertEquals(new HashSet<>(ids), delivered);
+            assertTrue(restarted.getStats().getLongOrThrow("dropped_messages") > 0);
+            assertEquals(1, n1.getStats().getLongOrThrow("alias_resets"));
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+            if (restarted != null)
+                restarted.shutdown();
+        }
+    }
+
+    @Test
+    public void bulkItems() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16405, 16406, 16503);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16407, 16408, 16504);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        try {
+            // test items are small, send them all over the bulk channel
+            n2.setBulkThreshold(0);
+            n2.setBulkBandwidth(100_000);
+            TestItem item = new TestItem(true);
+            n2.setItemSource(id -> id.equals(item.getId()) ? item : null);
+            for (int i = 0; i < 3; i++) {
+                Approvable downloaded = n1.getItem(item.getId(), node2, Duration.ofSeconds(10));
+                assertTrue(downloaded instanceof TestItem);
+                assertTrue(downloaded.check());
+            }
+            assertNull(n1.getItem(HashId.createRandom(), node2, Duration.ofSeconds(10)));
+
+            assertEquals(3, n2.getStats().getLongOrThrow("bulk_sent"));
+            assertEquals(3, n1.getStats().getLongOrThrow("bulk_received"));
+            assertEquals(0, n1.getStats().getLongOrThrow("bulk_failures"));
+            assertEquals(0, n2.getStats().getLongOrThrow("bulk_failures"));
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void idleBulkConnections() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16409, 16410, 16505);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16411, 16412, 16506);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        NetworkV2 n1 = new NetworkV2(nc, node1, TestKeys.privateKey(0));
+        NetworkV2 n2 = new NetworkV2(nc, node2, TestKeys.privateKey(1));
+        List<Socket> idle = new ArrayList<>();
+        try {
+            n2.setBulkThreshold(0);
+            TestItem item = new TestItem(true);
+            n2.setItemSource(id -> id.equals(item.getId()) ? item : null);
+            // connections that never send the token take all serving threads for a while only
+            for (int i = 0; i < NetworkV2.BULK_THREADS * 2; i++)
+                idle.add(new Socket("localhost", node2.getNodeAddress().getPort()));
+            Approvable downloaded = n1.getItem(item.getId(), node2, Duration.ofSeconds(10));
+            assertTrue(downloaded instanceof TestItem);
+            // counted before the download completes, unlike bulk_sent of the server
+            assertEquals(1, n1.getStats().getLongOrThrow("bulk_received"));
+        } finally {
+            for (Socket socket : idle)
+                socket.close();
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void failedSendResetsAliases() throws Exception {
+        NodeInfo node1 = new NodeInfo(TestKeys.publicKey(0), 10, "test_node_10", "localhost", 16801, 16802, 16901);
+        NodeInfo node2 = new NodeInfo(TestKeys.publicKey(1), 11, "test_node_11", "localhost", 16803, 16804, 16902);
+        NetConfig nc = new NetConfig(asList(node1, node2));
+
+        DatagramSimulator sim = new DatagramSimulator(1);
+        AtomicBoolean fail = new AtomicBoolean(true);
+        SimulatedDatagramAdapter failing = new SimulatedDatagramAdapter(sim, node1) {
+            @Override
+            public void send(NodeInfo destination, byte[] payload) {
+                if (fail.getAndSet(false))
+                    throw new IllegalStateException("test send failure");
+                super.send(destination, payload);
+            }
+        };
+        NetworkV2 n1 = new NetworkV2(nc, node1, failing, Runnable::run);
+        NetworkV2 n2 = new NetworkV2(nc, node2, sim.createAdapter(node2), Runnable::run);
+        try {
+            List<Notification> received = new ArrayList<>();
+            n2.subscribe(node2, received::add);
+            ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+            ItemResult result = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+            HashId id = HashId.createRandom();
+
+            // the alias of the item is defined in the lost message, the next one defines it again
+            n1.deliver(node2, new ItemNotification(node1, id, result, false));
+            n1.deliver(node2, new ItemNotification(node1, id, result, true));
+            sim.runUntilIdle();
+            assertEquals(1, received.size());
+            assertEquals(id, ((ItemNotification) received.get(0)).getItemId());
+            assertEquals(0, n2.getStats().getLongOrThrow("dropped_messages"));
+        } finally {
+            n1.shutdown();
+            n2.shutdown();
+        }
+    }
+
+    @Test
+    public void overSimulator() throws Exception {
+        List<String> first = simulatedRun(42);
+        assertEquals(first, simulatedRun(42));
+        assertNotEquals(first, simulatedRun(43));
+    }
+
+    /**
+     * Every node sends the notifications to every other one over the lossy links with reordering, all in the thread
+     * that runs the simulator.
+     *
+     * @return what the nodes received and when
+     */
+    private List<String> simulatedRun(long seed) throws Exception {
+        // the simulator does not use the addresses
+        List<NodeInfo> nodes = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+            nodes.add(new NodeInfo(TestKeys.publicKey(i), 10 + i, "test_node_" + (10 + i), "localhost", 16801 + i * 2,
+                    16802 + i * 2, 16901 + i));
+        NetConfig nc = new NetConfig(nodes);
+
+        DatagramSimulator sim = new DatagramSimulator(seed);
+        DatagramSimulator.Link link = new DatagramSimulator.Link();
+        link.setLatency(DatagramSimulator.Latency.pareto(Duration.ofMillis(5), Duration.ofMillis(20), 1.5));
+        link.setLoss(0.1);
+        link.setRetransmitTimeout(Duration.ofMillis(100));
+        link.setReordering(0.2, Duration.ofMillis(30));
+        // no bandwidth limit: the alias epochs are random, so the size of the messages, and the time to send them,
+        // differs from run to run
+        sim.setDefaultLink(link);
+
+        List<String> log = new ArrayList<>();
+        List<NetworkV2> networks = new ArrayList<>();
+        for (NodeInfo node : nodes) {
+            NetworkV2 network = new NetworkV2(nc, node, sim.createAdapter(node), Runnable::run);
+            network.subscribe(node, n -> log.add(node.getId() + "<" + n.getFrom().getId() + ":" +
+                    ((ItemNotification) n).getItemId().toBase64String() + "@" + sim.now()));
+            networks.add(network);
+        }
+        try {
+            ZonedDateTime time = ZonedDateTime.of(2017, 6, 1, 0, 0, 0, 0, ZoneOffset.UTC);
+            ItemResult result = new ItemResult(ItemState.PENDING, false, time, time.plusDays(30));
+            int count = 50;
+            for (int i = 0; i < count; i++) {
+                for (int from = 0; from < nodes.size(); from++) {
+                    NodeInfo sender = nodes.get(from);
+                    HashId id = HashId.of(new byte[]{(byte) from, (byte) i});
+                    for (NodeInfo to : nodes)
+                        if (to != sender)
+                            networks.get(from).deliver(to, new ItemNotification(sender, id, result, false));
+                }
+                sim.runFor(Duration.ofMillis(1));
+            }
+            sim.runUntilIdle();
+
+            assertEquals(count * nodes.size() * (nodes.size() - 1), log.size());
+            for (NetworkV2 network : networks)
+                assertEquals(0, network.getStats().getLongOrThrow("dropped_messages"));
+            assertTrue(sim.getStats().getLongOrThrow("reordered") > 0);
+            return log;
+        } finally {
+            for (NetworkV2 network : networks)
+                network.shutdown();
+        }
+    }
+}